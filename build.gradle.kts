@@ -28,6 +28,9 @@ repositories {
 }
 
 dependencies {
+    testImplementation(platform("org.junit:junit-bom:5.11.4"))
+    testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 }
 
 sourceSets {
@@ -41,9 +44,40 @@ sourceSets {
             setSrcDirs(listOf("src/resources"))
         }
     }
+
+    test {
+        java {
+            setSrcDirs(listOf("test"))
+        }
+
+        resources {
+            setSrcDirs(emptyList<String>())
+        }
+    }
+}
+
+tasks.test {
+    useJUnitPlatform()
+}
+
+// Packs the sprites into one atlas image, which the ImageLoader reads at startup
+val packSprites by tasks.registering(JavaExec::class) {
+    val spritesDir = file("src/resources")
+    val atlasDir = layout.buildDirectory.dir("generated/sprites")
+    inputs.files(fileTree(spritesDir) { include("*.png") })
+    outputs.dir(atlasDir)
+    classpath = sourceSets.main.get().output.classesDirs
+    mainClass = "gui.loaders.SpritePacker"
+    args(spritesDir.absolutePath, atlasDir.get().asFile.absolutePath)
+    dependsOn(tasks.compileJava)
 }
 
 tasks.processResources {
+    from(packSprites)
+    // The 2x and 4x sprites, read by the ZipSprites of screens that scale the window
+    from("sprites") {
+        include("*.zip")
+    }
     val projectVersion = project.version
     inputs.property("version", projectVersion)
     filesMatching("gradle.bridge.properties") {
@@ -54,6 +88,8 @@ tasks.processResources {
 application {
     // Define the main class for the application.
     mainClass = "gui.SuperMarioPaint"
+    // Offline rendering opens Gervill synthesizers in streaming mode
+    applicationDefaultJvmArgs = listOf("--add-exports=java.desktop/com.sun.media.sound=ALL-UNNAMED")
 }
 
 val javaVersion = JavaVersion.current()
@@ -72,6 +108,7 @@ jlink {
     
     launcher {
         name = "SuperMarioPaint-" + project.version
+        jvmArgs = listOf("--add-exports=java.desktop/com.sun.media.sound=smp")
     }
     
     jpackage {
@@ -2,26 +2,28 @@ package backend.editing.commands;
 
 import backend.editing.CommandInterface;
 import backend.songs.Note;
-import backend.songs.NoteLine;
+import backend.songs.Song;
 
 public class AddNoteCommand implements CommandInterface {
 
-    private NoteLine theLine;
+    private Song theSong;
+    private int theLine;
     private Note theNote;
 
-    public AddNoteCommand(NoteLine line, Note note) {
+    public AddNoteCommand(Song song, int line, Note note) {
+        theSong = song;
         theLine = line;
         theNote = note;
     }
     
     @Override
     public void redo() {
-        theLine.getNotes().add(theNote);
+        theSong.getLine(theLine).getNotes().add(theNote);
     }
 
     @Override
     public void undo() {
-        theLine.getNotes().remove(theNote);
+        theSong.getLine(theLine).getNotes().remove(theNote);
     }
 
 }
@@ -1,21 +1,24 @@
 package backend.editing.commands;
 
 import backend.editing.CommandInterface;
-import backend.songs.NoteLine;
+import backend.songs.Song;
 
 public class AddVolumeCommand implements CommandInterface {
 
-    NoteLine theLine;
+    Song theSong;
+    int theLine;
     int theNewVolume;
     
-    public AddVolumeCommand(NoteLine line, int newVolume) {
+    public AddVolumeCommand(Song song, int line, int newVolume) {
+        theSong = song;
         theLine = line;
         theNewVolume = newVolume;
     }
     
     @Override
     public void redo() {
-        theLine.setVolume(theNewVolume);
+        if (theSong.peekLine(theLine).getVolume() != theNewVolume)
+            theSong.getLine(theLine).setVolume(theNewVolume);
     }
 
     @Override
@@ -67,6 +67,8 @@ public class MultiplyTempoCommand implements CommandInterface {
     }
     
     private void moveLine(Song seq, int from, int to) {
+        if (seq.peekLine(from).getNotes().isEmpty() && seq.peekLine(to).getNotes().isEmpty())
+            return;
         NoteLine lineFrom = seq.getLine(from);
         NoteLine lineTo = seq.getLine(to);
         lineTo.getNotes().clear();
@@ -2,26 +2,28 @@ package backend.editing.commands;
 
 import backend.editing.CommandInterface;
 import backend.songs.Note;
-import backend.songs.NoteLine;
+import backend.songs.Song;
 
 public class RemoveNoteCommand implements CommandInterface {
 
-    private NoteLine theLine;
+    private Song theSong;
+    private int theLine;
     private Note theNote;
     
-    public RemoveNoteCommand(NoteLine line, Note note) {
+    public RemoveNoteCommand(Song song, int line, Note note) {
+        theSong = song;
         theLine = line;
         theNote = note;
     }
     
     @Override
     public void redo() {
-        theLine.getNotes().remove(theNote);
+        theSong.getLine(theLine).getNotes().remove(theNote);
     }
 
     @Override
     public void undo() {
-        theLine.getNotes().add(theNote);
+        theSong.getLine(theLine).getNotes().add(theNote);
     }
 
 }
@@ -1,14 +1,16 @@
 package backend.editing.commands;
 
 import backend.editing.CommandInterface;
-import backend.songs.NoteLine;
+import backend.songs.Song;
 
 public class RemoveVolumeCommand implements CommandInterface {
 
-    NoteLine theLine;
+    Song theSong;
+    int theLine;
     int theOldVolume;
     
-    public RemoveVolumeCommand(NoteLine line, int oldVolume) {
+    public RemoveVolumeCommand(Song song, int line, int oldVolume) {
+        theSong = song;
         theLine = line;
         theOldVolume = oldVolume;
     }
@@ -20,7 +22,8 @@ public class RemoveVolumeCommand implements CommandInterface {
 
     @Override
     public void undo() {
-        theLine.setVolume(theOldVolume);
+        if (theSong.peekLine(theLine).getVolume() != theOldVolume)
+            theSong.getLine(theLine).setVolume(theOldVolume);
     }
 
 }
@@ -18,6 +18,17 @@ public interface Decoder<T> {
     
     public T decode(File in) throws ParseException, IOException;
     
+    /**
+     * Decodes only what is cheap to read of a file, like the title, tempo and
+     * soundset of a song but not its notes, for a list that doesn't need the
+     * rest yet. By default the whole file is decoded.
+     * @param in the file
+     * @return what was decoded, with parts left to their default values
+     */
+    public default T decodeHeader(File in) throws ParseException, IOException {
+        return decode(in);
+    }
+    
     /**
      * Try several parsers in sequence until one succeeds.
      * @param <T> the generic return type common to all parsers
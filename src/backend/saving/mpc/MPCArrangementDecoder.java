@@ -8,7 +8,7 @@ import java.text.ParseException;
 
 import backend.saving.Decoder;
 import backend.songs.Arrangement;
-import backend.songs.Song;
+import backend.songs.ArrangementEntry;
 
 public class MPCArrangementDecoder implements Decoder<Arrangement> {
 
@@ -67,8 +67,7 @@ public class MPCArrangementDecoder implements Decoder<Arrangement> {
         for (String s : str.split("\n")) {
             String st = inputFile.getParent() + File.separatorChar + s + "]MarioPaint.txt";
             File f = new File(st);
-            Song seq = Decoder.MPC_SEQUENCE_DECODER.decode(f);
-            theArr.getSequences().add(seq);
+            theArr.addEntry(new ArrangementEntry(f, Decoder.MPC_SEQUENCE_DECODER));
         }
         return theArr;
     }
@@ -48,6 +48,53 @@ public class MPCDecoder implements Decoder<Song> {
      *             IF some error occurs during the decoding process.
      */
     public Song decode(File f) throws ParseException, IOException {
+        Song seq = decode(read(f));
+        
+        String fname = f.getName();
+        seq.setTitle(fname.substring(0, fname.lastIndexOf('.')));
+        
+        return seq;
+    }
+
+    /**
+     * Reads the tempo of a Mario Paint Composer song, which is at the end of
+     * the file, without decoding the notes.
+     *
+     * @param f
+     *            A File, that supposedly contains Mario Paint Composer song
+     *            data.
+     * @return A song without notes, at the tempo of the Mario Paint Composer
+     *         song.
+     * @throws ParseException
+     *             If the file has no tempo.
+     * @throws IOException
+     *             If the file is not readable.
+     */
+    @Override
+    public Song decodeHeader(File f) throws ParseException, IOException {
+        String in = read(f);
+        if (in.indexOf('*') == -1 || in.indexOf('%') == -1) {
+            throw new ParseException("Invalid Text File.", 0);
+        }
+        Song seq = new Song();
+        try {
+            seq.setTempo(Double.parseDouble(in.substring(in.indexOf('%') + 1)));
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid tempo.", in.indexOf('%') + 1);
+        }
+        
+        String fname = f.getName();
+        seq.setTitle(fname.substring(0, fname.lastIndexOf('.')));
+        
+        return seq;
+    }
+
+    /**
+     * @param f
+     *            A file.
+     * @return Its lines, joined.
+     */
+    private static String read(File f) throws IOException {
         StringBuilder sb = new StringBuilder();
         
         try (
@@ -59,13 +106,7 @@ public class MPCDecoder implements Decoder<Song> {
                 sb.append(line);
             }
         }
-        
-        Song seq = decode(sb.toString());
-        
-        String fname = f.getName();
-        seq.setTitle(fname.substring(0, fname.lastIndexOf('.')));
-        
-        return seq;
+        return sb.toString();
     }
 
     /**
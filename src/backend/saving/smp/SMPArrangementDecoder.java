@@ -10,7 +10,7 @@ import java.util.Scanner;
 
 import backend.saving.Decoder;
 import backend.songs.Arrangement;
-import backend.songs.Song;
+import backend.songs.ArrangementEntry;
 
 public class SMPArrangementDecoder implements Decoder<Arrangement> {
 
@@ -50,12 +50,11 @@ public class SMPArrangementDecoder implements Decoder<Arrangement> {
     private static Arrangement parseArrText(String basePath, List<String> read) throws ParseException, IOException {
         Arrangement loaded = new Arrangement();
         File f = null;
-		List<Song> seqs = new ArrayList<>();
+        // Only the headers are read; the songs are decoded when needed
         for (String s : read) {
             f = new File(basePath + s + ".txt");
-			seqs.add(Decoder.SMP_SEQUENCE_DECODER.decode(f));
+            loaded.addEntry(new ArrangementEntry(f, Decoder.SMP_SEQUENCE_DECODER));
         }
-		loaded.getSequences().addAll(seqs);
         return loaded;
     }
 
@@ -1,7 +1,9 @@
 package backend.saving.smp;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileReader;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
@@ -46,6 +48,41 @@ public class SMPDecoder implements Decoder<Song> {
         return loaded;
     }
 
+    /**
+     * Reads the tempo, note extensions, time signature and soundset of the
+     * song in the file specified, which come before its notes, and stops
+     * there.
+     *
+     * @param inputFile
+     *            The file to load from.
+     * @return A song without notes.
+     */
+    @Override
+    public Song decodeHeader(File inputFile) throws IOException {
+        List<String> read = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(inputFile))) {
+            String s;
+            while ((s = in.readLine()) != null && isHeader(s)) {
+                read.add(s);
+            }
+        }
+        Song loaded = parseText(read);
+        
+        String fname = inputFile.getName();
+        loaded.setTitle(fname.substring(0, fname.lastIndexOf('.')));
+        
+        return loaded;
+    }
+
+    /**
+     * @param s
+     *            A line of a save file.
+     * @return Whether it has song parameters rather than notes.
+     */
+    private static boolean isHeader(String s) {
+        return s.contains("TEMPO") || s.contains("EXT") || s.contains("TIME") || s.contains("SOUNDSET");
+    }
+
     /**
      * Parses a bunch of text from a save file and makes a
      * <code>StaffSequence</code> out of it.
@@ -62,7 +99,7 @@ public class SMPDecoder implements Decoder<Song> {
         String soundset = Values.DEFAULT_SOUNDFONT;
         
         for (String s : read) {
-            if (s.contains("TEMPO") || s.contains("EXT") || s.contains("TIME") || s.contains("SOUNDSET")) {
+            if (isHeader(s)) {
                 String[] sp = s.split(",");
                 for (String spl : sp) {
                     String num = spl.substring(spl.indexOf(":") + 1);
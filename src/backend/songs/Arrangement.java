@@ -1,25 +1,303 @@
 package backend.songs;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import gui.Settings;
 
 /**
  * <p>An arrangement is a list of {@link Song}s.
+ *
+ * <p>The songs are held as {@link ArrangementEntry}s. An entry read from a
+ * file only knows the song's title, tempo and soundset until the song is
+ * asked for with {@link #getSong} or through {@link #getSequences}: it is
+ * decoded then, and kept while the decoded songs fit in a budget of memory.
+ * Past the budget the least recently used songs are dropped, to be decoded
+ * again when asked for. The songs changed since they were decoded and the
+ * song kept with {@link #keep}, the one on the staff, are never dropped, nor
+ * are the songs that don't come from a file.
+ *
+ * <p>The methods are synchronized: playback decodes the songs coming next on
+ * a thread of its own. A song is decoded without holding the lock, so that
+ * the JavaFX thread isn't kept waiting on a long file.
  */
 public class Arrangement extends Sequence {
 
-    /** The sequences in this arrangement. */
-    private final List<Song> sequences;
+    /** The songs in this arrangement. */
+    private final List<ArrangementEntry> entries = new ArrayList<>();
+
+    /** The view of the songs as a list of songs. */
+    private final List<Song> sequences = new SongList();
+
+    /**
+     * The entries whose song was decoded from their file, with the estimated
+     * size of the song, least recently used first.
+     */
+    private final Map<ArrangementEntry, Long> decoded = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** The most bytes the decoded songs may take. */
+    private long budget;
+
+    /** The bytes the decoded songs take. */
+    private long size = 0;
+
+    /** The song that is never dropped, or <b>null</b>. */
+    private Song kept;
+
+    /** Told about the songs that can't be decoded, or <b>null</b>. */
+    private Consumer<ArrangementEntry> onDecodeError;
+
+    /** Counters of the songs decoded and dropped. */
+    private int decodes = 0;
+    private int evictions = 0;
 
-    /** Default constructor. Makes an empty arrangement. */
+    /**
+     * Default constructor. Makes an empty arrangement within the budget of
+     * {@link Settings#arrangementCacheMegabytes}.
+     */
     public Arrangement() {
-        sequences = new ArrayList<>();
+        this(Settings.arrangementCacheMegabytes * 1024L * 1024L);
     }
 
     /**
-     * Get the sequences in this arrangement.
+     * Makes an empty arrangement.
+     * @param budget The most bytes of decoded songs to keep
+     */
+    public Arrangement(long budget) {
+        setBudget(budget);
+    }
+
+    /**
+     * Get the sequences in this arrangement. Getting a song decodes it if it
+     * isn't in memory; a song put in the list is held in memory.
      */
     public List<Song> getSequences() {
         return sequences;
     }
+
+    /**
+     * Get the entries of this arrangement, which can't be changed through
+     * the list.
+     */
+    public List<ArrangementEntry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Add a song at the end of this arrangement.
+     * @param entry The song
+     */
+    public synchronized void addEntry(ArrangementEntry entry) {
+        entries.add(entry);
+    }
+
+    /**
+     * Remove a song from this arrangement.
+     * @param i The index of the song
+     * @return The entry of the song
+     */
+    public synchronized ArrangementEntry removeEntry(int i) {
+        ArrangementEntry entry = entries.remove(i);
+        if (!entries.contains(entry)) {
+            forget(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Move a song in this arrangement.
+     * @param from The index of the song
+     * @param to Its new index, once it is removed from the old one
+     */
+    public synchronized void moveEntry(int from, int to) {
+        entries.add(to, entries.remove(from));
+    }
+
+    /**
+     * Get a song of this arrangement, decoding it if it isn't in memory.
+     * @param i The index of the song
+     * @return The song
+     */
+    public Song getSong(int i) {
+        ArrangementEntry entry;
+        synchronized (this) {
+            entry = entries.get(i);
+        }
+        return getSong(entry);
+    }
+
+    /**
+     * Get the song of an entry of this arrangement, decoding it if it isn't
+     * in memory.
+     * @param entry The entry
+     * @return The song
+     */
+    public Song getSong(ArrangementEntry entry) {
+        boolean failedBefore;
+        synchronized (this) {
+            Song song = entry.song;
+            if (song != null) {
+                // counts as a use
+                decoded.get(entry);
+                return song;
+            }
+            failedBefore = entry.getError() != null;
+        }
+
+        Song song = entry.decode();
+        long songSize = song.estimateSize();
+
+        Consumer<ArrangementEntry> tell = null;
+        synchronized (this) {
+            decodes++;
+            if (entry.song != null) {
+                // Another thread decoded it meanwhile; keep the song it got
+                decoded.get(entry);
+                return entry.song;
+            }
+            if (entry.getError() != null && !failedBefore) {
+                tell = onDecodeError;
+            }
+            // An entry that left the arrangement meanwhile isn't accounted for
+            if (entries.contains(entry)) {
+                entry.decodedChanges = song.getChanges();
+                entry.song = song;
+                decoded.put(entry, songSize);
+                size += songSize;
+                trim();
+            }
+        }
+        if (tell != null) {
+            tell.accept(entry);
+        }
+        return song;
+    }
+
+    /**
+     * Keep a song from being dropped; the one kept before may be.
+     * @param song The song, or <b>null</b> to keep none
+     */
+    public synchronized void keep(Song song) {
+        kept = song;
+        trim();
+    }
+
+    /**
+     * Set what to do when a song can't be decoded, like telling the user.
+     * The song is then empty; it is told once until it decodes again.
+     * @param onDecodeError Given the entry of the song, see
+     *            {@link ArrangementEntry#getError}, on the thread decoding it
+     *            once this arrangement is unlocked; or <b>null</b>
+     */
+    public synchronized void setOnDecodeError(Consumer<ArrangementEntry> onDecodeError) {
+        this.onDecodeError = onDecodeError;
+    }
+
+    /**
+     * @param budget The most bytes of decoded songs to keep
+     */
+    public synchronized void setBudget(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("Invalid arrangement budget " + budget);
+        }
+        this.budget = budget;
+        trim();
+    }
+
+    /** @return The bytes the decoded songs take. */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Drop the least recently used songs that may be dropped until the budget
+     * is met.
+     */
+    private void trim() {
+        Iterator<Map.Entry<ArrangementEntry, Long>> it = decoded.entrySet().iterator();
+        while (size > budget && it.hasNext()) {
+            Map.Entry<ArrangementEntry, Long> e = it.next();
+            ArrangementEntry entry = e.getKey();
+            Song song = entry.song;
+            if (song == kept || song.getChanges() != entry.decodedChanges) {
+                continue;
+            }
+            it.remove();
+            entry.song = null;
+            size -= e.getValue();
+            evictions++;
+        }
+    }
+
+    /**
+     * Stop accounting for the decoded song of an entry that left this
+     * arrangement.
+     * @param entry The entry
+     */
+    private void forget(ArrangementEntry entry) {
+        Long songSize = decoded.remove(entry);
+        if (songSize != null) {
+            size -= songSize;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d songs, %d decoded (%d KB of %d KB), %d decodes, %d evictions",
+                entries.size(), decoded.size(), size / 1024, budget / 1024, decodes, evictions);
+    }
+
+    /**
+     * The songs of the entries as a list of songs.
+     */
+    private class SongList extends AbstractList<Song> {
+
+        @Override
+        public int size() {
+            synchronized (Arrangement.this) {
+                return entries.size();
+            }
+        }
+
+        @Override
+        public Song get(int index) {
+            return getSong(index);
+        }
+
+        @Override
+        public Song set(int index, Song element) {
+            synchronized (Arrangement.this) {
+                Song old = getSong(index);
+                if (old != element) {
+                    removeEntry(index);
+                    entries.add(index, new ArrangementEntry(element));
+                }
+                return old;
+            }
+        }
+
+        @Override
+        public void add(int index, Song element) {
+            synchronized (Arrangement.this) {
+                entries.add(index, new ArrangementEntry(element));
+                modCount++;
+            }
+        }
+
+        @Override
+        public Song remove(int index) {
+            synchronized (Arrangement.this) {
+                Song old = getSong(index);
+                removeEntry(index);
+                modCount++;
+                return old;
+            }
+        }
+    }
 }
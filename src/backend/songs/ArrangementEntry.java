@@ -0,0 +1,146 @@
+package backend.songs;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+
+import backend.saving.Decoder;
+
+/**
+ * <p>A song of an {@link Arrangement}. An entry read from a file has the
+ * file and what the header of the file says about the song: title, tempo
+ * and soundset. The song itself is decoded by the arrangement the first
+ * time it is asked for, and may be dropped again to stay within the
+ * arrangement's budget of memory.
+ *
+ * <p>An entry made from a song in memory, like one added from the staff,
+ * has no file and always holds its song.
+ */
+public class ArrangementEntry {
+
+    /** The file of the song, or <b>null</b> for a song in memory. */
+    private final File file;
+
+    /** Decodes the file. */
+    private final Decoder<Song> decoder;
+
+    /** What the header of the file says. */
+    private final String title;
+    private final double tempo;
+    private final String soundset;
+
+    /**
+     * The song, or <b>null</b> while not decoded. Set by the arrangement,
+     * read by any thread.
+     */
+    volatile Song song;
+
+    /** The changes of the song when it was decoded, see {@link Song#getChanges}. */
+    int decodedChanges;
+
+    /** Why the song couldn't be decoded the last time, or <b>null</b>. */
+    private volatile Exception error;
+
+    /**
+     * Reads the header of a song file.
+     * @param file The file of the song
+     * @param decoder Decodes the file
+     * @throws ParseException if the decoder can't read the header
+     * @throws IOException if the file can't be read
+     */
+    public ArrangementEntry(File file, Decoder<Song> decoder) throws ParseException, IOException {
+        Song header = decoder.decodeHeader(file);
+        this.file = file;
+        this.decoder = decoder;
+        this.title = header.getTitle();
+        this.tempo = header.getTempo();
+        this.soundset = header.getSoundset();
+    }
+
+    /**
+     * Makes an entry holding a song in memory.
+     * @param song The song
+     */
+    public ArrangementEntry(Song song) {
+        this.file = null;
+        this.decoder = null;
+        this.title = song.getTitle();
+        this.tempo = song.getTempo();
+        this.soundset = song.getSoundset();
+        this.song = song;
+    }
+
+    /**
+     * @return The file of the song, or <b>null</b> for a song in memory
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return Whether the song is in memory, so that getting it from the
+     *         arrangement takes no decoding
+     */
+    public boolean isLoaded() {
+        return song != null;
+    }
+
+    /**
+     * @return The title of the song
+     */
+    public String getTitle() {
+        Song s = song;
+        return (s != null) ? s.getTitle() : title;
+    }
+
+    /**
+     * @return The tempo of the song
+     */
+    public double getTempo() {
+        Song s = song;
+        return (s != null) ? s.getTempo() : tempo;
+    }
+
+    /**
+     * @return The soundset bound to the song
+     */
+    public String getSoundset() {
+        Song s = song;
+        return (s != null) ? s.getSoundset() : soundset;
+    }
+
+    /**
+     * @return Why the song couldn't be decoded the last time it was, or
+     *         <b>null</b> if it could
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    /**
+     * Decodes the song from the file. If that fails the song is empty, with
+     * what the header said, and {@link #getError} tells why.
+     * @return The song
+     */
+    Song decode() {
+        try {
+            Song decoded = decoder.decode(file);
+            error = null;
+            return decoded;
+        } catch (ParseException | IOException | RuntimeException e) {
+            // The decoders throw runtime exceptions on what they can't parse
+            e.printStackTrace();
+            error = e;
+            Song empty = new Song();
+            empty.setTitle(title);
+            empty.setTempo(tempo);
+            empty.setSoundset(soundset);
+            return empty;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getTitle();
+    }
+}
@@ -30,11 +30,6 @@ public class Note {
      * The instrument this note belongs to.
      */
     private InstrumentIndex instrument;
-    
-    /**
-     * True if this note is currently selected with the clipboard.
-     */
-    private boolean selected = false;
 
     /**
      * Creates a regular note of a certain instrument with a given position and
@@ -102,22 +97,6 @@ public class Note {
         return instrument;
     }
     
-    /**
-     * Checks whether this note is selected.
-     * @return True if the note is selected
-     */
-    public boolean isSelected() {
-        return selected;
-    }
-    
-    /**
-     * Set the selected flag of this note.
-     * @param b The new value for the selected flag
-     */
-    public void setSelected(boolean b) {
-        this.selected = b;
-    }
-    
     /**
      * Get the pitch of this note.
      * @return The pitch of this note
@@ -1,8 +1,8 @@
 package backend.songs;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import gui.Values;
 
@@ -16,18 +16,92 @@ import gui.Values;
  * notes in the list determines how they are ultimately displayed; the last
  * element will end up at the front. Typically we want that note to be the most
  * recently-placed.
+ * 
+ * <p>The notes are stored packed, one <code>int</code> each (see
+ * {@link PackedNote}), in an array that grows as needed. The list returned by
+ * {@link #getNotes} is a view over that array: reading it creates new
+ * {@link Note} objects and writing to it packs the given ones, so a note
+ * taken from the list has to be put back, or changed through this class, for
+ * a change to stick. Code that only reads the notes can use
+ * {@link #size()} and {@link #getPacked(int)} and create no object at all.
+ * 
+ * <p>Lines with many notes also keep a bitmap of the notes they have, one
+ * bit per packed value, so that checking for a note takes constant time
+ * however many notes are stacked on the line. The notes keep the order they
+ * were added in.
+ * 
+ * <p>The {@link #EMPTY} line stands for all the lines of a song that were
+ * never written to; changing it throws an
+ * {@link UnsupportedOperationException}.
  */
 public class NoteLine {
 
+    /**
+     * The shared empty line at the default volume, which can't be changed.
+     * Setting its volume to the volume it has is allowed and does nothing.
+     */
+    public static final NoteLine EMPTY = new NoteLine(Values.DEFAULT_VELOCITY, true);
+
     /**
      * The volume of this line.
      */
     private int volume;
 
     /**
-     * The notes on this line.
+     * The notes on this line, packed. Only the first {@link #count} are used.
+     */
+    private int[] packed;
+
+    /**
+     * The number of notes on this line.
+     */
+    private int count = 0;
+
+    /**
+     * Lines with more notes than this keep the {@link #present} bitmap.
      */
-    private final List<Note> notes;
+    private static final int INDEX_THRESHOLD = 16;
+
+    /**
+     * One bit per packed note value on this line, or <b>null</b> until the line has more than
+     * {@link #INDEX_THRESHOLD} notes.
+     */
+    private long[] present;
+
+    /**
+     * The number of notes on this line equal to another one, while
+     * {@link #present} is kept. Removing a note only clears its bit if there
+     * are none.
+     */
+    private int duplicates = 0;
+
+    /**
+     * The list view of the notes.
+     */
+    private final NoteList notes = new NoteList();
+
+    /**
+     * Counts the changes of notes and volume, see {@link #getVersion}.
+     */
+    private int changes = 0;
+
+    /**
+     * Whether this line can't be changed.
+     */
+    private final boolean frozen;
+
+    /**
+     * The song holding this line and its index there, told when the line
+     * changes. <b>null</b> if no song holds it.
+     */
+    private Song owner;
+    private int index;
+
+    /**
+     * The generation of the song this line was stored in. Once the song is
+     * copied the line is shared with the copy and can't be changed.
+     */
+    private Object generation;
 
     /**
      * Create an empty line of notes at the default volume.
@@ -42,8 +116,13 @@ public class NoteLine {
      * @param volume The volume
      */
     public NoteLine(int volume) {
-        this.notes = new ArrayList<>();
+        this(volume, false);
+    }
+
+    private NoteLine(int volume, boolean frozen) {
+        this.packed = new int[frozen ? 0 : 4];
         this.volume = (checkVolumeValue(volume)) ? volume : Values.DEFAULT_VELOCITY;
+        this.frozen = frozen;
     }
     
     /**
@@ -51,21 +130,47 @@ public class NoteLine {
      * @param oth Other StaffNoteLine to copy
      */
     public NoteLine(NoteLine oth) {
-        this.notes = oth.notes.stream()
-                .map(Note::new)
-                .collect(Collectors.toList());
+        this.packed = new int[Math.max(oth.count, 4)];
+        this.count = oth.count;
+        System.arraycopy(oth.packed, 0, this.packed, 0, oth.count);
+        
+        if (oth.present != null) {
+            this.present = oth.present.clone();
+            this.duplicates = oth.duplicates;
+        }
         
         this.volume = oth.volume;
+        this.frozen = false;
     }
 
     /**
-     * Get the reference to the list of notes held by this line.
+     * Get the list of notes held by this line. Changes to the list change the
+     * line.
      * @return The list of notes on this line
      */
     public List<Note> getNotes() {
         return notes;
     }
 
+    /**
+     * Get the number of notes on this line.
+     * @return The number of notes
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Get a note of this line without creating a {@link Note}.
+     * @param index The index of the note in {@link #getNotes}
+     * @return The note, packed as described in {@link PackedNote}
+     */
+    public int getPacked(int index) {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + count);
+        return packed[index];
+    }
+
     /**
      * Get the volume of this line.
      * @return The volume of this line
@@ -81,16 +186,111 @@ public class NoteLine {
      * @param volume The volume to set
      */
     public void setVolume(int volume) {
-        if (checkVolumeValue(volume)) {
+        if (checkVolumeValue(volume) && volume != this.volume) {
+            checkWritable();
             this.volume = volume;
+            changed();
         }
     }
 
+    /**
+     * Get a number that changes every time the notes or the volume of this
+     * line are modified. Comparing it with a previously read value tells
+     * whether something derived from this line is out of date.
+     * @return The version of this line
+     */
+    public int getVersion() {
+        return changes;
+    }
+
+    /**
+     * Called by the song that holds this line.
+     * @param owner The song
+     * @param index The index of this line in it
+     * @param generation The generation of the song
+     */
+    void setOwner(Song owner, int index, Object generation) {
+        this.owner = owner;
+        this.index = index;
+        this.generation = generation;
+    }
+
+    /**
+     * @param song A song
+     * @param generation Its generation
+     * @return Whether this line belongs to that generation of the song, and
+     *         isn't shared with a copy
+     */
+    boolean isOwnedBy(Song song, Object generation) {
+        return owner == song && this.generation == generation;
+    }
+
+    /**
+     * Count a change of the notes or the volume, and tell the song holding
+     * this line.
+     */
+    private void changed() {
+        changes++;
+        if (owner != null)
+            owner.lineChanged(index, count == 0);
+    }
+
+    /**
+     * Tell the song holding this line that a note was added, once it is in
+     * {@link #packed}.
+     * @param p The packed note
+     */
+    private void noteAdded(int p) {
+        if (owner != null)
+            owner.noteAdded(index, p);
+    }
+
+    /**
+     * Tell the song holding this line that a note was removed, once it is
+     * out of {@link #packed}.
+     * @param p The packed note
+     */
+    private void noteRemoved(int p) {
+        if (owner != null)
+            owner.noteRemoved(index, p, this);
+    }
+
+    /**
+     * @param ordinal An instrument ordinal
+     * @return Whether this line has a note of that instrument
+     */
+    boolean hasInstrument(int ordinal) {
+        for (int i = 0; i < count; i++) {
+            if (PackedNote.instrumentOrdinal(packed[i]) == ordinal)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return An estimate of the bytes this line takes
+     */
+    long estimateSize() {
+        return 96 + 4L * packed.length + (present != null ? 16 + 8L * present.length : 0);
+    }
+
     @Override
     public String toString() {
         return notes.toString();
     }
     
+    /**
+     * @throws UnsupportedOperationException if this line can't be changed:
+     *             it is the empty line, or its song was copied since it
+     *             was taken from it
+     */
+    private void checkWritable() {
+        if (frozen)
+            throw new UnsupportedOperationException("The empty line can't be changed");
+        if (owner != null && !owner.isGeneration(generation))
+            throw new UnsupportedOperationException("Line shared with a copy of its song; get it from the song again");
+    }
+
     /**
      * Check that some value is in the accepted range for volumes.
      * @param volume The volume value to check
@@ -100,4 +300,160 @@ public class NoteLine {
         return volume >= Values.MIN_VELOCITY && volume <= Values.MAX_VELOCITY;
     }
 
+    /**
+     * @param p A packed note
+     * @return The index of the first equal note on this line, or -1
+     */
+    private int indexOf(int p) {
+        if (present != null && (present[p >>> 6] & 1L << p) == 0)
+            return -1;
+        for (int i = 0; i < count; i++) {
+            if (packed[i] == p)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Add a note to the bitmap, if kept, once it is in {@link #packed}.
+     * Starts the bitmap if the line has become big enough.
+     * @param p The packed note
+     */
+    private void index(int p) {
+        if (present == null) {
+            if (count > INDEX_THRESHOLD) {
+                present = new long[(PackedNote.VALUE + 1) / Long.SIZE];
+                for (int i = 0; i < count; i++)
+                    index(packed[i]);
+            }
+            return;
+        }
+        if ((present[p >>> 6] & 1L << p) != 0)
+            duplicates++;
+        else
+            present[p >>> 6] |= 1L << p;
+    }
+
+    /**
+     * Remove a note from the bitmap, if kept, once it is out of
+     * {@link #packed}.
+     * @param p The packed note
+     */
+    private void unindex(int p) {
+        if (present == null)
+            return;
+        if (duplicates > 0) {
+            for (int i = 0; i < count; i++) {
+                if (packed[i] == p) {
+                    duplicates--;
+                    return;
+                }
+            }
+        }
+        present[p >>> 6] &= ~(1L << p);
+    }
+
+    /**
+     * The view of the packed notes as a list.
+     */
+    private class NoteList extends AbstractList<Note> {
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        @Override
+        public Note get(int index) {
+            return PackedNote.unpack(getPacked(index));
+        }
+
+        @Override
+        public Note set(int index, Note element) {
+            Note old = get(index);
+            checkWritable();
+            int p = packed[index];
+            packed[index] = PackedNote.pack(element);
+            unindex(p);
+            index(packed[index]);
+            noteRemoved(p);
+            noteAdded(packed[index]);
+            changed();
+            return old;
+        }
+
+        @Override
+        public void add(int index, Note element) {
+            if (index < 0 || index > count)
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + count);
+            checkWritable();
+            int p = PackedNote.pack(element);
+            if (count == packed.length)
+                packed = Arrays.copyOf(packed, Math.max(count * 2, 4));
+            System.arraycopy(packed, index, packed, index + 1, count - index);
+            packed[index] = p;
+            count++;
+            index(p);
+            noteAdded(p);
+            modCount++;
+            changed();
+        }
+
+        @Override
+        public Note remove(int index) {
+            Note old = get(index);
+            removeAt(index);
+            return old;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            int index = indexOf(o);
+            if (index < 0)
+                return false;
+            removeAt(index);
+            return true;
+        }
+
+        /**
+         * Removes the note at an index, without unpacking it.
+         * @param index The index of the note
+         */
+        private void removeAt(int index) {
+            checkWritable();
+            int p = packed[index];
+            System.arraycopy(packed, index + 1, packed, index, count - index - 1);
+            count--;
+            unindex(p);
+            noteRemoved(p);
+            modCount++;
+            changed();
+        }
+
+        @Override
+        public void clear() {
+            if (count > 0) {
+                checkWritable();
+                int n = count;
+                count = 0;
+                present = null;
+                duplicates = 0;
+                for (int i = 0; i < n; i++)
+                    noteRemoved(packed[i]);
+                modCount++;
+                changed();
+            }
+        }
+
+        @Override
+        public int indexOf(Object o) {
+            return o instanceof Note ? NoteLine.this.indexOf(PackedNote.pack((Note) o)) : -1;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return indexOf(o) >= 0;
+        }
+    }
+
 }
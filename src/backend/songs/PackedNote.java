@@ -0,0 +1,104 @@
+package backend.songs;
+
+import gui.InstrumentIndex;
+import gui.Values;
+
+/**
+ * <p>A {@link Note} packed in one <code>int</code>, the way {@link NoteLine}
+ * stores its notes.
+ *
+ * <p>From the lowest bit: the instrument ordinal (5 bits), the vertical
+ * position (5 bits), the accidental ordinal (3 bits), the mute modifier
+ * ordinal (2 bits). Two packed notes are the same note when they are
+ * equal. Every packed note is at most {@link #VALUE}.
+ */
+public final class PackedNote {
+
+    private static final int POSITION_SHIFT = 5;
+    private static final int ACCIDENTAL_SHIFT = 10;
+    private static final int MUTE_SHIFT = 13;
+
+    /** All the bits a packed note uses. */
+    public static final int VALUE = (1 << 15) - 1;
+
+    private static final InstrumentIndex[] INSTRUMENTS = InstrumentIndex.values();
+    private static final Accidental[] ACCIDENTALS = Accidental.values();
+    private static final MuteModifier[] MUTES = MuteModifier.values();
+
+    private PackedNote() {
+    }
+
+    /**
+     * Packs a note.
+     * @param note The note
+     * @return The packed note
+     */
+    public static int pack(Note note) {
+        return pack(note.getInstrument(), note.getVerticalPosition(),
+                note.getAccidental(), note.getMuteModifier());
+    }
+
+    /**
+     * Packs the fields of a note.
+     * @param instrument The instrument
+     * @param verticalPosition The position, from 0 to
+     *            {@link Values#NOTES_IN_A_LINE} - 1
+     * @param accidental The accidental
+     * @param muteModifier The mute modifier
+     * @return The packed note
+     */
+    public static int pack(InstrumentIndex instrument, int verticalPosition, Accidental accidental,
+            MuteModifier muteModifier) {
+        if (verticalPosition < 0 || verticalPosition >= Values.NOTES_IN_A_LINE)
+            throw new IllegalArgumentException("Invalid vertical position " + verticalPosition);
+        return instrument.ordinal()
+                | verticalPosition << POSITION_SHIFT
+                | accidental.ordinal() << ACCIDENTAL_SHIFT
+                | muteModifier.ordinal() << MUTE_SHIFT;
+    }
+
+    /**
+     * Unpacks a note. The result is a new object, changing it does not change
+     * the packed note.
+     * @param packed The packed note
+     * @return The note
+     */
+    public static Note unpack(int packed) {
+        return new Note(getInstrument(packed), getVerticalPosition(packed),
+                getAccidental(packed), getMuteModifier(packed));
+    }
+
+    /** @return The instrument ordinal of a packed note. */
+    public static int instrumentOrdinal(int packed) {
+        return packed & 0x1F;
+    }
+
+    /** @return The instrument of a packed note. */
+    public static InstrumentIndex getInstrument(int packed) {
+        return INSTRUMENTS[instrumentOrdinal(packed)];
+    }
+
+    /** @return The vertical position of a packed note. */
+    public static int getVerticalPosition(int packed) {
+        return (packed >>> POSITION_SHIFT) & 0x1F;
+    }
+
+    /** @return The accidental of a packed note. */
+    public static Accidental getAccidental(int packed) {
+        return ACCIDENTALS[(packed >>> ACCIDENTAL_SHIFT) & 0x7];
+    }
+
+    /** @return The mute modifier of a packed note. */
+    public static MuteModifier getMuteModifier(int packed) {
+        return MUTES[(packed >>> MUTE_SHIFT) & 0x3];
+    }
+
+    /**
+     * @return The MIDI pitch of a packed note, computed like
+     *         {@link Note#getPitch} without creating a {@link Pitch}.
+     */
+    public static int pitchValue(int packed) {
+        return Values.STAFF_NOTES[getVerticalPosition(packed)].getValue()
+                + getAccidental(packed).getOffset();
+    }
+}
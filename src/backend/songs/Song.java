@@ -1,9 +1,11 @@
 package backend.songs;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Objects;
 
+import gui.InstrumentIndex;
 import gui.Values;
 
 /**
@@ -13,8 +15,29 @@ import gui.Values;
  * 
  * <p>The internal list of note lines is not directly accessible, but a
  * {@link #getLine} method is provided to access the modifiable
- * lines. The method will resize the song with empty lines if necessary, making
- * songs virtually infinite.
+ * lines. The method will create the line if necessary, making songs
+ * virtually infinite. Code that only reads a line should use
+ * {@link #peekLine}, which gives the shared {@link NoteLine#EMPTY} line for
+ * the lines never written to.
+ * 
+ * <p>The lines are stored in chunks of {@link #CHUNK_SIZE}, and a chunk is
+ * only allocated when one of its lines is asked for with {@link #getLine}, so
+ * the memory a song takes follows its notes rather than how far it goes.
+ * 
+ * <p>The lines tell their song when they become empty or not empty, so that
+ * the song knows its last non-empty line and {@link #getLength} takes
+ * constant time. They also tell it about each note added and removed, so
+ * that it keeps, for each instrument, its number of notes and the lines it
+ * is on: {@link #nextLineWith} then skips the lines without the
+ * instruments looked for.
+ * 
+ * <p>The copy constructor takes constant time: the copy shares the chunks
+ * and lines of the song, and whichever of the two songs changes a chunk or a
+ * line first copies it. A line taken from a song before it was copied can't
+ * be changed any more, so code that keeps lines around, like the editing
+ * commands, keeps their index and gets them from the song again. This also
+ * makes a copy immutable as far as its lines go, so that another thread,
+ * like the playback one, can read it while this song is edited.
  */
 public class Song extends Sequence {
 
@@ -30,8 +53,54 @@ public class Song extends Sequence {
     /** The soundset bound to this song (assumed to be loaded). */
     private String soundsetBinding = "";
 
-    /** The note lines in this song. */
-    private final List<NoteLine> theLines;
+    /** The number of lines in a chunk, a power of two. */
+    public static final int CHUNK_SIZE = 256;
+
+    private static final int CHUNK_BITS = Integer.numberOfTrailingZeros(CHUNK_SIZE);
+
+    /** Some lines of a song, and the generation of the song they belong to. */
+    private static class Chunk {
+        final Object generation;
+        final NoteLine[] lines;
+
+        Chunk(Object generation, NoteLine[] lines) {
+            this.generation = generation;
+            this.lines = lines;
+        }
+    }
+
+    /**
+     * The note lines in this song, by chunk. A chunk is <b>null</b> until one
+     * of its lines is created, and so is a line.
+     */
+    private Chunk[] chunks;
+
+    /** The indices of the note lines that have notes. */
+    private BitSet nonEmptyLines = new BitSet();
+
+    /**
+     * Changes whenever the song is copied. The chunks and lines of an older
+     * generation may be shared with a copy, and are copied before a change.
+     */
+    private Object generation = new Object();
+
+    /** Whether the chunk table and the non-empty lines are shared with a copy. */
+    private boolean shared = false;
+
+    /** For each instrument ordinal, the indices of the lines that have its notes. */
+    private BitSet[] instrumentLines = new BitSet[Values.NUM_INSTRUMENTS];
+
+    /** For each instrument ordinal, the number of its notes in this song. */
+    private int[] instrumentNotes = new int[Values.NUM_INSTRUMENTS];
+
+    /** One bit per instrument ordinal whose lines are shared with a copy. */
+    private int sharedInstruments = 0;
+
+    /** Run when a line changes, see {@link #setOnChange}. */
+    private Runnable onChange;
+
+    /** Counts the changes of this song, see {@link #getChanges}. */
+    private int changes = 0;
 
     /** Default constructor. Makes an empty song. */
     public Song() {
@@ -39,15 +108,14 @@ public class Song extends Sequence {
     }
     
     /**
-     * Makes an empty song of a specified length.
+     * Makes an empty song of a specified length. Songs have no fixed length,
+     * so this only sets how far the song goes before its table of chunks has
+     * to grow.
      * @param length The initial length
      */
     public Song(int length) {
-        theLines = new ArrayList<>();
-        
-        for (int i = 0; i < length; i++) {
-            theLines.add(new NoteLine());
-        }
+        chunks = new Chunk[chunkOf(Math.max(length - 1, 0)) + 1];
+        Arrays.setAll(instrumentLines, k -> new BitSet());
     }
     
     /**
@@ -64,17 +132,36 @@ public class Song extends Sequence {
      */
     private Song(String title, List<NoteLine> lines) {
     	super(title);
-        this.theLines = lines.stream()
-                .map(NoteLine::new)
-                .collect(Collectors.toList());
+        chunks = new Chunk[chunkOf(Math.max(lines.size() - 1, 0)) + 1];
+        Arrays.setAll(instrumentLines, k -> new BitSet());
+        for (int i = 0; i < lines.size(); i++) {
+            NoteLine line = lines.get(i);
+            // lines equal to the empty one needn't be stored
+            if (line.size() > 0 || line.getVolume() != NoteLine.EMPTY.getVolume()) {
+                put(i, new NoteLine(line));
+                for (int k = 0; k < line.size(); k++) {
+                    noteAdded(i, line.getPacked(k));
+                }
+            }
+        }
     }
     
     /**
-     * Copy constructor for a song.
+     * Copy constructor for a song. Takes constant time: both songs share
+     * their lines until they change them.
      * @param sequence A song to copy
      */
     public Song(Song sequence) {
-    	this(sequence.getTitle(), sequence.theLines);
+    	super(sequence.getTitle());
+        chunks = sequence.chunks;
+        nonEmptyLines = sequence.nonEmptyLines;
+        shared = true;
+        sequence.shared = true;
+        instrumentLines = sequence.instrumentLines.clone();
+        instrumentNotes = sequence.instrumentNotes.clone();
+        sharedInstruments = -1;
+        sequence.sharedInstruments = -1;
+        sequence.generation = new Object();
     	this.tempo = sequence.tempo;
         System.arraycopy(sequence.noteExtensions, 0, this.noteExtensions, 0, this.noteExtensions.length);
     	this.timeSignature = sequence.timeSignature;
@@ -93,12 +180,16 @@ public class Song extends Sequence {
      * @param tempo A tempo value
      */
     public void setTempo(double tempo) {
+        if (tempo != this.tempo) {
+            changes++;
+        }
         this.tempo = tempo;
     }
 
     /**
      * Get the array holding sustain flags for each instrument in this song.
-     * @return
+     * @return The array, which is changed with {@link #setNoteExtensions}
+     *         rather than directly
      */
     public boolean[] getNoteExtensions() {
         return noteExtensions;
@@ -114,6 +205,9 @@ public class Song extends Sequence {
             throw new IllegalArgumentException("setNoteExtensions expects an array of length " + noteExtensions.length);
         }
         
+        if (!Arrays.equals(exts, noteExtensions)) {
+            changes++;
+        }
         System.arraycopy(exts, 0, noteExtensions, 0, noteExtensions.length);
     }
 
@@ -129,6 +223,9 @@ public class Song extends Sequence {
      * @param timeSignature A time signature
      */
     public void setTimeSignature(TimeSignature timeSignature) {
+        if (!Objects.equals(timeSignature, this.timeSignature)) {
+            changes++;
+        }
         this.timeSignature = timeSignature;
     }
 
@@ -144,8 +241,20 @@ public class Song extends Sequence {
      * @param soundsetBinding The soundset to bind
      */
     public void setSoundset(String soundsetBinding) {
+        if (!Objects.equals(soundsetBinding, this.soundsetBinding)) {
+            changes++;
+        }
         this.soundsetBinding = soundsetBinding;
     }
+
+    @Override
+    public void setTitle(String title) {
+        String old = getTitle();
+        super.setTitle(title);
+        if (!getTitle().equals(old)) {
+            changes++;
+        }
+    }
     
     /**
      * <p>Get the length of this song.
@@ -157,11 +266,7 @@ public class Song extends Sequence {
      * @return the number of playable lines in this song
      */
     public int getLength() {
-        int lastNonempty = theLines.size() - 1;
-        
-        while (lastNonempty >= 0 && theLines.get(lastNonempty).getNotes().isEmpty()) {
-            lastNonempty--;
-        }
+        int lastNonempty = nonEmptyLines.length() - 1;
         
         if (lastNonempty < 0) {
             return 0;
@@ -176,19 +281,40 @@ public class Song extends Sequence {
     /**
      * <p>Get a line of notes in this song.
      * 
-     * <p>This method extends the song with empty lines if the parameter is
-     * greater than the current length.
+     * <p>This method creates the line, empty, if it wasn't yet. Use
+     * {@link #peekLine} to only read it.
      * 
      * @param i The index of the line to get (first index 0)
      * @return The line at index i
      * @throws IndexOutOfBoundsException if i < 0
      */
     public NoteLine getLine(int i) {
-        if (i >= theLines.size()) {
-            resize(i + 1);
+        NoteLine line = find(i);
+        if (line == null) {
+            line = new NoteLine();
+            put(i, line);
+        } else if (!line.isOwnedBy(this, generation)) {
+            // shared with a copy of this song
+            line = new NoteLine(line);
+            put(i, line);
         }
         
-        return theLines.get(i);
+        return line;
+    }
+
+    /**
+     * <p>Get a line of notes in this song to read it.
+     * 
+     * <p>Unlike {@link #getLine}, this creates nothing: a line that was never
+     * written to is given as {@link NoteLine#EMPTY}, which can't be changed.
+     * 
+     * @param i The index of the line to get (first index 0)
+     * @return The line at index i
+     * @throws IndexOutOfBoundsException if i < 0
+     */
+    public NoteLine peekLine(int i) {
+        NoteLine line = find(i);
+        return (line != null) ? line : NoteLine.EMPTY;
     }
     
     @Override
@@ -196,22 +322,190 @@ public class Song extends Sequence {
         StringBuilder out = new StringBuilder();
         out.append("Tempo = " + tempo + "\n");
         out.append("Extensions = " + noteExtensions + "\n");
-        out.append(theLines.toString() + "\n");
+        NoteLine[] lines = new NoteLine[getLength()];
+        Arrays.setAll(lines, this::peekLine);
+        out.append(Arrays.toString(lines) + "\n");
         return out.toString();
     }
+
+    /**
+     * @param i The index of a line
+     * @return The index of its chunk
+     */
+    private static int chunkOf(int i) {
+        if (i < 0) {
+            throw new IndexOutOfBoundsException("Index " + i + " out of bounds");
+        }
+        return i >>> CHUNK_BITS;
+    }
+
+    /**
+     * @param i The index of a line
+     * @return The line, or <b>null</b> if it wasn't created
+     */
+    private NoteLine find(int i) {
+        int c = chunkOf(i);
+        Chunk chunk = (c < chunks.length) ? chunks[c] : null;
+        return (chunk != null) ? chunk.lines[i & (CHUNK_SIZE - 1)] : null;
+    }
     
     /**
-     * <p>Add empty lines to set the length of the song.</p>
+     * Store a line of this song, making it tell the song about its notes.
+     * The chunk table grows and the chunk is allocated as needed, and they
+     * are copied first if shared with a copy of this song.
+     * 
+     * @param i The index of the line
+     * @param line The line
+     */
+    private void put(int i, NoteLine line) {
+        int c = chunkOf(i);
+        if (shared) {
+            chunks = chunks.clone();
+            nonEmptyLines = (BitSet) nonEmptyLines.clone();
+            shared = false;
+        }
+        if (c >= chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.max(c + 1, chunks.length * 2));
+        }
+        Chunk chunk = chunks[c];
+        if (chunk == null) {
+            chunk = chunks[c] = new Chunk(generation, new NoteLine[CHUNK_SIZE]);
+        } else if (chunk.generation != generation) {
+            chunk = chunks[c] = new Chunk(generation, chunk.lines.clone());
+        }
+        chunk.lines[i & (CHUNK_SIZE - 1)] = line;
+        line.setOwner(this, i, generation);
+        nonEmptyLines.set(i, line.size() > 0);
+    }
+
+    /**
+     * Get the number of notes of an instrument in this song.
+     * @param inst The instrument
+     * @return Its number of notes
+     */
+    public int getNoteCount(InstrumentIndex inst) {
+        return instrumentNotes[inst.ordinal()];
+    }
+
+    /**
+     * <p>Find the next line with notes of some instruments.
      * 
-     * <p>Without effect if the length is already greater or equal.</p>
+     * <p>The lines of each instrument are kept as they change, so going
+     * through the lines of a few instruments this way skips the others
+     * without reading them.
      * 
-     * @param n the desired length
+     * @param instruments One bit per instrument ordinal to look for
+     * @param from The index of the first line to look at
+     * @return The index of the first line from there with a note of one of
+     *         the instruments, or -1 if there is none
+     */
+    public int nextLineWith(int instruments, int from) {
+        int next = -1;
+        for (int k = 0; k < instrumentLines.length; k++) {
+            if ((instruments & 1 << k) != 0) {
+                int line = instrumentLines[k].nextSetBit(from);
+                if (line >= 0 && (next < 0 || line < next)) {
+                    next = line;
+                }
+            }
+        }
+        return next;
+    }
+
+    /**
+     * @param ordinal An instrument ordinal
+     * @return The lines of the instrument, copied first if shared with a copy
+     */
+    private BitSet linesOf(int ordinal) {
+        if ((sharedInstruments & 1 << ordinal) != 0) {
+            instrumentLines[ordinal] = (BitSet) instrumentLines[ordinal].clone();
+            sharedInstruments &= ~(1 << ordinal);
+        }
+        return instrumentLines[ordinal];
+    }
+
+    /**
+     * Called by a line of this song when a note is added to it.
+     * @param i The index of the line
+     * @param p The packed note
+     */
+    void noteAdded(int i, int p) {
+        int ordinal = PackedNote.instrumentOrdinal(p);
+        instrumentNotes[ordinal]++;
+        linesOf(ordinal).set(i);
+    }
+
+    /**
+     * Called by a line of this song when a note is removed from it.
+     * @param i The index of the line
+     * @param p The packed note
+     * @param line The line, without the note
+     */
+    void noteRemoved(int i, int p, NoteLine line) {
+        int ordinal = PackedNote.instrumentOrdinal(p);
+        instrumentNotes[ordinal]--;
+        if (!line.hasInstrument(ordinal)) {
+            linesOf(ordinal).clear(i);
+        }
+    }
+
+    /**
+     * @param generation A generation of this song
+     * @return Whether it is the current one
      */
-    private void resize(int n) {
-        int currentSize = theLines.size();
-        for (int i = 0; i < n - currentSize; i++) {
-            theLines.add(new NoteLine());
-        }   
+    boolean isGeneration(Object generation) {
+        return this.generation == generation;
+    }
+
+    /**
+     * @return A number that changes every time this song changes: the notes
+     *         or volume of a line, or the tempo, sustain flags, time
+     *         signature, soundset or title
+     */
+    int getChanges() {
+        return changes;
+    }
+
+    /**
+     * @return An estimate of the bytes this song takes, mostly its chunks
+     *         and lines; chunks shared with a copy count for both songs
+     */
+    long estimateSize() {
+        long size = 1024 + 8L * chunks.length;
+        for (Chunk chunk : chunks) {
+            if (chunk != null) {
+                size += 32 + 4L * CHUNK_SIZE;
+                for (NoteLine line : chunk.lines) {
+                    if (line != null) {
+                        size += line.estimateSize();
+                    }
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Set what to do when a line of this song changes, like publishing a
+     * copy of the song for playback. Copies of the song don't get it.
+     * @param onChange Run on the thread changing the line after each change
+     *            of notes or volume, or <b>null</b>
+     */
+    public void setOnChange(Runnable onChange) {
+        this.onChange = onChange;
+    }
+
+    /**
+     * Called by a line of this song when its notes or volume change.
+     * @param i The index of the line
+     * @param empty Whether it is empty now
+     */
+    void lineChanged(int i, boolean empty) {
+        nonEmptyLines.set(i, !empty);
+        changes++;
+        if (onChange != null) {
+            onChange.run();
+        }
     }
 
 }
@@ -0,0 +1,159 @@
+package backend.sound;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import utilities.SpscRingBuffer;
+
+/**
+ * A thread dedicated to sending lines of notes to the {@link SoundPlayer}.
+ * <p>
+ * The playback thread {@link #submit(int[], long) submits} a line when it is due,
+ * or a little ahead of time with the moment it is due,
+ * and goes back to keeping time; this thread plays it. The two are connected
+ * by a ring buffer, so a submission never blocks on the synthesizer nor on
+ * the JavaFX application thread. When there is nothing to play this thread is
+ * parked, not spinning.
+ * <p>
+ * Lines are played inside sessions. {@link #end()} closes the current
+ * session: anything still queued from it is dropped, and once it returns no
+ * line from it will start sounding.
+ */
+public class AudioDispatcher {
+
+    /** Number of lines that can be queued before the producer has to wait. */
+    private static final int CAPACITY = 64;
+
+    /** How long the producer waits between two checks of a full buffer. */
+    private static final long FULL_BACKOFF_NANOS = 100_000L;
+
+    /** A queued line. */
+    private static class LineEvent {
+        int[] ops;
+        long deadline;
+        int session;
+    }
+
+    private final SoundPlayer player;
+
+    private final SpscRingBuffer<LineEvent> events = new SpscRingBuffer<>(CAPACITY, LineEvent::new);
+
+    /** The session whose lines are allowed to play. */
+    private final AtomicInteger session = new AtomicInteger();
+
+    /** The session lines are currently submitted for. */
+    private int producerSession;
+
+    private final Thread thread;
+
+    /** Set by the consumer right before it parks. */
+    private volatile boolean waiting = false;
+
+    /**
+     * Starts the dispatch thread.
+     *
+     * @param player
+     *            The sound player that will play the lines.
+     */
+    public AudioDispatcher(SoundPlayer player) {
+        this.player = player;
+        thread = new Thread(this::run, "SMP audio dispatch");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    /** @return The id of the dispatch thread. */
+    public long getThreadId() {
+        return thread.threadId();
+    }
+
+    /**
+     * Opens a new session; lines submitted from now on will play. Called by
+     * the producer.
+     */
+    public void begin() {
+        producerSession = session.incrementAndGet();
+    }
+
+    /**
+     * Closes the current session. Queued lines from it are discarded. May be
+     * called from any thread.
+     */
+    public void end() {
+        // Taking the player's lock waits for a line that may be playing right
+        // now, so that stopping the sounds after this returns does silence
+        // everything.
+        synchronized (player) {
+            session.incrementAndGet();
+        }
+    }
+
+    /**
+     * Queues a line to be played. Called by the producer; waits only if the
+     * dispatch thread is more than a full buffer behind.
+     *
+     * @param ops
+     *            The line to play, as compiled by a {@link PlaybackProgram}.
+     * @param deadline
+     *            When the line must sound, as given by
+     *            {@link System#nanoTime()}, for the synthesizer to schedule
+     *            it; or -1 to play it as soon as possible.
+     */
+    public void submit(int[] ops, long deadline) {
+        LineEvent e;
+        while ((e = events.claim()) == null)
+            LockSupport.parkNanos(FULL_BACKOFF_NANOS);
+
+        e.ops = ops;
+        e.deadline = deadline;
+        e.session = producerSession;
+        events.publish();
+
+        if (waiting)
+            LockSupport.unpark(thread);
+    }
+
+    /**
+     * Waits until the lines submitted so far have been handed to the
+     * synthesizer, or dropped if their session was closed. Called by the
+     * producer.
+     */
+    public void drain() {
+        while (!events.isEmpty())
+            LockSupport.parkNanos(FULL_BACKOFF_NANOS);
+    }
+
+    private void run() {
+        while (true) {
+            LineEvent e = events.peek();
+            if (e == null) {
+                waiting = true;
+                if (events.isEmpty())
+                    LockSupport.park(this);
+                waiting = false;
+                continue;
+            }
+
+            try {
+                dispatch(e);
+            } catch (RuntimeException ex) {
+                ex.printStackTrace();
+            } finally {
+                e.ops = null;
+                events.release();
+            }
+        }
+    }
+
+    private void dispatch(LineEvent e) {
+        synchronized (player) {
+            if (e.session != session.get())
+                return;
+            if (e.deadline == -1)
+                player.playCompiledLine(e.ops);
+            else
+                player.playCompiledLine(e.ops, e.deadline);
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package backend.sound;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sound.midi.MidiChannel;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Synthesizer;
+
+import gui.Values;
+
+/**
+ * Decides on which synthesizer and MIDI channel each note is played.
+ * <p>
+ * Every instrument has a primary channel, laid out as in
+ * {@link SMPSynthesizer#getChannels()}: the instrument's channel minus one
+ * counts the channels of the synthesizers one after the other, skipping the
+ * drum channel. This map is computed once.
+ * <p>
+ * A synthesizer only has so many voices, and a dense chord on one instrument
+ * makes it steal voices from the other notes it plays. So each channel gets a
+ * voice budget: when an instrument already has that many notes playing on
+ * its channels, the next note goes to an overflow channel of its own. An
+ * overflow channel is a free channel of the least busy synthesizer, taken
+ * the first time the instrument needs one and kept for it afterwards. When
+ * there is no free channel left a synthesizer is added in the background, up
+ * to {@link #MAX_SYNTHS}; until it is ready the note shares the instrument's
+ * least busy channel.
+ * <p>
+ * Notes are identified by their channel index, the instrument's channel
+ * minus one, and their pitch; a note is stopped on the channel it was
+ * started on. Channels are numbered as lanes, counting the channels of the
+ * synthesizers in order; the primary channel of a channel index is the lane
+ * with the same number.
+ */
+public class ChannelRouter {
+
+    /** The number of channels each synthesizer provides. */
+    public static final int CHANNELS_PER_SYNTH = Values.MIDICHANNELS - 1;
+
+    /** The number of synthesizers needed to give every instrument its channel. */
+    public static final int SYNTHS_NEEDED = (Values.NUM_INSTRUMENTS + CHANNELS_PER_SYNTH - 1) / CHANNELS_PER_SYNTH;
+
+    /** The most synthesizers the router will use. */
+    public static final int MAX_SYNTHS = 6;
+
+    /** The most lanes there can be. */
+    private static final int MAX_LANES = MAX_SYNTHS * CHANNELS_PER_SYNTH;
+
+    /** Marks a note that isn't playing, and a lane without instrument. */
+    private static final byte NONE = -1;
+
+    /** The synthesizers holding the channels. */
+    private final MultiSynthesizer synthesizer;
+
+    /** The channels of each synthesizer, without the drum channel. */
+    private final MidiChannel[][] channels = new MidiChannel[MAX_SYNTHS][];
+
+    /** The receiver of each synthesizer, once asked for. */
+    private final Receiver[] receivers = new Receiver[MAX_SYNTHS];
+
+    /** The number of synthesizers in use. */
+    private int synths;
+
+    /** The channel index each lane plays, or {@link #NONE} while free. */
+    private final byte[] owner = new byte[MAX_LANES];
+
+    /** The number of notes playing on each lane. */
+    private final int[] active = new int[MAX_LANES];
+
+    /** The lane of each playing note, indexed by channel index * 128 + pitch. */
+    private final byte[] laneOf = new byte[Values.NUM_INSTRUMENTS * 128];
+
+    /** The overflow lanes of each channel index, in the order taken. */
+    private final byte[][] overflow = new byte[Values.NUM_INSTRUMENTS][0];
+
+    /** The number of notes a lane may play before others are used. */
+    private final int voiceBudget;
+
+    /** Whether a synthesizer is being added. */
+    private boolean growing = false;
+
+    /** Whether adding a synthesizer failed, in which case we don't retry. */
+    private boolean growFailed = false;
+
+    /**
+     * @param synthesizer
+     *            The synthesizers; they must already give every instrument
+     *            its channel.
+     * @param voiceBudget
+     *            The number of notes a channel plays before an instrument
+     *            overflows to another channel.
+     */
+    public ChannelRouter(SMPSynthesizer synthesizer, int voiceBudget) {
+        if (voiceBudget < 1)
+            throw new IllegalArgumentException("Invalid voice budget " + voiceBudget);
+        this.synthesizer = synthesizer;
+        this.voiceBudget = voiceBudget;
+        Arrays.fill(owner, NONE);
+        Arrays.fill(laneOf, NONE);
+
+        List<Synthesizer> list = synthesizer.getSynthesizers();
+        if (list.size() < SYNTHS_NEEDED)
+            throw new IllegalArgumentException("Need " + SYNTHS_NEEDED + " synthesizers, got " + list.size());
+        for (int k = 0; k < list.size() && k < MAX_SYNTHS; k++)
+            addChannels(list.get(k));
+        for (int ch = 0; ch < Values.NUM_INSTRUMENTS; ch++)
+            owner[ch] = (byte) ch;
+    }
+
+    /**
+     * @param synthesizer
+     *            The synthesizers; they must already give every instrument
+     *            its channel.
+     * @return A router whose voice budget is each synthesizer's polyphony
+     *         shared among its channels.
+     */
+    public static ChannelRouter withDefaultBudget(SMPSynthesizer synthesizer) {
+        return new ChannelRouter(synthesizer,
+                Math.max(1, synthesizer.getMaxPolyphony() / CHANNELS_PER_SYNTH));
+    }
+
+    private static int midiChannelOfSlot(int k) {
+        return (k < Values.DRUMCHANNEL - 1) ? k : k + 1;
+    }
+
+    /**
+     * Picks the lane of a note being started. A note that is already
+     * playing keeps its lane.
+     * @param channel The channel index
+     * @param pitch The MIDI pitch
+     * @return The lane
+     */
+    public synchronized int noteOn(int channel, int pitch) {
+        int key = channel * 128 + pitch;
+        if (laneOf[key] != NONE)
+            return laneOf[key];
+
+        int lane = pickLane(channel);
+        laneOf[key] = (byte) lane;
+        active[lane]++;
+        return lane;
+    }
+
+    /**
+     * Forgets a note being stopped.
+     * @param channel The channel index
+     * @param pitch The MIDI pitch
+     * @return The lane the note was started on, or the primary lane if it
+     *         wasn't started through this router
+     */
+    public synchronized int noteOff(int channel, int pitch) {
+        int key = channel * 128 + pitch;
+        int lane = laneOf[key];
+        if (lane == NONE)
+            return channel;
+        laneOf[key] = NONE;
+        active[lane]--;
+        return lane;
+    }
+
+    /**
+     * Forgets all the notes, after the sound was turned off. The overflow
+     * lanes stay with their instruments.
+     */
+    public synchronized void reset() {
+        Arrays.fill(laneOf, NONE);
+        Arrays.fill(active, 0);
+    }
+
+    /** @return The number of lanes, in use or not. */
+    public synchronized int lanes() {
+        return synths * CHANNELS_PER_SYNTH;
+    }
+
+    /** @return The number of synthesizers in use. */
+    public synchronized int synths() {
+        return synths;
+    }
+
+    /**
+     * @param lane A lane
+     * @return The index of the synthesizer of the lane
+     */
+    public static int synthOf(int lane) {
+        return lane / CHANNELS_PER_SYNTH;
+    }
+
+    /**
+     * @param lane A lane
+     * @return The MIDI channel, 0 based, of the lane in its synthesizer
+     */
+    public static int midiChannelOf(int lane) {
+        return midiChannelOfSlot(lane % CHANNELS_PER_SYNTH);
+    }
+
+    /**
+     * @param lane A lane
+     * @return The MIDI channel object of the lane
+     */
+    public synchronized MidiChannel channelOf(int lane) {
+        return channels[lane / CHANNELS_PER_SYNTH][lane % CHANNELS_PER_SYNTH];
+    }
+
+    /**
+     * @param synth The index of a synthesizer
+     * @return Its receiver
+     * @throws MidiUnavailableException If it can't be had
+     */
+    public synchronized Receiver receiverOf(int synth) throws MidiUnavailableException {
+        if (receivers[synth] == null)
+            receivers[synth] = synthesizer.getSynthesizers().get(synth).getReceiver();
+        return receivers[synth];
+    }
+
+    /**
+     * @param lane A lane
+     * @return The channel index the lane plays, or -1 if it is free
+     */
+    public synchronized int ownerOf(int lane) {
+        return owner[lane];
+    }
+
+    /**
+     * Turns the sound off on the overflow lanes. The primary channels are
+     * left to whoever turns them off already.
+     */
+    public synchronized void allOverflowSoundOff() {
+        for (byte[] lanes : overflow)
+            for (byte lane : lanes)
+                channelOf(lane).allSoundOff();
+    }
+
+    private int pickLane(int channel) {
+        if (active[channel] < voiceBudget)
+            return channel;
+
+        int best = channel;
+        for (byte lane : overflow[channel]) {
+            if (active[lane] < voiceBudget)
+                return lane;
+            if (active[lane] < active[best])
+                best = lane;
+        }
+
+        int lane = takeFreeLane(channel);
+        return lane == NONE ? best : lane;
+    }
+
+    /**
+     * Gives a free lane to a channel index, starting to add a synthesizer if
+     * there is none.
+     * @return The lane, or {@link #NONE}
+     */
+    private int takeFreeLane(int channel) {
+        int lane = NONE;
+        int busy = Integer.MAX_VALUE;
+        for (int l = Values.NUM_INSTRUMENTS; l < synths * CHANNELS_PER_SYNTH; l++) {
+            if (owner[l] == NONE && load(synthOf(l)) < busy) {
+                lane = l;
+                busy = load(synthOf(l));
+            }
+        }
+
+        if (lane == NONE) {
+            grow();
+            return NONE;
+        }
+
+        owner[lane] = (byte) channel;
+        byte[] lanes = Arrays.copyOf(overflow[channel], overflow[channel].length + 1);
+        lanes[lanes.length - 1] = (byte) lane;
+        overflow[channel] = lanes;
+
+        // Channel c plays program c, like the primary channels
+        MidiChannel mc = channelOf(lane);
+        mc.programChange(channel);
+        mc.controlChange(Values.REVERB, 0);
+        return lane;
+    }
+
+    /** @return The number of notes playing on a synthesizer. */
+    private int load(int synth) {
+        int sum = 0;
+        for (int k = 0; k < CHANNELS_PER_SYNTH; k++)
+            sum += active[synth * CHANNELS_PER_SYNTH + k];
+        return sum;
+    }
+
+    private void addChannels(Synthesizer s) {
+        MidiChannel[] all = s.getChannels();
+        MidiChannel[] mine = new MidiChannel[CHANNELS_PER_SYNTH];
+        for (int k = 0; k < CHANNELS_PER_SYNTH; k++)
+            mine[k] = all[midiChannelOfSlot(k)];
+        channels[synths++] = mine;
+    }
+
+    /**
+     * Adds a synthesizer in the background, unless one is being added or
+     * there are enough.
+     */
+    private void grow() {
+        if (growing || growFailed || synths >= MAX_SYNTHS)
+            return;
+        growing = true;
+
+        Thread t = new Thread(() -> {
+            try {
+                Synthesizer s = synthesizer.addSynthesizer();
+                synchronized (this) {
+                    addChannels(s);
+                }
+            } catch (MidiUnavailableException e) {
+                e.printStackTrace();
+                synchronized (this) {
+                    growFailed = true;
+                }
+            } finally {
+                synchronized (this) {
+                    growing = false;
+                }
+            }
+        }, "SMP synthesizer allocation");
+        t.setDaemon(true);
+        t.start();
+    }
+}
@@ -1,9 +1,9 @@
 package backend.sound;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.sound.midi.Instrument;
 import javax.sound.midi.MidiChannel;
@@ -35,9 +35,19 @@ public class MultiSynthesizer implements Synthesizer {
     protected boolean initialized;
 
     /**
-     * The list of synthesizers that this class holds.
+     * The list of synthesizers that this class holds. Synthesizers may be
+     * added while the others are in use, so this is a copy-on-write list.
      */
-    protected ArrayList<Synthesizer> theSynths;
+    protected List<Synthesizer> theSynths;
+
+    /**
+     * The channels of all the synthesizers, built on first use and again
+     * whenever a synthesizer is added.
+     */
+    private volatile MidiChannel[] channels;
+
+    /** A read-only view of the synthesizers, made once for playback to ask for it every line. */
+    private List<Synthesizer> synthsView;
 
     /**
      * Initializes the ArrayList of Synthesizers and adds the default
@@ -46,7 +56,8 @@ public class MultiSynthesizer implements Synthesizer {
      * fails.
      */
     public MultiSynthesizer() throws MidiUnavailableException {
-        theSynths = new ArrayList<>();
+        theSynths = new CopyOnWriteArrayList<>();
+        synthsView = Collections.unmodifiableList(theSynths);
         addDefaultSynthesizer();
         initialized = true;
 
@@ -67,6 +78,7 @@ public class MultiSynthesizer implements Synthesizer {
         for (Instrument inst : this.getLoadedInstruments())
             s1.loadInstrument(inst);
         theSynths.add(s1);
+        channels = null;
     }
 
     /**
@@ -266,48 +278,50 @@ public class MultiSynthesizer implements Synthesizer {
     /**
      * @return An array of MidiChannel objects. Elements 0-15 are from the first
      * synthesizer, elements 16-31 are from the second synthesizer, and so on.
+     * The array is built once and shared; it must not be modified.
      */
     @Override
     public MidiChannel[] getChannels() {
-        ArrayList<MidiChannel> all = new ArrayList<>();
-        if (theSynths.size() == 1)
-            return theSynths.get(0).getChannels();
-        else {
-            for (Synthesizer s : theSynths) {
-                all.addAll(Arrays.asList(s.getChannels()));
-            }
+        MidiChannel[] ret = channels;
+        if (ret == null) {
+            ret = buildChannels();
+            channels = ret;
         }
-        MidiChannel[] ret = new MidiChannel[all.size()];
-        for (int i = 0; i < all.size(); i++)
-            ret[i] = all.get(i);
         return ret;
     }
 
+    /**
+     * Builds the array returned by {@link #getChannels()}.
+     * @return The channels of all of the Synthesizers, in order.
+     */
+    protected MidiChannel[] buildChannels() {
+        if (theSynths.size() == 1)
+            return theSynths.get(0).getChannels();
+        ArrayList<MidiChannel> all = new ArrayList<>();
+        for (Synthesizer s : theSynths)
+            Collections.addAll(all, s.getChannels());
+        return all.toArray(new MidiChannel[0]);
+    }
+
+    /**
+     * @return The number of channels each Synthesizer contributes to
+     * {@link #getChannels()}.
+     */
+    public int channelsPerSynth() {
+        return 16;
+    }
 
     /**
      * @return the VoiceStatus of all of the Synthesizer objects.
      */
     @Override
     public VoiceStatus[] getVoiceStatus() {
-        VoiceStatus[] all;
         if (theSynths.size() == 1)
-            all = theSynths.get(0).getVoiceStatus();
-        else {
-            all = new VoiceStatus[0];
-            for (Synthesizer s : theSynths) {
-                VoiceStatus[] temp = s.getVoiceStatus();
-                VoiceStatus[] concat =
-                        new VoiceStatus[all.length + temp.length];
-                for (int i = 0; i < concat.length; i++) {
-                    if (i < all.length)
-                        concat[i] = all[i];
-                    else
-                        concat[i] = temp[i-all.length];
-                }
-                all = concat;
-            }
-        }
-        return all;
+            return theSynths.get(0).getVoiceStatus();
+        ArrayList<VoiceStatus> all = new ArrayList<>();
+        for (Synthesizer s : theSynths)
+            Collections.addAll(all, s.getVoiceStatus());
+        return all.toArray(new VoiceStatus[0]);
     }
 
     /**
@@ -444,6 +458,14 @@ public class MultiSynthesizer implements Synthesizer {
             s.unloadInstruments(soundbank, patchList);
     }
 
+    /**
+     * @return The Synthesizers that make up this MultiSynthesizer, in the
+     * order their channels are listed by {@link #getChannels()}.
+     */
+    public List<Synthesizer> getSynthesizers() {
+        return synthsView;
+    }
+
     /**
      * Adds SoftSynthesizer objects to the MultiSynthesizer such that
      * it has enough Synthesizers to accommodate the number of channels
@@ -455,15 +477,28 @@ public class MultiSynthesizer implements Synthesizer {
     public void ensureCapacity(int i) throws MidiUnavailableException {
         if (!initialized)
             throw new MidiUnavailableException();
-        int repeat = (int) Math.floor((double)i / 16);
-        for (int j = 0; j < repeat; j++) {
-            Synthesizer s = MidiSystem.getSynthesizer();
-            s.open();
-            for (Instrument inst : s.getLoadedInstruments())
-                s.unloadInstrument(inst);
-            for (Instrument inst : this.getLoadedInstruments())
-                s.loadInstrument(inst);
-            theSynths.add(s);
-        }
+        while (theSynths.size() * channelsPerSynth() < i)
+            addSynthesizer();
+    }
+
+    /**
+     * Opens one more SoftSynthesizer with the instruments currently loaded
+     * and adds it at the end of the list.
+     * @return The new Synthesizer.
+     * @throws MidiUnavailableException If the MultiSynthesizer isn't
+     * initialized or the new Synthesizer can't be opened.
+     */
+    public Synthesizer addSynthesizer() throws MidiUnavailableException {
+        if (!initialized)
+            throw new MidiUnavailableException();
+        Synthesizer s = MidiSystem.getSynthesizer();
+        s.open();
+        for (Instrument inst : s.getLoadedInstruments())
+            s.unloadInstrument(inst);
+        for (Instrument inst : this.getLoadedInstruments())
+            s.loadInstrument(inst);
+        theSynths.add(s);
+        channels = null;
+        return s;
     }
 }
@@ -0,0 +1,24 @@
+package backend.sound;
+
+/**
+ * Where the notes of a {@link NoteTracker} end up: the live synthesizer, or a
+ * receiver being fed timestamped messages. Channels are given as channel
+ * indexes, that is an instrument's channel minus one.
+ */
+interface NoteOutput {
+
+    /**
+     * Starts a note.
+     * @param channel The channel index
+     * @param pitch The MIDI pitch
+     * @param velocity The velocity
+     */
+    void noteOn(int channel, int pitch, int velocity);
+
+    /**
+     * Stops a note.
+     * @param channel The channel index
+     * @param pitch The MIDI pitch
+     */
+    void noteOff(int channel, int pitch);
+}
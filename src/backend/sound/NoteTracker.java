@@ -1,94 +1,126 @@
 package backend.sound;
-import java.util.ArrayList;
-import java.util.List;
 
 import backend.songs.Pitch;
-import backend.songs.Note;
 import backend.songs.NoteLine;
+import backend.songs.PackedNote;
 import gui.InstrumentIndex;
-import gui.StateMachine;
 import gui.Values;
 
 /**
  * This is a class that keeps track of the different channels in Super
  * Mario Paint and which ones are currently playing sounds.
+ * <p>
+ * The notes playing on a channel are kept as a set of MIDI pitches, 128 bits
+ * held in two longs. Adding and stopping a pitch is a bit operation, and
+ * nothing is allocated once the tracker exists.
+ * <p>
+ * The tracker can also cap the number of notes playing. When a note started
+ * with {@link #noteOn} would go over the limit, a playing note picked by the
+ * {@link VoiceStealingPolicy} is stopped first.
  * @author RehdBlob
  * @since 2013.11.10
  *
  */
 class NoteTracker {
 
-    /**
-     * This is the list of lists, arranged by channel, of notes that are
-     * playing.
-     */
-    private List<List<PlayingNote>> notesOn;
+    /** Pitches 0 to 63 playing on each channel index, one bit per pitch. */
+    private final long[] low;
+
+    /** Pitches 64 to 127 playing on each channel index, one bit per pitch. */
+    private final long[] high;
+
+    /** The note extensions, one bit per instrument ordinal. */
+    private volatile int sustain = 0;
+
+    private final NoteOutput output;
+
+    /** When each note started, indexed by channel index * 128 + pitch. */
+    private final long[] started;
+
+    /** The velocity of each note, indexed like {@link #started}. */
+    private final byte[] velocities;
+
+    /** The instrument ordinal of each channel index. */
+    private final int[] ordinals;
 
-    /** This tells us which channels are currently playing notes. */
-    private List<Boolean> channelOn;
-    
-    private final SoundPlayer soundPlayer;
+    /** Counts the notes started, to order them. */
+    private long clock = 0;
+
+    /** The number of notes playing. */
+    private int playing = 0;
+
+    /** The most notes playing at once, or 0 for no limit. */
+    private int limit = 0;
+
+    /** Which note to stop when over the limit. */
+    private VoiceStealingPolicy policy = VoiceStealingPolicy.NONE;
+
+    /** The number of notes stopped to make room. */
+    private int stolen = 0;
 
     /**
      * Creates a new <code>NoteTracker</code> object and initializes
-     * a list that is linked to each channel of sound.
+     * a set of pitches for each channel of sound.
+     * @param output Where the notes are stopped
      */
-    public NoteTracker(SoundPlayer soundPlayer) {
-        channelOn = new ArrayList<>();
-        notesOn = new ArrayList<>();
-        for (int i = 0; i < InstrumentIndex.values().length; i++) {
-            channelOn.add(false);
-            notesOn.add(new ArrayList<>());
-        }
-        this.soundPlayer = soundPlayer;
+    public NoteTracker(NoteOutput output) {
+        low = new long[Values.NUM_INSTRUMENTS];
+        high = new long[Values.NUM_INSTRUMENTS];
+        this.output = output;
+        started = new long[Values.NUM_INSTRUMENTS * 128];
+        velocities = new byte[Values.NUM_INSTRUMENTS * 128];
+        ordinals = new int[Values.NUM_INSTRUMENTS];
+        for (InstrumentIndex i : InstrumentIndex.values())
+            ordinals[i.getChannel() - 1] = i.ordinal();
     }
 
     /**
-     * Stops the instruments contained in theNotes.
-     * @param s The StaffNoteLine.
+     * Caps the number of notes playing.
+     * @param limit The most notes playing at once, or 0 for no limit
+     * @param policy Which note to stop when a new one would go over
      */
-    public void stopNotes(NoteLine s) {
-        boolean[] turnOff = new boolean[Values.NUM_INSTRUMENTS];
-        List<Note> theNotes = s.getNotes();
-        for(Note sn : theNotes)
-            turnOff[sn.getInstrument().getChannel() - 1] = true;
-
-        boolean[] ext = StateMachine.getNoteExtensions();
-
-        for (int i = 0; i < turnOff.length; i++) {
-            
-            @SuppressWarnings("java:S3358")
-            int j = (i == 15) ? 16 : (i == 16) ? 15 : i; // swap coin and piranha
-            
-            if (turnOff[i] && isChannelOn(i) && !ext[j]) {
-                List<PlayingNote> pna = getNotesPlaying(i);
-                for (PlayingNote pn : pna)
-                    stopSound(pn);
-                pna.clear();
-                setChannelOff(i);
-            }
-        }
+    public void setVoiceLimit(int limit, VoiceStealingPolicy policy) {
+        if (limit < 0)
+            throw new IllegalArgumentException("Invalid voice limit " + limit);
+        this.limit = limit;
+        this.policy = policy;
     }
 
-    /** Tells us whether this note channel has a note playing. */
-    private boolean isChannelOn(int channel) {
-        return channelOn.get(channel);
+    /** @return The number of notes playing. */
+    public int getNotesPlaying() {
+        return playing;
+    }
+
+    /** @return The number of notes stopped to make room for others. */
+    public int getStolenCount() {
+        return stolen;
     }
 
     /**
-     * Sets a channel to "on"
-     * @param channel The channel we want to set to on.
+     * Sets the note extensions that {@link #stopNotes} honours, so that it
+     * doesn't have to look them up on every line.
+     * @param mask One bit per instrument ordinal
      */
-    private void setChannelOn(int channel) {
-        channelOn.set(channel, true);
+    public void setSustain(int mask) {
+        sustain = mask;
     }
 
     /**
-     * Sets a channel to "off"
-     * @param channel The channel we want to set to off.
+     * Stops the instruments contained in theNotes.
+     * @param s The StaffNoteLine.
      */
-    private void setChannelOff(int channel) {
-        channelOn.set(channel, false);
+    public void stopNotes(NoteLine s) {
+        int ext = sustain;
+        for (int i = 0; i < s.size(); i++) {
+            InstrumentIndex inst = PackedNote.getInstrument(s.getPacked(i));
+            if ((ext & (1 << inst.ordinal())) == 0)
+                releaseChannel(inst.getChannel() - 1);
+        }
+    }
+
+    /** Tells us whether this note channel has a note playing. */
+    private boolean isChannelOn(int channel) {
+        return (low[channel] | high[channel]) != 0;
     }
 
     /** This adds a note that is currently
@@ -97,26 +129,106 @@ class NoteTracker {
      * @param pitch The pitchof the note that is playing.
      */
     public void addNotePlaying(InstrumentIndex instrument, Pitch pitch) {
-        notesOn.get(instrument.getChannel() - 1).add(
-                new PlayingNote(instrument, pitch));
-        setChannelOn(instrument.getChannel() - 1);
+        addNotePlaying(instrument.getChannel() - 1, pitch.getValue());
+    }
+
+    /** This adds a note that is currently
+     * playing to our list of notes playing.
+     * @param channel The channel index of the note that is playing.
+     * @param pitch The MIDI pitch of the note that is playing.
+     */
+    public void addNotePlaying(int channel, int pitch) {
+        addNotePlaying(channel, pitch, Values.MAX_VELOCITY);
+    }
+
+    private void addNotePlaying(int channel, int pitch, int velocity) {
+        if (!isPlaying(channel, pitch))
+            playing++;
+        if (pitch < 64)
+            low[channel] |= 1L << pitch;
+        else
+            high[channel] |= 1L << pitch;
+        started[channel * 128 + pitch] = clock++;
+        velocities[channel * 128 + pitch] = (byte) velocity;
     }
 
     /**
-     * @param channel The channel we want to get playing notes from.
-     * @return A list of notes that are currently playing from that channel.
+     * Starts a note and tracks it, first stopping another note if the voice
+     * limit would be exceeded.
+     * @param channel The channel index
+     * @param pitch The MIDI pitch
+     * @param velocity The velocity
      */
-    private List<PlayingNote> getNotesPlaying(int channel) {
-        return notesOn.get(channel);
+    public void noteOn(int channel, int pitch, int velocity) {
+        if (limit > 0 && playing >= limit && !isPlaying(channel, pitch)
+                && policy != VoiceStealingPolicy.NONE) {
+            int victim = pickVictim();
+            if (victim >= 0) {
+                stopPitch(victim / 128, victim % 128);
+                stolen++;
+            }
+        }
+        output.noteOn(channel, pitch, velocity);
+        addNotePlaying(channel, pitch, velocity);
+    }
+
+    private boolean isPlaying(int channel, int pitch) {
+        long bits = pitch < 64 ? low[channel] : high[channel];
+        return (bits & (1L << pitch)) != 0;
     }
 
     /**
-     * Stops a sound.
-     * @param pn The playing note.
-     * @param s The StaffNoteLine.
+     * @return The note to stop according to the policy, as channel index *
+     *         128 + pitch, or -1 if none is playing
      */
-    private void stopSound(PlayingNote pn) {
-        soundPlayer.stopSound(pn.instrument(), pn.pitch());
+    private int pickVictim() {
+        int ext = sustain;
+        int best = -1;
+        boolean bestSustained = false;
+        for (int ch = 0; ch < low.length; ch++) {
+            boolean sustained = (ext & (1 << ordinals[ch])) != 0;
+            for (int half = 0; half < 2; half++) {
+                for (long bits = half == 0 ? low[ch] : high[ch]; bits != 0; bits &= bits - 1) {
+                    int key = ch * 128 + half * 64 + Long.numberOfTrailingZeros(bits);
+                    if (best < 0 || isBetterVictim(key, sustained, best, bestSustained)) {
+                        best = key;
+                        bestSustained = sustained;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    private boolean isBetterVictim(int key, boolean sustained, int best, boolean bestSustained) {
+        switch (policy) {
+        case OLDEST_SUSTAINED:
+            if (sustained != bestSustained)
+                return sustained;
+            return started[key] < started[best];
+        case LOWEST_VELOCITY:
+            if (velocities[key] != velocities[best])
+                return velocities[key] < velocities[best];
+            return started[key] < started[best];
+        case OLDEST:
+        default:
+            return started[key] < started[best];
+        }
+    }
+
+    /**
+     * Stops one pitch on a channel, whether we saw it start or not.
+     * @param channel The channel index
+     * @param pitch The MIDI pitch
+     */
+    public void stopPitch(int channel, int pitch) {
+        output.noteOff(channel, pitch);
+        if (isPlaying(channel, pitch))
+            playing--;
+        if (pitch < 64)
+            low[channel] &= ~(1L << pitch);
+        else
+            high[channel] &= ~(1L << pitch);
     }
 
     /**
@@ -124,52 +236,30 @@ class NoteTracker {
      * @param inst The instrument to stop
      */
     public void stopInstrument(InstrumentIndex inst) {
-        int i = inst.getChannel() - 1;
-        List<PlayingNote> pna = getNotesPlaying(i);
-        for (PlayingNote pn : pna)
-            stopSound(pn);
-        pna.clear();
-        setChannelOff(i);
+        stopChannel(inst.getChannel() - 1);
     }
 
-
     /**
-     * This is a note that is currently playing.
-     * @author RehdBlob
-     * @since 2013.11.10
+     * Stops the notes playing on a channel.
+     * @param i The channel index
      */
-    class PlayingNote {
-
-        /** The instrument of the note that is playing. */
-        private InstrumentIndex instrument;
-
-        /** The pitch of the note that is playing. */
-        private Pitch pitch;
-
-        /**
-         * Makes a PlayingNote object, which keeps track of which notes
-         * are playing when.
-         * @param ins The InstrumentIndex.
-         * @param acc The pitch.
-         */
-        public PlayingNote(InstrumentIndex ins, Pitch pitch) {
-            this.instrument = ins;
-            this.pitch = pitch;
-        }
-
-        /**
-         * @return The instrument of the note that is playing.
-         */
-        public InstrumentIndex instrument() {
-            return instrument;
-        }
+    public void stopChannel(int i) {
+        for (long bits = low[i]; bits != 0; bits &= bits - 1)
+            output.noteOff(i, Long.numberOfTrailingZeros(bits));
+        for (long bits = high[i]; bits != 0; bits &= bits - 1)
+            output.noteOff(i, 64 + Long.numberOfTrailingZeros(bits));
+        playing -= Long.bitCount(low[i]) + Long.bitCount(high[i]);
+        low[i] = 0;
+        high[i] = 0;
+    }
 
-        /**
-         * @return The pitch of the note that is playing.
-         */
-        public Pitch pitch() {
-            return pitch;
-        }
+    /**
+     * Stops the notes playing on a channel, if any.
+     * @param i The channel index
+     */
+    public void releaseChannel(int i) {
+        if (isChannelOn(i))
+            stopChannel(i);
     }
 
 }
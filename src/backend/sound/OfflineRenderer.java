@@ -0,0 +1,483 @@
+package backend.sound;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Soundbank;
+import javax.sound.midi.Synthesizer;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+import backend.songs.Arrangement;
+import backend.songs.Song;
+import gui.Values;
+
+/**
+ * Renders songs and arrangements to WAV files without going through the
+ * sound card, as fast as the synthesizer can compute the samples.
+ * <p>
+ * Each song is compiled into a {@link PlaybackProgram} and its lines are
+ * executed exactly as during playback, except that the notes are sent as
+ * MIDI messages timestamped with the sample position of their line. The
+ * messages go to Gervill synthesizers opened in streaming mode through
+ * <code>AudioSynthesizer.openStream</code>, one synthesizer per 15
+ * instruments as for the live player, and their outputs are summed.
+ * <p>
+ * <code>AudioSynthesizer</code> lives in <code>com.sun.media.sound</code>,
+ * which <code>java.desktop</code> does not export. The JVM has to be started
+ * with <code>--add-exports java.desktop/com.sun.media.sound=smp</code> (or
+ * <code>=ALL-UNNAMED</code> from the class path); otherwise rendering fails
+ * with a <code>MidiUnavailableException</code> saying so.
+ */
+public class OfflineRenderer {
+
+    /** The format of the rendered audio: 44.1 kHz, 16 bit, stereo. */
+    public static final AudioFormat FORMAT = new AudioFormat(44100f, 16, 2, true, false);
+
+    /** How long notes are left to ring after the last line of a song. */
+    private static final double TAIL_SECONDS = 2.0;
+
+    /**
+     * Gervill applies timestamped messages with sample accuracy, but only
+     * looks at its queue once per control period; 32 frames keeps it small.
+     */
+    private static final float CONTROL_RATE = FORMAT.getSampleRate() / 32;
+
+    /** Frames read from the synthesizers at once. */
+    private static final int BLOCK_FRAMES = 4096;
+
+    private static final int FRAME_SIZE = FORMAT.getFrameSize();
+
+    /** Soundbanks already parsed, by soundset name. */
+    private final Map<String, Soundbank> banks = new ConcurrentHashMap<>();
+
+    /** The maximum number of songs rendered at the same time. */
+    private final int threads;
+
+    /**
+     * Creates a renderer that renders up to one song per available
+     * processor at the same time.
+     */
+    public OfflineRenderer() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads
+     *            The maximum number of songs rendered at the same time.
+     */
+    public OfflineRenderer(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Need at least one thread: " + threads);
+        this.threads = threads;
+    }
+
+    /**
+     * Renders a song to a WAV file.
+     *
+     * @param song
+     *            The song.
+     * @param out
+     *            The file to write.
+     */
+    public void render(Song song, File out) throws MidiUnavailableException, InvalidMidiDataException, IOException {
+        List<Song> songs = new ArrayList<>();
+        songs.add(song);
+        render(songs, out);
+    }
+
+    /**
+     * Renders an arrangement to a WAV file. Each song starts right after the
+     * last line of the previous one, while its notes are still ringing, as
+     * during playback.
+     * <p>
+     * The songs are independent until they are stitched together, so each
+     * one is rendered on its own synthesizers, in parallel on a bounded pool
+     * of threads. The whole takes about as long as the longest song, given
+     * enough cores.
+     *
+     * @param arr
+     *            The arrangement.
+     * @param out
+     *            The file to write.
+     */
+    public void render(Arrangement arr, File out) throws MidiUnavailableException, InvalidMidiDataException, IOException {
+        render(arr.getSequences(), out);
+    }
+
+    /**
+     * Renders songs one after the other to a WAV file, as an arrangement of
+     * them would be.
+     *
+     * @param songs
+     *            The songs, which mustn't be changed while this runs.
+     * @param out
+     *            The file to write.
+     */
+    public void render(List<Song> songs, File out) throws MidiUnavailableException, InvalidMidiDataException, IOException {
+        // The songs are not thread safe: they are read here, once, and the
+        // threads rendering them only read the compiled lines
+        List<CompiledSong> compiled = new ArrayList<>();
+        for (Song s : songs)
+            compiled.add(new CompiledSong(s));
+
+        int poolSize = Math.max(1, Math.min(threads, compiled.size()));
+        ExecutorService pool = Executors.newFixedThreadPool(poolSize, r -> {
+            Thread t = new Thread(r, "SMP offline render");
+            t.setDaemon(true);
+            return t;
+        });
+
+        List<Future<Segment>> rendering = new ArrayList<>();
+        try {
+            for (CompiledSong c : compiled)
+                rendering.add(pool.submit(() -> renderSegment(c)));
+
+            List<Segment> segments = new ArrayList<>();
+            for (Future<Segment> f : rendering)
+                segments.add(await(f));
+            mixdown(segments, out);
+
+        } finally {
+            pool.shutdownNow();
+            for (Future<Segment> f : rendering) {
+                if (f.cancel(true) || f.isCancelled())
+                    continue;
+                try {
+                    f.get().file.delete();
+                } catch (ExecutionException | InterruptedException e) {
+                    // Nothing was written for that song
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for a song to be rendered, passing on what went wrong if needed.
+     */
+    private static Segment await(Future<Segment> f) throws MidiUnavailableException, InvalidMidiDataException, IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while rendering");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof MidiUnavailableException mue)
+                throw mue;
+            if (cause instanceof InvalidMidiDataException imde)
+                throw imde;
+            if (cause instanceof IOException ioe)
+                throw ioe;
+            if (cause instanceof RuntimeException re)
+                throw re;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * A song compiled on the calling thread: all that the threads rendering
+     * it read.
+     */
+    static class CompiledSong {
+
+        /** The operations of each line, as given by {@link PlaybackProgram#line}. */
+        final int[][] lines;
+
+        final double tempo;
+
+        final String soundset;
+
+        CompiledSong(Song song) {
+            PlaybackProgram program = new PlaybackProgram(song, PlaybackProgram.sustainMask(song.getNoteExtensions()));
+            lines = new int[song.getLength()][];
+            for (int n = 0; n < lines.length; n++)
+                lines[n] = program.line(n);
+            tempo = song.getTempo();
+            soundset = song.getSoundset();
+        }
+    }
+
+    /**
+     * A song rendered to a temporary file of raw samples.
+     */
+    static class Segment {
+
+        /** The samples. */
+        final File file;
+
+        /** Frames covered by the lines of the song. */
+        final long bodyFrames;
+
+        /** All frames in the file, including the ringing after the last line. */
+        final long frames;
+
+        Segment(File file, long bodyFrames, long frames) {
+            this.file = file;
+            this.bodyFrames = bodyFrames;
+            this.frames = frames;
+        }
+    }
+
+    /**
+     * Renders a song to raw samples. May be called from several threads at
+     * once for different songs.
+     *
+     * @param song
+     *            The compiled song.
+     * @return The rendered segment; the caller deletes its file.
+     */
+    Segment renderSegment(CompiledSong song) throws MidiUnavailableException, InvalidMidiDataException, IOException {
+        Soundbank bank = getSoundbank(song.soundset);
+        int length = song.lines.length;
+        double framesPerLine = FORMAT.getSampleRate() * PlaybackClock.periodOf(song.tempo) / 1e9;
+        long bodyFrames = Math.round(length * framesPerLine);
+        long frames = bodyFrames + Math.round(TAIL_SECONDS * FORMAT.getSampleRate());
+
+        Synthesizer[] synths = new Synthesizer[ChannelRouter.SYNTHS_NEEDED];
+        AudioInputStream[] streams = new AudioInputStream[synths.length];
+        Receiver[] receivers = new Receiver[synths.length];
+        File file = File.createTempFile("smp-render", ".pcm");
+        file.deleteOnExit();
+        boolean rendered = false;
+
+        try (OutputStream raw = new BufferedOutputStream(new FileOutputStream(file))) {
+            for (int k = 0; k < synths.length; k++) {
+                synths[k] = MidiSystem.getSynthesizer();
+                streams[k] = openStream(synths[k]);
+                synths[k].loadAllInstruments(bank);
+                receivers[k] = synths[k].getReceiver();
+            }
+
+            ReceiverOutput output = new ReceiverOutput(receivers);
+            NoteTracker tracker = new NoteTracker(output);
+            Mixer mixer = new Mixer(streams, raw);
+
+            output.setTimestamp(0);
+            output.setUpInstruments();
+
+            // Lines are sent one ahead of the samples being read, so that the
+            // synthesizers always know about a line before reaching it
+            for (int n = 0; n <= length; n++) {
+                if (n < length) {
+                    output.setTimestamp(microsAt(Math.round(n * framesPerLine)));
+                    PlaybackProgram.execute(song.lines[n], tracker);
+                }
+                if (n > 0)
+                    mixer.renderTo(Math.round(n * framesPerLine));
+            }
+            mixer.renderTo(frames);
+            rendered = true;
+
+        } finally {
+            if (!rendered)
+                file.delete();
+            for (int k = 0; k < synths.length; k++) {
+                if (streams[k] != null)
+                    streams[k].close();
+                if (synths[k] != null)
+                    synths[k].close();
+            }
+        }
+
+        return new Segment(file, bodyFrames, frames);
+    }
+
+    /**
+     * Reads the synthesizers' streams in step and writes their sum.
+     */
+    private static class Mixer {
+
+        private final AudioInputStream[] streams;
+        private final OutputStream out;
+        private final byte[][] buffers;
+        private final byte[] mix = new byte[BLOCK_FRAMES * FRAME_SIZE];
+
+        /** Frames written so far. */
+        private long position = 0;
+
+        Mixer(AudioInputStream[] streams, OutputStream out) {
+            this.streams = streams;
+            this.out = out;
+            this.buffers = new byte[streams.length][BLOCK_FRAMES * FRAME_SIZE];
+        }
+
+        /**
+         * Renders and writes frames until <code>frame</code> is reached.
+         */
+        void renderTo(long frame) throws IOException {
+            while (position < frame) {
+                int n = (int) Math.min(BLOCK_FRAMES, frame - position);
+                int bytes = n * FRAME_SIZE;
+                for (int k = 0; k < streams.length; k++)
+                    readFully(streams[k], buffers[k], bytes);
+
+                for (int i = 0; i < bytes; i += 2) {
+                    int sum = 0;
+                    for (byte[] b : buffers)
+                        sum += (short) ((b[i] & 0xFF) | (b[i + 1] << 8));
+                    putSample(mix, i, sum);
+                }
+                out.write(mix, 0, bytes);
+                position += n;
+            }
+        }
+    }
+
+    /**
+     * Writes the segments one after the other into a WAV file. A segment
+     * starts where the lines of the previous one end, so the ringing of the
+     * previous song is mixed into the beginning of the next.
+     */
+    void mixdown(List<Segment> segments, File out) throws IOException {
+        File raw = File.createTempFile("smp-mixdown", ".pcm");
+        try {
+            long frames = 0;
+            try (RandomAccessFile dst = new RandomAccessFile(raw, "rw")) {
+                long offset = 0;
+                byte[] in = new byte[BLOCK_FRAMES * FRAME_SIZE];
+                byte[] acc = new byte[in.length];
+
+                for (Segment seg : segments) {
+                    try (InputStream src = new BufferedInputStream(new FileInputStream(seg.file))) {
+                        long done = 0;
+                        while (done < seg.frames) {
+                            int bytes = (int) Math.min(BLOCK_FRAMES, seg.frames - done) * FRAME_SIZE;
+                            readFully(src, in, bytes);
+
+                            long at = (offset + done) * FRAME_SIZE;
+                            int existing = (int) Math.max(0, Math.min(bytes, dst.length() - at));
+                            dst.seek(at);
+                            dst.readFully(acc, 0, existing);
+                            for (int i = 0; i < bytes; i += 2) {
+                                int s = (short) ((in[i] & 0xFF) | (in[i + 1] << 8));
+                                if (i < existing)
+                                    s += (short) ((acc[i] & 0xFF) | (acc[i + 1] << 8));
+                                putSample(acc, i, s);
+                            }
+                            dst.seek(at);
+                            dst.write(acc, 0, bytes);
+                            done += bytes / FRAME_SIZE;
+                        }
+                    }
+                    frames = Math.max(frames, offset + seg.frames);
+                    offset += seg.bodyFrames;
+                }
+            }
+
+            try (AudioInputStream ais = new AudioInputStream(
+                    new BufferedInputStream(new FileInputStream(raw)), FORMAT, frames)) {
+                AudioSystem.write(ais, AudioFileFormat.Type.WAVE, out);
+            }
+        } finally {
+            raw.delete();
+        }
+    }
+
+    /**
+     * Gets the soundbank of a soundset, parsing it the first time. Threads
+     * asking for a soundbank being parsed wait for it rather than parse it
+     * again.
+     *
+     * @param soundset
+     *            The soundset name, as in {@link Song#getSoundset()}.
+     * @return The soundbank.
+     */
+    private Soundbank getSoundbank(String soundset) throws InvalidMidiDataException, IOException {
+        if (soundset == null || soundset.isEmpty())
+            soundset = Values.DEFAULT_SOUNDFONT;
+        try {
+            return banks.computeIfAbsent(soundset, s -> {
+                try {
+                    return MidiSystem.getSoundbank(new File(Values.SOUNDFONTS_FOLDER + s));
+                } catch (InvalidMidiDataException | IOException e) {
+                    throw new CompletionException(e);
+                }
+            });
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof InvalidMidiDataException imde)
+                throw imde;
+            throw (IOException) e.getCause();
+        }
+    }
+
+    /**
+     * Opens a synthesizer in streaming mode, without its default soundbank:
+     * the soundbank of the song is loaded instead.
+     *
+     * @param synth
+     *            A Gervill synthesizer.
+     * @return The stream of the synthesizer's output.
+     */
+    private static AudioInputStream openStream(Synthesizer synth) throws MidiUnavailableException {
+        Map<String, Object> info = new HashMap<>();
+        info.put("control rate", CONTROL_RATE);
+        info.put("load default soundbank", false);
+        info.put("jitter correction", false);
+        try {
+            Class<?> audioSynth = Class.forName("com.sun.media.sound.AudioSynthesizer");
+            if (!audioSynth.isInstance(synth))
+                throw new MidiUnavailableException("Not a streaming synthesizer: " + synth.getDeviceInfo());
+            Method open = audioSynth.getMethod("openStream", AudioFormat.class, Map.class);
+            return (AudioInputStream) open.invoke(synth, FORMAT, info);
+
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+            MidiUnavailableException ex = new MidiUnavailableException(
+                    "Offline rendering needs --add-exports java.desktop/com.sun.media.sound=smp");
+            ex.initCause(e);
+            throw ex;
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof MidiUnavailableException mue)
+                throw mue;
+            MidiUnavailableException ex = new MidiUnavailableException(String.valueOf(e.getCause()));
+            ex.initCause(e.getCause());
+            throw ex;
+        }
+    }
+
+    private static long microsAt(long frame) {
+        return Math.round(frame * 1e6 / FORMAT.getSampleRate());
+    }
+
+    private static void putSample(byte[] b, int i, int s) {
+        s = Math.clamp(s, Short.MIN_VALUE, Short.MAX_VALUE);
+        b[i] = (byte) s;
+        b[i + 1] = (byte) (s >> 8);
+    }
+
+    private static void readFully(InputStream in, byte[] b, int len) throws IOException {
+        int off = 0;
+        while (off < len) {
+            int r = in.read(b, off, len - off);
+            if (r < 0)
+                throw new IOException("Synthesizer stream ended early");
+            off += r;
+        }
+    }
+}
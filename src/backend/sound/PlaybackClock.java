@@ -0,0 +1,271 @@
+package backend.sound;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces the lines of a song against absolute deadlines.
+ * <p>
+ * Line <code>n</code> is due at <code>origin + n * period</code>, where the
+ * origin is taken from {@link System#nanoTime()} when playback starts. Time
+ * spent processing a line therefore never adds up over the length of a song:
+ * a line that runs late only delays itself, and the next deadline is still
+ * computed from the origin.
+ * <p>
+ * Waiting is done by parking the thread while the deadline is far away and
+ * spinning for the last stretch, since parking alone may oversleep by up to
+ * a timer tick on some platforms.
+ * <p>
+ * With a look-ahead, lines are released that long before their deadline, so
+ * that their notes can be scheduled on the synthesizer for the exact moment
+ * they are due. The deadline itself can still be waited for with
+ * {@link #awaitCurrentDeadline()}.
+ * <p>
+ * The clock also keeps lateness statistics: how long after its deadline each
+ * line was actually released. These are written by the playback thread and
+ * may be read from any thread.
+ */
+public class PlaybackClock {
+
+    /** Below this many nanoseconds before a deadline we stop parking and spin. */
+    private static final long SPIN_THRESHOLD_NANOS = 2_000_000L;
+
+    /** A line released this many nanoseconds after its deadline counts as late. */
+    private static final long LATE_THRESHOLD_NANOS = 1_000_000L;
+
+    /** How many nanoseconds before its deadline a line is released. */
+    private long lookAhead = 0;
+
+    /** Time at which line 0 of the current timeline is due. */
+    private long origin;
+
+    /** Nanoseconds between two consecutive lines. */
+    private double period;
+
+    /** Index of the last line released, relative to the origin. */
+    private long line;
+
+    /** Number of lines released since the last reset of the statistics. */
+    private volatile long linesReleased;
+
+    /** Number of lines released more than {@link #LATE_THRESHOLD_NANOS} late. */
+    private volatile long lateLines;
+
+    /** Number of times the timeline had to be moved because we fell too far behind. */
+    private volatile long resyncs;
+
+    /** Lateness of the last released line, in nanoseconds. */
+    private volatile long lastLateness;
+
+    /** Worst lateness observed, in nanoseconds. */
+    private volatile long maxLateness;
+
+    /** Sum of the lateness of all released lines, in nanoseconds. */
+    private volatile long totalLateness;
+
+    /**
+     * @param tempo
+     *            A tempo in beats (lines) per minute.
+     * @return The number of nanoseconds between two lines at that tempo, or 0
+     *         if the tempo does not make sense.
+     */
+    public static double periodOf(double tempo) {
+        double p = 60e9 / tempo;
+        return (p > 0 && !Double.isInfinite(p)) ? p : 0;
+    }
+
+    /**
+     * @param nanos
+     *            How long before its deadline a line is released; 0 to
+     *            release lines when they are due.
+     */
+    public void setLookAhead(long nanos) {
+        lookAhead = Math.max(0, nanos);
+    }
+
+    /** @return How long before its deadline a line is released. */
+    public long getLookAhead() {
+        return lookAhead;
+    }
+
+    /**
+     * Starts a new timeline now: line 0 is released immediately, and due
+     * after the look-ahead. The lateness statistics are reset.
+     *
+     * @param tempo
+     *            The tempo in BPM.
+     */
+    public void start(double tempo) {
+        origin = System.nanoTime() + lookAhead;
+        period = periodOf(tempo);
+        line = 0;
+        resetStatistics();
+    }
+
+    /**
+     * Changes the tempo without breaking the timeline: the line last released
+     * becomes line 0 of a timeline that keeps its deadline, and the lines
+     * after it are spaced with the new tempo.
+     *
+     * @param tempo
+     *            The new tempo in BPM.
+     */
+    public void setTempo(double tempo) {
+        origin = deadlineOf(line);
+        period = periodOf(tempo);
+        line = 0;
+    }
+
+    /**
+     * Starts a new timeline where the current one would go on: the next line
+     * released is line 0 of the new timeline, due when the next line of the
+     * current one would have been, and the lines after it are spaced with the
+     * new tempo. Used to chain songs without a gap.
+     *
+     * @param tempo
+     *            The tempo in BPM of the new timeline.
+     */
+    public void continueWith(double tempo) {
+        origin = deadlineOf(line + 1);
+        period = periodOf(tempo);
+        line = -1;
+    }
+
+    /**
+     * @return The time, as given by {@link System#nanoTime()}, at which the
+     *         next line is due.
+     */
+    public long nextDeadline() {
+        return deadlineOf(line + 1);
+    }
+
+    /**
+     * @return The time, as given by {@link System#nanoTime()}, at which the
+     *         last released line was due.
+     */
+    public long currentDeadline() {
+        return deadlineOf(line);
+    }
+
+    /**
+     * @return Nanoseconds between two lines.
+     */
+    public double getPeriod() {
+        return period;
+    }
+
+    /**
+     * Blocks until the next line is released, that is its deadline minus the
+     * look-ahead, then records how late we woke up. If the thread is
+     * interrupted, this returns early and clears the interrupt; the next
+     * deadline is unaffected.
+     *
+     * @return <b>true</b> if the line was released, <b>false</b> if the
+     *         wait was interrupted.
+     */
+    public boolean awaitNextLine() {
+        long release = deadlineOf(line + 1) - lookAhead;
+        if (!awaitDeadline(release))
+            return false;
+
+        line++;
+        long lateness = System.nanoTime() - release;
+        record(lateness);
+
+        // We're so far behind that rushing through the missed lines would
+        // sound worse than the hiccup itself; restart the timeline from here.
+        if (period > 0 && lateness > period) {
+            origin += lateness;
+            resyncs++;
+        }
+        return true;
+    }
+
+    /**
+     * Blocks until the last released line is actually due. Returns at once
+     * without a look-ahead.
+     *
+     * @return <b>false</b> if interrupted before the deadline.
+     */
+    public boolean awaitCurrentDeadline() {
+        return awaitDeadline(deadlineOf(line));
+    }
+
+    /**
+     * Parks, then spins, until <code>deadline</code>.
+     *
+     * @return <b>false</b> if interrupted before the deadline.
+     */
+    private static boolean awaitDeadline(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (Thread.interrupted())
+                return false;
+            if (remaining > SPIN_THRESHOLD_NANOS)
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+            else
+                Thread.onSpinWait();
+        }
+        return true;
+    }
+
+    private long deadlineOf(long n) {
+        return origin + (long) (n * period);
+    }
+
+    private void record(long lateness) {
+        linesReleased++;
+        lastLateness = lateness;
+        totalLateness += lateness;
+        if (lateness > maxLateness)
+            maxLateness = lateness;
+        if (lateness > LATE_THRESHOLD_NANOS)
+            lateLines++;
+    }
+
+    /** Clears the lateness statistics. */
+    public void resetStatistics() {
+        linesReleased = 0;
+        lateLines = 0;
+        resyncs = 0;
+        lastLateness = 0;
+        maxLateness = 0;
+        totalLateness = 0;
+    }
+
+    /** @return The number of lines released since the statistics were reset. */
+    public long getLinesReleased() {
+        return linesReleased;
+    }
+
+    /** @return The number of lines released more than a millisecond late. */
+    public long getLateLines() {
+        return lateLines;
+    }
+
+    /** @return How many times the timeline was restarted after a stall. */
+    public long getResyncs() {
+        return resyncs;
+    }
+
+    /** @return Lateness of the last released line, in nanoseconds. */
+    public long getLastLateness() {
+        return lastLateness;
+    }
+
+    /** @return Worst lateness observed, in nanoseconds. */
+    public long getMaxLateness() {
+        return maxLateness;
+    }
+
+    /** @return Average lateness of the released lines, in nanoseconds. */
+    public long getMeanLateness() {
+        long n = linesReleased;
+        return n == 0 ? 0 : totalLateness / n;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d lines, %d late, %d resyncs, lateness mean %.3f ms / max %.3f ms",
+                linesReleased, lateLines, resyncs, getMeanLateness() / 1e6, maxLateness / 1e6);
+    }
+}
@@ -0,0 +1,298 @@
+package backend.sound;
+
+import java.util.Arrays;
+
+import backend.songs.MuteModifier;
+import backend.songs.NoteLine;
+import backend.songs.PackedNote;
+import backend.songs.Song;
+import gui.InstrumentIndex;
+import gui.StateMachine;
+
+/**
+ * A song compiled down to what the synthesizer has to do on each line.
+ * <p>
+ * Each line becomes an array of operations, each packed in one
+ * <code>int</code>: an opcode, a channel index (the instrument's channel
+ * minus one), a MIDI pitch and a velocity. Playing a line is then a loop
+ * over the array, with no note objects to walk and nothing to allocate. The
+ * operations of a line come in the order {@link SoundPlayer#playSoundLine}
+ * used to apply them:
+ * <ol>
+ * <li>{@link #RELEASE} for every instrument on the line that isn't sustained;
+ * <li>{@link #STOP_PITCH} and {@link #STOP_CHANNEL} for the mute notes;
+ * <li>{@link #NOTE_ON} for the regular notes.
+ * </ol>
+ * <p>
+ * Sustain is resolved at compile time from the note extensions shown on the
+ * instrument buttons. Lines are compiled the first time they are asked for
+ * and recompiled when the line was edited since (see
+ * {@link NoteLine#getVersion}) or when the note extensions changed, so a
+ * program stays valid while the song is being edited.
+ * <p>
+ * During playback the program compiles a copy of the song, which the staff
+ * replaces with a newer copy after each edit through {@link #setSong}. The
+ * lines that weren't edited are the same objects in both copies, so only the
+ * edited ones are compiled again.
+ * <p>
+ * A program is meant to be used from one thread. The arrays it returns are
+ * never modified afterwards and may be handed to other threads.
+ */
+public class PlaybackProgram {
+
+    /** Stop the notes tracked on the channel. */
+    public static final int RELEASE = 1;
+
+    /** Stop one pitch on the channel, tracked or not. */
+    public static final int STOP_PITCH = 2;
+
+    /** Stop the notes tracked on the channel, even if sustained. */
+    public static final int STOP_CHANNEL = 3;
+
+    /** Start a note on the channel and track it. */
+    public static final int NOTE_ON = 4;
+
+    /** Shared by all lines without notes. */
+    private static final int[] NO_OPS = new int[0];
+
+    /** The song being compiled. */
+    private Song song;
+
+    /** The compiled lines; <b>null</b> where not compiled yet. */
+    private int[][] code = new int[0][];
+
+    /** The line objects the code was compiled from. */
+    private NoteLine[] sources = new NoteLine[0];
+
+    /** The versions of the line objects when compiled. */
+    private int[] versions = new int[0];
+
+    /** The note extensions the code was compiled with. */
+    private int sustain;
+
+    /** Whether the note extensions follow the instrument buttons. */
+    private final boolean live;
+
+    /**
+     * Creates the program of a song and compiles its lines up to its length.
+     * The note extensions are the ones shown on the instrument buttons, and
+     * changes to them are picked up.
+     *
+     * @param song
+     *            The song to compile.
+     */
+    public PlaybackProgram(Song song) {
+        this(song, StateMachine.noteExtensionsProperty().get(), true);
+    }
+
+    /**
+     * Creates the program of a song with fixed note extensions, and compiles
+     * its lines up to its length.
+     *
+     * @param song
+     *            The song to compile.
+     * @param sustain
+     *            The note extensions, one bit per instrument ordinal.
+     */
+    public PlaybackProgram(Song song, int sustain) {
+        this(song, sustain, false);
+    }
+
+    private PlaybackProgram(Song song, int sustain, boolean live) {
+        this.song = song;
+        this.sustain = sustain;
+        this.live = live;
+        int length = song.getLength();
+        for (int i = 0; i < length; i++)
+            line(i);
+    }
+
+    /**
+     * @param ext
+     *            Note extensions indexed by instrument ordinal, such as
+     *            {@link Song#getNoteExtensions()}.
+     * @return The same, one bit per instrument ordinal.
+     */
+    public static int sustainMask(boolean[] ext) {
+        int mask = 0;
+        for (int i = 0; i < ext.length && i < Integer.SIZE; i++) {
+            if (ext[i])
+                mask |= 1 << i;
+        }
+        return mask;
+    }
+
+    /** @return The song this program plays. */
+    public Song getSong() {
+        return song;
+    }
+
+    /**
+     * Makes the program play another version of its song. The lines are
+     * compiled again as they are asked for, if they changed.
+     *
+     * @param song
+     *            The song, usually a newer copy of the same song.
+     */
+    public void setSong(Song song) {
+        this.song = song;
+    }
+
+    /**
+     * Gets the operations of a line, compiling it first if needed.
+     *
+     * @param index
+     *            The index of the line in the song.
+     * @return The operations of the line. The array must not be modified.
+     */
+    public int[] line(int index) {
+        int ext = live ? StateMachine.noteExtensionsProperty().get() : sustain;
+        if (ext != sustain) {
+            sustain = ext;
+            Arrays.fill(sources, null);
+        }
+
+        if (index >= code.length) {
+            int size = Math.max(index + 1, code.length * 2);
+            code = Arrays.copyOf(code, size);
+            sources = Arrays.copyOf(sources, size);
+            versions = Arrays.copyOf(versions, size);
+        }
+
+        NoteLine nl = song.peekLine(index);
+        int version = nl.getVersion();
+        if (sources[index] != nl || versions[index] != version) {
+            code[index] = compile(nl, sustain);
+            sources[index] = nl;
+            versions[index] = version;
+        }
+        return code[index];
+    }
+
+    /**
+     * Compiles a line of notes.
+     *
+     * @param nl
+     *            The line.
+     * @param sustain
+     *            The note extensions, one bit per instrument ordinal.
+     * @return The operations of the line.
+     */
+    public static int[] compile(NoteLine nl, int sustain) {
+        int size = nl.size();
+        if (size == 0)
+            return NO_OPS;
+
+        int release = releaseMask(nl, sustain);
+        int[] ops = new int[Integer.bitCount(release) + size];
+        int n = 0;
+
+        for (int ch = 0; release != 0; ch++, release >>>= 1) {
+            if ((release & 1) != 0)
+                ops[n++] = op(RELEASE, ch, 0, 0);
+        }
+
+        for (int i = 0; i < size; i++) {
+            int note = nl.getPacked(i);
+            int ch = PackedNote.getInstrument(note).getChannel() - 1;
+            MuteModifier mute = PackedNote.getMuteModifier(note);
+            if (mute == MuteModifier.MUTE_THIS_PITCH)
+                ops[n++] = op(STOP_PITCH, ch, PackedNote.pitchValue(note), 0);
+            else if (mute == MuteModifier.MUTE_THIS_INST)
+                ops[n++] = op(STOP_CHANNEL, ch, 0, 0);
+        }
+
+        int vel = nl.getVolume();
+        for (int i = 0; i < size; i++) {
+            int note = nl.getPacked(i);
+            if (PackedNote.getMuteModifier(note) == MuteModifier.REGULAR) {
+                int ch = PackedNote.getInstrument(note).getChannel() - 1;
+                ops[n++] = op(NOTE_ON, ch, PackedNote.pitchValue(note), vel);
+            }
+        }
+
+        return n == ops.length ? ops : Arrays.copyOf(ops, n);
+    }
+
+    /**
+     * @return One bit per channel index for the non-sustained instruments
+     *         that have a note of any kind on the line.
+     */
+    private static int releaseMask(NoteLine nl, int sustain) {
+        int mask = 0;
+        for (int i = 0; i < nl.size(); i++) {
+            InstrumentIndex inst = PackedNote.getInstrument(nl.getPacked(i));
+            if ((sustain & (1 << inst.ordinal())) == 0)
+                mask |= 1 << (inst.getChannel() - 1);
+        }
+        return mask;
+    }
+
+    /**
+     * Plays the operations of a line.
+     *
+     * @param ops
+     *            The operations.
+     * @param tracker
+     *            Keeps track of the notes playing on each channel, and
+     *            starts and stops them on its output.
+     */
+    static void execute(int[] ops, NoteTracker tracker) {
+        for (int op : ops) {
+            int ch = channel(op);
+            switch (opcode(op)) {
+            case RELEASE:
+                tracker.releaseChannel(ch);
+                break;
+            case STOP_PITCH:
+                tracker.stopPitch(ch, pitch(op));
+                break;
+            case STOP_CHANNEL:
+                tracker.stopChannel(ch);
+                break;
+            case NOTE_ON:
+                tracker.noteOn(ch, pitch(op), velocity(op));
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    /**
+     * Packs an operation.
+     *
+     * @param opcode
+     *            One of the opcodes of this class.
+     * @param channel
+     *            The channel index.
+     * @param pitch
+     *            The MIDI pitch, or 0.
+     * @param velocity
+     *            The velocity, or 0.
+     * @return The operation.
+     */
+    public static int op(int opcode, int channel, int pitch, int velocity) {
+        return (opcode << 24) | (channel << 16) | (pitch << 8) | velocity;
+    }
+
+    /** @return The opcode of an operation. */
+    public static int opcode(int op) {
+        return op >>> 24;
+    }
+
+    /** @return The channel index of an operation. */
+    public static int channel(int op) {
+        return (op >>> 16) & 0xFF;
+    }
+
+    /** @return The pitch of an operation. */
+    public static int pitch(int op) {
+        return (op >>> 8) & 0xFF;
+    }
+
+    /** @return The velocity of an operation. */
+    public static int velocity(int op) {
+        return op & 0xFF;
+    }
+}
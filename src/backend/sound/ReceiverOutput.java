@@ -0,0 +1,146 @@
+package backend.sound;
+
+import java.util.Arrays;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+import gui.Values;
+
+/**
+ * Sends notes as timestamped MIDI messages to the receivers of a set of
+ * synthesizers. Channel indexes are laid out as in
+ * {@link SMPSynthesizer#getChannels()}: each synthesizer provides every
+ * channel but the drum channel, one synthesizer after the other. With a
+ * {@link ChannelRouter}, notes go to the channels it picks instead.
+ */
+class ReceiverOutput implements NoteOutput {
+
+    /** The "all sound off" controller. */
+    private static final int ALL_SOUND_OFF = 120;
+
+    /** One receiver per synthesizer; filled from the router if there is one. */
+    private final Receiver[] receivers;
+
+    /** Picks the channels of the notes, or <b>null</b> for the fixed layout. */
+    private final ChannelRouter router;
+
+    /**
+     * The timestamp of the messages being sent to each receiver, in
+     * microseconds, or -1.
+     */
+    private final long[] timestamps;
+
+    /**
+     * The message being sent, reused so that playing makes no garbage. The
+     * synthesizers' receivers copy the bytes of the messages they queue.
+     */
+    private final ShortMessage message = new ShortMessage();
+
+    /**
+     * @param receivers
+     *            One receiver per synthesizer, in channel order.
+     */
+    ReceiverOutput(Receiver[] receivers) {
+        this.receivers = receivers;
+        this.router = null;
+        this.timestamps = new long[receivers.length];
+        setTimestamp(-1);
+    }
+
+    /**
+     * @param router
+     *            Picks the channels of the notes and gives the receivers of
+     *            the synthesizers.
+     */
+    ReceiverOutput(ChannelRouter router) {
+        this.receivers = new Receiver[ChannelRouter.MAX_SYNTHS];
+        this.router = router;
+        this.timestamps = new long[ChannelRouter.MAX_SYNTHS];
+        setTimestamp(-1);
+    }
+
+    /**
+     * Sets the timestamp of the messages sent from now on, for receivers
+     * sharing the same time base.
+     * @param micros The time in microseconds, as understood by the receivers;
+     *            -1 means immediately
+     */
+    void setTimestamp(long micros) {
+        Arrays.fill(timestamps, micros);
+    }
+
+    /**
+     * Sets the timestamp of the messages sent from now on to one receiver.
+     * @param synth The index of the synthesizer
+     * @param micros The time in microseconds, as understood by that
+     *            synthesizer; -1 means immediately
+     */
+    void setTimestamp(int synth, long micros) {
+        timestamps[synth] = micros;
+    }
+
+    /**
+     * @param synth The index of the synthesizer
+     * @return The timestamp of the messages sent to it
+     */
+    long getTimestamp(int synth) {
+        return timestamps[synth];
+    }
+
+    /** @return The number of synthesizers. */
+    int synths() {
+        return router == null ? receivers.length : router.synths();
+    }
+
+    /**
+     * Selects the program of every instrument channel and turns reverb off,
+     * as the soundfont loader does for the live synthesizer.
+     */
+    void setUpInstruments() {
+        for (int ch = 0; ch < Values.NUM_INSTRUMENTS; ch++) {
+            send(ShortMessage.PROGRAM_CHANGE, ch, ch, 0);
+            send(ShortMessage.CONTROL_CHANGE, ch, Values.REVERB, 0);
+        }
+    }
+
+    /**
+     * Silences every channel at the current timestamps.
+     */
+    void allSoundOff() {
+        int lanes = synths() * ChannelRouter.CHANNELS_PER_SYNTH;
+        for (int lane = 0; lane < lanes; lane++)
+            send(ShortMessage.CONTROL_CHANGE, lane, ALL_SOUND_OFF, 0);
+    }
+
+    @Override
+    public void noteOn(int channel, int pitch, int velocity) {
+        int lane = router == null ? channel : router.noteOn(channel, pitch);
+        send(ShortMessage.NOTE_ON, lane, pitch, velocity);
+    }
+
+    @Override
+    public void noteOff(int channel, int pitch) {
+        int lane = router == null ? channel : router.noteOff(channel, pitch);
+        // Same release velocity as MidiChannel.noteOff(int)
+        send(ShortMessage.NOTE_OFF, lane, pitch, 64);
+    }
+
+    private void send(int command, int lane, int data1, int data2) {
+        int synth = ChannelRouter.synthOf(lane);
+        try {
+            message.setMessage(command, ChannelRouter.midiChannelOf(lane), data1, data2);
+            receiverOf(synth).send(message, timestamps[synth]);
+        } catch (InvalidMidiDataException | MidiUnavailableException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private Receiver receiverOf(int synth) throws MidiUnavailableException {
+        if (receivers[synth] == null)
+            receivers[synth] = router.receiverOf(synth);
+        return receivers[synth];
+    }
+}
@@ -32,24 +32,27 @@ public class SMPSynthesizer extends MultiSynthesizer {
      * reserved for percussion
      */
     @Override
-    public MidiChannel[] getChannels() {
-        MidiChannel[] oldC = super.getChannels();
+    protected MidiChannel[] buildChannels() {
+        MidiChannel[] oldC = super.buildChannels();
         ArrayList<MidiChannel> rem = new ArrayList<>();
         int ordinal = 1;
         for (MidiChannel m : oldC) {
-            if (ordinal == Values.DRUMCHANNEL) {
-                ordinal++;
-            } else {
+            if (ordinal != Values.DRUMCHANNEL)
                 rem.add(m);
-                ordinal++;
-                if (ordinal > Values.MIDICHANNELS)
-                    ordinal = 1;
-            }
+            ordinal++;
+            if (ordinal > Values.MIDICHANNELS)
+                ordinal = 1;
         }
-        MidiChannel[] ret = new MidiChannel[rem.size()];
-        for (int i = 0; i < rem.size(); i++)
-            ret[i] = rem.get(i);
-        return ret;
+        return rem.toArray(new MidiChannel[0]);
+    }
+
+    /**
+     * @return The number of channels per Synthesizer, without the drum
+     * channel.
+     */
+    @Override
+    public int channelsPerSynth() {
+        return Values.MIDICHANNELS - 1;
     }
 
 }
@@ -2,21 +2,21 @@ package backend.sound;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiChannel;
 import javax.sound.midi.MidiSystem;
 import javax.sound.midi.MidiUnavailableException;
 import javax.sound.midi.Soundbank;
+import javax.sound.midi.Synthesizer;
 
 import backend.songs.MuteModifier;
 import backend.songs.Pitch;
 import backend.songs.Note;
 import backend.songs.NoteLine;
 import gui.InstrumentIndex;
+import gui.Settings;
 import gui.StateMachine;
 import gui.Values;
 
@@ -25,6 +25,10 @@ import gui.Values;
  * A sound player thread that is spawned when one hits play. This thread's
  * purpose is to play sound on a non-JavaFX application thread, to hopefully
  * speed up the program's execution speed.
+ * <p>
+ * Lines are played from the {@link AudioDispatcher} thread while notes can
+ * also be played and stopped from the JavaFX application thread, so the
+ * methods touching the note tracker are synchronized.
  *
  * @author RehdBlob
  * @since 2014.01.07
@@ -48,25 +52,112 @@ public class SoundPlayer {
     private Soundbank bank;
 
     /**
-     * The cache that will contain all soundbanks. Each soundbank is indexed by
-     * its filename.
+     * The cache of soundbanks, indexed by filename, within the budget of
+     * {@link Settings#soundbankCacheMegabytes}.
      */
-    private Map<String, Soundbank> bankCache = new HashMap<>();
+    private final SoundbankCache bankCache = new SoundbankCache(Settings.soundbankCacheMegabytes * 1024L * 1024L);
+
+    /** Sends the notes straight to the MIDI channels. */
+    private final NoteOutput direct = new NoteOutput() {
+        @Override
+        public void noteOn(int channel, int pitch, int velocity) {
+            playSound(channel, pitch, velocity);
+        }
+
+        @Override
+        public void noteOff(int channel, int pitch) {
+            stopSound(channel, pitch);
+        }
+    };
+
+    /**
+     * Sends timestamped messages to the synthesizers' receivers. Created the
+     * first time a line is scheduled; <b>null</b> if scheduling isn't
+     * possible.
+     */
+    private ReceiverOutput scheduled;
+
+    /** Whether we tried to create the scheduled output. */
+    private boolean schedulingChecked = false;
+
+    /** Whether messages were scheduled since the sounds were last stopped. */
+    private boolean pendingScheduled = false;
+
+    /**
+     * For each synthesizer, its microsecond position minus the value of
+     * {@link System#nanoTime()} in microseconds, smoothed over the lines.
+     */
+    private final long[] clockOffsets = new long[ChannelRouter.MAX_SYNTHS];
+
+    /** The number of synthesizers whose clock offset is known. */
+    private int clockedSynths = 0;
+
+    /** Picks the synthesizer and MIDI channel of each note. */
+    private final ChannelRouter router;
+
+    /** Samples the voices used during playback. */
+    private final VoiceMonitor voiceMonitor;
+
+    /** Where the notes currently go. */
+    private NoteOutput target = direct;
+
+    /** What the note tracker uses, so that it follows the current target. */
+    private final NoteOutput output = new NoteOutput() {
+        @Override
+        public void noteOn(int channel, int pitch, int velocity) {
+            target.noteOn(channel, pitch, velocity);
+        }
+
+        @Override
+        public void noteOff(int channel, int pitch) {
+            target.noteOff(channel, pitch);
+        }
+    };
 
     /** This keeps track of which notes are actually playing. */
-    private final NoteTracker tracker = new NoteTracker(this);
+    private final NoteTracker tracker = new NoteTracker(output);
     
     public SoundPlayer(SMPSynthesizer synthesizer, Soundbank bank, MidiChannel[] chan) {
         this.synthesizer = synthesizer;
         this.bank = bank;
         this.chan = chan;
+        this.router = ChannelRouter.withDefaultBudget(synthesizer);
+        this.voiceMonitor = new VoiceMonitor(synthesizer);
+        setVoiceLimit(Settings.maxNotesPlaying, Settings.voiceStealing);
+        
+        tracker.setSustain(StateMachine.noteExtensionsProperty().get());
+        StateMachine.noteExtensionsProperty().addListener(
+                (obs, oldv, newv) -> tracker.setSustain(newv.intValue()));
+    }
+
+    /**
+     * Caps the number of notes playing at once.
+     * @param limit The most notes playing at once, or 0 for as many as the
+     *            synthesizers giving the instruments their channels have
+     *            voices
+     * @param policy Which note to stop when a new one would go over
+     */
+    public synchronized void setVoiceLimit(int limit, VoiceStealingPolicy policy) {
+        if (limit == 0)
+            limit = synthesizer.getMaxPolyphony() * ChannelRouter.SYNTHS_NEEDED;
+        tracker.setVoiceLimit(limit, policy);
+    }
+
+    /** @return The number of notes stopped so far to make room for others. */
+    public synchronized int getStolenCount() {
+        return tracker.getStolenCount();
+    }
+
+    /** @return The monitor of the voices used by the synthesizers. */
+    public VoiceMonitor getVoiceMonitor() {
+        return voiceMonitor;
     }
 
     /**
      * Play a line of notes on the staff, applying mute notes if there are any.
      * @param s A line of notes
      */
-    public void playSoundLine(NoteLine s) {
+    public synchronized void playSoundLine(NoteLine s) {
         List<Note> theNotes = s.getNotes();
         
         tracker.stopNotes(s);
@@ -85,6 +176,75 @@ public class SoundPlayer {
         }
     }
 
+    /**
+     * Play a line of notes compiled by a {@link PlaybackProgram}.
+     * @param ops The operations of the line
+     */
+    public synchronized void playCompiledLine(int[] ops) {
+        PlaybackProgram.execute(ops, tracker);
+    }
+
+    /**
+     * Schedules a line of notes compiled by a {@link PlaybackProgram}: its
+     * messages are sent now to the synthesizers' receivers, timestamped so
+     * that the synthesizers play them exactly at <code>deadline</code>. If
+     * the synthesizers can't take timestamps, the line is played right away.
+     * @param ops The operations of the line
+     * @param deadline When the line must sound, as given by
+     *            {@link System#nanoTime()}
+     */
+    public synchronized void playCompiledLine(int[] ops, long deadline) {
+        ReceiverOutput out = getScheduledOutput();
+        if (out == null) {
+            playCompiledLine(ops);
+            return;
+        }
+
+        List<Synthesizer> synths = synthesizer.getSynthesizers();
+        for (int k = 0; k < out.synths(); k++) {
+            long position = synths.get(k).getMicrosecondPosition();
+            long estimate = position - System.nanoTime() / 1000;
+            if (k >= clockedSynths) {
+                // A synthesizer the router just added
+                clockOffsets[k] = estimate;
+                clockedSynths = k + 1;
+            }
+            // The audio clock moves by whole buffers; average that out
+            clockOffsets[k] += (estimate - clockOffsets[k]) / 8;
+            out.setTimestamp(k, deadline / 1000 + clockOffsets[k]);
+        }
+
+        target = out;
+        try {
+            PlaybackProgram.execute(ops, tracker);
+        } finally {
+            target = direct;
+        }
+        pendingScheduled = true;
+    }
+
+    /**
+     * @return The output scheduling messages on the synthesizers' receivers,
+     *         or <b>null</b> if the synthesizers don't support it.
+     */
+    private ReceiverOutput getScheduledOutput() {
+        if (schedulingChecked)
+            return scheduled;
+        schedulingChecked = true;
+
+        List<Synthesizer> synths = synthesizer.getSynthesizers();
+        for (int k = 0; k < router.synths(); k++) {
+            long position = synths.get(k).getMicrosecondPosition();
+            if (position < 0)
+                return null;
+            clockOffsets[k] = position - System.nanoTime() / 1000;
+        }
+        clockedSynths = router.synths();
+
+        scheduled = new ReceiverOutput(router);
+        return scheduled;
+    }
+
     /**
      * Plays a sound.
      *
@@ -93,9 +253,8 @@ public class SoundPlayer {
      * @param s
      *            The StaffNoteLine.
      */
-    public void playSound(Note sn, int vel) {
-        playSound(sn.getInstrument(), sn.getPitch(), vel);
-        tracker.addNotePlaying(sn.getInstrument(), sn.getPitch());
+    public synchronized void playSound(Note sn, int vel) {
+        tracker.noteOn(sn.getInstrument().getChannel() - 1, sn.getPitch().getValue(), vel);
     }
 
     /**
@@ -105,7 +264,7 @@ public class SoundPlayer {
      *            The StaffNote.
      */
     private void stopSound(Note sn) {
-        stopSound(sn.getInstrument(), sn.getPitch());
+        tracker.stopPitch(sn.getInstrument().getChannel() - 1, sn.getPitch().getValue());
     }
 
     /**
@@ -120,10 +279,21 @@ public class SoundPlayer {
     /**
      * Turn off all sounds.
      */
-    public void stopAllInstruments() {
+    public synchronized void stopAllInstruments() {
         for (InstrumentIndex inst : InstrumentIndex.values()) {
             tracker.stopInstrument(inst);
         }
+        router.allOverflowSoundOff();
+        
+        // Notes already handed to the synthesizers would still start later;
+        // silence everything right after the last of them
+        if (pendingScheduled) {
+            for (int k = 0; k < scheduled.synths(); k++)
+                scheduled.setTimestamp(k, scheduled.getTimestamp(k) + 1);
+            scheduled.allSoundOff();
+            pendingScheduled = false;
+        }
+        router.reset();
         
     }
     
@@ -147,6 +317,7 @@ public class SoundPlayer {
             bank = MidiSystem.getSoundbank(f);
             synthesizer.loadAllInstruments(bank);
             StateMachine.setCurrentSoundset(f.getName());
+            bankCache.pin(f.getName());
         }
     }
     
@@ -174,7 +345,7 @@ public class SoundPlayer {
      */
     public void storeInCache() {
         String currentSoundset = StateMachine.getCurrentSoundset();
-        if(!bankCache.containsKey(currentSoundset))
+        if(!bankCache.contains(currentSoundset))
             bankCache.put(currentSoundset, bank);
     }
     
@@ -193,7 +364,7 @@ public class SoundPlayer {
         if(soundset.isEmpty())
             return;
         File f = new File(Values.SOUNDFONTS_FOLDER + soundset);
-        if(!bankCache.containsKey(soundset)) {
+        if(bankCache.get(soundset) == null) {
             Soundbank sb = MidiSystem.getSoundbank(f);
             bankCache.put(soundset, sb);
         }
@@ -212,17 +383,19 @@ public class SoundPlayer {
     public boolean loadFromCache(String soundset) {
         if(StateMachine.getCurrentSoundset().equals(soundset))
             return true;
-        if(bankCache.containsKey(soundset)) {
-            bank = bankCache.get(soundset);
+        Soundbank cached = bankCache.get(soundset);
+        if(cached != null) {
+            bank = cached;
             synthesizer.loadAllInstruments(bank);
             StateMachine.setCurrentSoundset(soundset);
+            bankCache.pin(soundset);
             return true;
         }
         return false;
     }
 
     /**
-     * Clears the bankCache.
+     * Clears the bankCache, except for the soundbank currently loaded.
      * 
      * @since v1.1.2
      */
@@ -230,6 +403,23 @@ public class SoundPlayer {
         bankCache.clear();
     }
 
+    /**
+     * @param soundset
+     *            The soundset name (e.g. soundset3.sf2)
+     * @return Whether the soundset is loaded or cached, so that switching to
+     *         it doesn't read its file
+     */
+    public boolean isSoundsetReady(String soundset) {
+        return StateMachine.getCurrentSoundset().equals(soundset) || bankCache.contains(soundset);
+    }
+
+    /**
+     * @return The cache of soundbanks, for its statistics and budget.
+     */
+    public SoundbankCache getBankCache() {
+        return bankCache;
+    }
+
     /**
      * @return An Array of references for MidiChannel objects needed to
      * play sounds.
@@ -243,13 +433,30 @@ public class SoundPlayer {
     }
 
     public void playSound(InstrumentIndex inst, Pitch pitch, int vel) {
-        int iChan = inst.getChannel() - 1;
-        chan[iChan].noteOn(pitch.getValue(), vel);
+        playSound(inst.getChannel() - 1, pitch.getValue(), vel);
     }
     
     public void stopSound(InstrumentIndex inst, Pitch pitch) {
-        int iChan = inst.getChannel() - 1;
-        chan[iChan].noteOff(pitch.getValue());
+        stopSound(inst.getChannel() - 1, pitch.getValue());
+    }
+
+    /**
+     * Starts a note.
+     * @param iChan The channel index, that is the instrument's channel minus one
+     * @param pitch The MIDI pitch
+     * @param vel The velocity
+     */
+    public void playSound(int iChan, int pitch, int vel) {
+        router.channelOf(router.noteOn(iChan, pitch)).noteOn(pitch, vel);
+    }
+
+    /**
+     * Stops a note.
+     * @param iChan The channel index, that is the instrument's channel minus one
+     * @param pitch The MIDI pitch
+     */
+    public void stopSound(int iChan, int pitch) {
+        router.channelOf(router.noteOff(iChan, pitch)).noteOff(pitch);
     }
 
 }
@@ -0,0 +1,209 @@
+package backend.sound;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.sound.midi.Soundbank;
+import javax.sound.midi.SoundbankResource;
+import javax.sound.sampled.AudioInputStream;
+
+/**
+ * Soundbanks kept in memory by soundset name, within a budget of bytes.
+ * <p>
+ * The size of a bank is estimated from its sample data, which is what takes
+ * the memory. When the banks go over the budget the least recently used ones
+ * are dropped, except the pinned one: the bank currently loaded in the
+ * synthesizer, which stays in memory anyway.
+ * <p>
+ * The methods are synchronized; banks may be cached from a background
+ * thread while playback takes them.
+ */
+public class SoundbankCache {
+
+    /** A cached bank and its estimated size. */
+    private static class Entry {
+        final Soundbank bank;
+        final long size;
+
+        Entry(Soundbank bank, long size) {
+            this.bank = bank;
+            this.size = size;
+        }
+    }
+
+    /** The banks, least recently used first. */
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** The most bytes the banks may take. */
+    private long budget;
+
+    /** The bytes the banks take. */
+    private long size = 0;
+
+    /** The soundset that is never evicted, or <b>null</b>. */
+    private String pinned;
+
+    /** Counters of the uses of the cache. */
+    private int hits = 0;
+    private int misses = 0;
+    private int evictions = 0;
+
+    /**
+     * @param budget
+     *            The most bytes of sample data to keep.
+     */
+    public SoundbankCache(long budget) {
+        setBudget(budget);
+    }
+
+    /**
+     * Gets a bank, counting a hit or a miss.
+     *
+     * @param soundset
+     *            The soundset name
+     * @return The bank, or <b>null</b> if it isn't cached
+     */
+    public synchronized Soundbank get(String soundset) {
+        Entry e = entries.get(soundset);
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.bank;
+    }
+
+    /**
+     * @param soundset
+     *            The soundset name
+     * @return Whether the bank is cached; doesn't count as a use
+     */
+    public synchronized boolean contains(String soundset) {
+        return entries.containsKey(soundset);
+    }
+
+    /**
+     * Caches a bank, replacing the one of the same name, and evicts banks
+     * until the budget is met.
+     *
+     * @param soundset
+     *            The soundset name
+     * @param bank
+     *            The bank
+     */
+    public synchronized void put(String soundset, Soundbank bank) {
+        Entry old = entries.put(soundset, new Entry(bank, estimateSize(bank)));
+        if (old != null)
+            size -= old.size;
+        size += entries.get(soundset).size;
+        trim();
+    }
+
+    /**
+     * Keeps a bank from being evicted; the previously pinned one may be.
+     *
+     * @param soundset
+     *            The soundset name, or <b>null</b> to pin nothing
+     */
+    public synchronized void pin(String soundset) {
+        pinned = soundset;
+        trim();
+    }
+
+    /** Drops all the banks but the pinned one. */
+    public synchronized void clear() {
+        entries.keySet().removeIf(name -> !name.equals(pinned));
+        size = entries.values().stream().mapToLong(e -> e.size).sum();
+    }
+
+    /**
+     * @param budget
+     *            The most bytes of sample data to keep; banks are evicted if
+     *            it is lower than before.
+     */
+    public synchronized void setBudget(long budget) {
+        if (budget < 0)
+            throw new IllegalArgumentException("Invalid budget " + budget);
+        this.budget = budget;
+        trim();
+    }
+
+    /** @return The most bytes of sample data to keep. */
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    /** @return The estimated bytes of the cached banks. */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /** @return The number of banks found in the cache. */
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    /** @return The number of banks not found in the cache. */
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /** @return The number of banks dropped to meet the budget. */
+    public synchronized int getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d banks, %d/%d KB, %d hits, %d misses, %d evictions",
+                entries.size(), size / 1024, budget / 1024, hits, misses, evictions);
+    }
+
+    /** Evicts least recently used banks until the budget is met. */
+    private void trim() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (size > budget && it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            if (e.getKey().equals(pinned))
+                continue;
+            size -= e.getValue().size;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Estimates the memory taken by a soundbank from the length of its
+     * samples.
+     *
+     * @param bank
+     *            The bank
+     * @return The estimated size in bytes
+     */
+    public static long estimateSize(Soundbank bank) {
+        long bytes = 0;
+        for (SoundbankResource r : bank.getResources()) {
+            Object data = r.getData();
+            if (data instanceof AudioInputStream) {
+                try (AudioInputStream ais = (AudioInputStream) data) {
+                    // Samples held in memory report what they hold; the frame
+                    // length of SF2 samples is really their length in bytes
+                    int available = ais.available();
+                    long frames = ais.getFrameLength();
+                    int frameSize = ais.getFormat().getFrameSize();
+                    if (available > 0)
+                        bytes += available;
+                    else if (frames > 0 && frameSize > 0)
+                        bytes += frames * frameSize;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            } else if (data instanceof byte[]) {
+                bytes += ((byte[]) data).length;
+            }
+        }
+        return bytes;
+    }
+}
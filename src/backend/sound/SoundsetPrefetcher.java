@@ -0,0 +1,162 @@
+package backend.sound;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.sound.midi.InvalidMidiDataException;
+
+/**
+ * Parses the soundsets of the coming songs of an arrangement in the
+ * background, so that switching songs doesn't wait for a soundfont file.
+ * <p>
+ * Playback tells the prefetcher which song it is at with {@link #ahead}; the
+ * soundsets of the next songs, up to the depth, are then put in the
+ * {@link SoundPlayer}'s cache by a background thread. Before a song starts,
+ * {@link #ensureReady} makes sure its soundset is cached, waiting for it if
+ * needed; every such wait is a stall, counted and timed.
+ */
+public class SoundsetPrefetcher {
+
+    /** The player whose cache receives the soundsets. */
+    private final SoundPlayer player;
+
+    /** Parses the soundsets, one at a time. */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "SMP soundset prefetch");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** The soundsets being parsed. */
+    private final Map<String, Future<?>> pending = new ConcurrentHashMap<>();
+
+    /** How many songs ahead soundsets are parsed. */
+    private volatile int depth;
+
+    /** The number of songs that had to wait for their soundset. */
+    private int stalls = 0;
+
+    /** The total time waited for soundsets, in nanoseconds. */
+    private long stallNanos = 0;
+
+    /**
+     * @param player
+     *            The player whose cache receives the soundsets.
+     * @param depth
+     *            How many songs ahead soundsets are parsed.
+     */
+    public SoundsetPrefetcher(SoundPlayer player, int depth) {
+        this.player = player;
+        setDepth(depth);
+    }
+
+    /**
+     * @param depth
+     *            How many songs ahead soundsets are parsed.
+     */
+    public void setDepth(int depth) {
+        if (depth < 0)
+            throw new IllegalArgumentException("Invalid prefetch depth " + depth);
+        this.depth = depth;
+    }
+
+    /**
+     * Parses a soundset in the background, unless it is cached or being
+     * parsed already.
+     *
+     * @param soundset
+     *            The soundset name
+     */
+    public void prefetch(String soundset) {
+        if (soundset == null || soundset.isEmpty() || player.isSoundsetReady(soundset))
+            return;
+        pending.computeIfAbsent(soundset, s -> executor.submit(() -> {
+            try {
+                player.loadToCache(s);
+            } catch (InvalidMidiDataException | IOException e) {
+                e.printStackTrace();
+            } finally {
+                pending.remove(s);
+            }
+        }));
+    }
+
+    /**
+     * Tells where playback is; the soundsets of the songs that follow it, up
+     * to the depth, are parsed in the background.
+     *
+     * @param soundsets
+     *            The soundsets of the songs being played, in order, which
+     *            needn't be decoded for it.
+     * @param index
+     *            The index of the song playing or about to play.
+     */
+    public void ahead(List<String> soundsets, int index) {
+        int last = Math.min(soundsets.size() - 1, index + depth);
+        for (int i = index + 1; i <= last; i++)
+            prefetch(soundsets.get(i));
+    }
+
+    /**
+     * Makes sure a soundset is cached, parsing it on this thread or waiting
+     * for the background thread if it isn't. Counts a stall if it had to.
+     *
+     * @param soundset
+     *            The soundset name
+     * @return How long it waited, in nanoseconds; 0 if the soundset was
+     *         ready
+     */
+    public long ensureReady(String soundset) {
+        if (soundset == null || soundset.isEmpty() || player.isSoundsetReady(soundset))
+            return 0;
+
+        long start = System.nanoTime();
+        Future<?> f = pending.get(soundset);
+        try {
+            if (f != null)
+                f.get();
+            else
+                player.loadToCache(soundset);
+        } catch (ExecutionException | CancellationException | InvalidMidiDataException | IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        long waited = System.nanoTime() - start;
+        synchronized (this) {
+            stalls++;
+            stallNanos += waited;
+        }
+        return waited;
+    }
+
+    /** Stops parsing the soundsets not started yet. */
+    public void cancel() {
+        for (Future<?> f : pending.values())
+            f.cancel(false);
+        pending.clear();
+    }
+
+    /** @return The number of songs that had to wait for their soundset. */
+    public synchronized int getStalls() {
+        return stalls;
+    }
+
+    /** @return The total time waited for soundsets, in nanoseconds. */
+    public synchronized long getStallNanos() {
+        return stallNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d stalls, %.1f ms waited", stalls, stallNanos / 1e6);
+    }
+}
@@ -0,0 +1,110 @@
+package backend.sound;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Counts the bytes a few threads allocate on the heap, to check that
+ * playback makes no garbage once it runs: garbage means collections, and a
+ * collection pausing the playback thread makes lines late.
+ * <p>
+ * The count starts at {@link #start}; {@link #mark} starts a second count,
+ * for the steady state once the lines have all been compiled. The JVM may
+ * not support counting, in which case every count is -1.
+ */
+public class ThreadAllocations {
+
+    /** The bean counting allocations, or <b>null</b> if unsupported. */
+    private static final com.sun.management.ThreadMXBean BEAN = bean();
+
+    private static com.sun.management.ThreadMXBean bean() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+            return null;
+        com.sun.management.ThreadMXBean b = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!b.isThreadAllocatedMemorySupported())
+            return null;
+        if (!b.isThreadAllocatedMemoryEnabled())
+            b.setThreadAllocatedMemoryEnabled(true);
+        return b;
+    }
+
+    /** The threads counted. */
+    private long[] threads = new long[0];
+
+    /** The bytes they had allocated at the start. */
+    private long[] started = new long[0];
+
+    /** The bytes they had allocated at the mark, or <b>null</b> if not marked. */
+    private long[] marked;
+
+    /**
+     * Starts counting.
+     *
+     * @param threadIds
+     *            The ids of the threads to count
+     */
+    public synchronized void start(long... threadIds) {
+        threads = threadIds.clone();
+        started = allocated();
+        marked = null;
+    }
+
+    /** Starts the count of the steady state, unless already started. */
+    public synchronized void mark() {
+        if (marked == null)
+            marked = allocated();
+    }
+
+    /** @return Whether the steady state count was started. */
+    public synchronized boolean isMarked() {
+        return marked != null;
+    }
+
+    /** @return The bytes allocated since the start, or -1 if unsupported. */
+    public synchronized long sinceStart() {
+        return since(started);
+    }
+
+    /**
+     * @return The bytes allocated since the mark, or -1 if unsupported or
+     *         not marked.
+     */
+    public synchronized long sinceMark() {
+        return marked == null ? -1 : since(marked);
+    }
+
+    private long since(long[] base) {
+        if (BEAN == null || base == null)
+            return -1;
+        long sum = 0;
+        for (int k = 0; k < threads.length; k++) {
+            long now = BEAN.getThreadAllocatedBytes(threads[k]);
+            // -1 for a thread that ended
+            if (now >= 0 && base[k] >= 0)
+                sum += now - base[k];
+        }
+        return sum;
+    }
+
+    /** @return What each thread has allocated, or <b>null</b> if unsupported. */
+    private long[] allocated() {
+        if (BEAN == null)
+            return null;
+        // Thread by thread into an array made first: asking for all of them
+        // at once would make the array of the answer after counting, and
+        // count it the next time
+        long[] bytes = new long[threads.length];
+        for (int k = 0; k < threads.length; k++)
+            bytes[k] = BEAN.getThreadAllocatedBytes(threads[k]);
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long total = sinceStart();
+        if (total < 0)
+            return "not supported";
+        long steady = sinceMark();
+        return steady < 0 ? String.format("%d bytes", total)
+                : String.format("%d bytes, %d after the first pass", total, steady);
+    }
+}
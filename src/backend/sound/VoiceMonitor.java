@@ -0,0 +1,205 @@
+package backend.sound;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.midi.Synthesizer;
+import javax.sound.midi.VoiceStatus;
+
+import gui.Values;
+
+/**
+ * Samples how many voices the synthesizers are using while it runs.
+ * <p>
+ * Every {@link #SAMPLE_MILLIS} milliseconds the voice status of each
+ * synthesizer is read, and the active voices are counted per synthesizer
+ * and per lane of the {@link ChannelRouter}. The peak and average of those
+ * counts tell how close dense songs get to {@link Synthesizer#getMaxPolyphony()}
+ * and which instruments need the voices.
+ */
+public class VoiceMonitor {
+
+    /** The time between two samples. */
+    public static final long SAMPLE_MILLIS = 50;
+
+    private static final int MAX_LANES = ChannelRouter.MAX_SYNTHS * ChannelRouter.CHANNELS_PER_SYNTH;
+
+    private final MultiSynthesizer synthesizer;
+
+    private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "SMP voice monitor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** The sampling task, or <b>null</b> when stopped. */
+    private ScheduledFuture<?> sampling;
+
+    /** The number of samples taken. */
+    private int samples;
+
+    /** The peak and the sum of the voices of all synthesizers. */
+    private int peak;
+    private long sum;
+
+    /** The peak and the sum of the voices of each synthesizer. */
+    private final int[] synthPeak = new int[ChannelRouter.MAX_SYNTHS];
+    private final long[] synthSum = new long[ChannelRouter.MAX_SYNTHS];
+
+    /** The peak and the sum of the voices of each lane. */
+    private final int[] lanePeak = new int[MAX_LANES];
+    private final long[] laneSum = new long[MAX_LANES];
+
+    /** Voices per lane in the sample being taken. */
+    private final int[] laneNow = new int[MAX_LANES];
+
+    /**
+     * @param synthesizer
+     *            The synthesizers to watch.
+     */
+    public VoiceMonitor(MultiSynthesizer synthesizer) {
+        this.synthesizer = synthesizer;
+    }
+
+    /**
+     * Clears the statistics and starts sampling, unless already sampling.
+     */
+    public synchronized void start() {
+        if (sampling != null)
+            return;
+        reset();
+        sampling = sampler.scheduleAtFixedRate(() -> {
+            try {
+                sample();
+            } catch (RuntimeException e) {
+                // Keep sampling; an exception would cancel the task
+                e.printStackTrace();
+            }
+        }, 0, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops sampling. The statistics are kept.
+     */
+    public synchronized void stop() {
+        if (sampling != null) {
+            sampling.cancel(false);
+            sampling = null;
+        }
+    }
+
+    /** Clears the statistics. */
+    public synchronized void reset() {
+        samples = 0;
+        peak = 0;
+        sum = 0;
+        Arrays.fill(synthPeak, 0);
+        Arrays.fill(synthSum, 0);
+        Arrays.fill(lanePeak, 0);
+        Arrays.fill(laneSum, 0);
+    }
+
+    /** Takes one sample. */
+    synchronized void sample() {
+        List<Synthesizer> synths = synthesizer.getSynthesizers();
+        int total = 0;
+        for (int k = 0; k < synths.size() && k < ChannelRouter.MAX_SYNTHS; k++) {
+            int voices = 0;
+            for (VoiceStatus v : synths.get(k).getVoiceStatus()) {
+                if (!v.active)
+                    continue;
+                voices++;
+                int lane = laneOf(k, v.channel);
+                if (lane >= 0)
+                    laneNow[lane]++;
+            }
+            synthPeak[k] = Math.max(synthPeak[k], voices);
+            synthSum[k] += voices;
+            total += voices;
+        }
+
+        for (int lane = 0; lane < MAX_LANES; lane++) {
+            lanePeak[lane] = Math.max(lanePeak[lane], laneNow[lane]);
+            laneSum[lane] += laneNow[lane];
+            laneNow[lane] = 0;
+        }
+        peak = Math.max(peak, total);
+        sum += total;
+        samples++;
+    }
+
+    /** @return The lane of a MIDI channel of a synthesizer, or -1 for the drum channel. */
+    private static int laneOf(int synth, int midiChannel) {
+        if (midiChannel == Values.DRUMCHANNEL - 1)
+            return -1;
+        int slot = midiChannel < Values.DRUMCHANNEL - 1 ? midiChannel : midiChannel - 1;
+        return synth * ChannelRouter.CHANNELS_PER_SYNTH + slot;
+    }
+
+    /** @return The number of samples taken. */
+    public synchronized int getSamples() {
+        return samples;
+    }
+
+    /** @return The most voices active at once over all synthesizers. */
+    public synchronized int getPeak() {
+        return peak;
+    }
+
+    /** @return The average number of voices active over all synthesizers. */
+    public synchronized double getAverage() {
+        return samples == 0 ? 0 : (double) sum / samples;
+    }
+
+    /**
+     * @param synth The index of a synthesizer
+     * @return The most voices it had active at once
+     */
+    public synchronized int getPeak(int synth) {
+        return synthPeak[synth];
+    }
+
+    /**
+     * @param synth The index of a synthesizer
+     * @return The average number of voices it had active
+     */
+    public synchronized double getAverage(int synth) {
+        return samples == 0 ? 0 : (double) synthSum[synth] / samples;
+    }
+
+    /**
+     * @param lane A lane of the {@link ChannelRouter}
+     * @return The most voices it had active at once
+     */
+    public synchronized int getLanePeak(int lane) {
+        return lanePeak[lane];
+    }
+
+    /**
+     * @param lane A lane of the {@link ChannelRouter}
+     * @return The average number of voices it had active
+     */
+    public synchronized double getLaneAverage(int lane) {
+        return samples == 0 ? 0 : (double) laneSum[lane] / samples;
+    }
+
+    @Override
+    public synchronized String toString() {
+        List<Synthesizer> synths = synthesizer.getSynthesizers();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d samples, peak %d voices, average %.1f", samples, peak, getAverage()));
+        for (int k = 0; k < synths.size() && k < ChannelRouter.MAX_SYNTHS; k++)
+            sb.append(String.format("; synth %d: peak %d/%d, average %.1f", k, synthPeak[k],
+                    synths.get(k).getMaxPolyphony(), getAverage(k)));
+        sb.append("; lane peaks:");
+        for (int lane = 0; lane < MAX_LANES; lane++) {
+            if (lanePeak[lane] > 0)
+                sb.append(' ').append(lane).append('=').append(lanePeak[lane]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,29 @@
+package backend.sound;
+
+/**
+ * Which note the {@link NoteTracker} stops when a new note would take more
+ * notes playing than allowed.
+ * <p>
+ * The synthesizer steals voices on its own once it runs out of them, without
+ * regard for what the song needs. Stopping a note of our choosing just before
+ * that happens decides which note is lost.
+ */
+public enum VoiceStealingPolicy {
+
+    /** Never stop a note; leave it to the synthesizer. */
+    NONE,
+
+    /**
+     * Stop the oldest note of a sustained instrument, which has usually
+     * decayed the most; the oldest note of any instrument if none is
+     * sustained.
+     */
+    OLDEST_SUSTAINED,
+
+    /** Stop the oldest note. */
+    OLDEST,
+
+    /** Stop the quietest note, the oldest of them if several are as quiet. */
+    LOWEST_VELOCITY;
+
+}
@@ -7,9 +7,9 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.io.StreamCorruptedException;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 import javax.sound.midi.MidiChannel;
 
@@ -18,9 +18,11 @@ import backend.saving.Decoder;
 import backend.songs.Accidental;
 import backend.songs.MuteModifier;
 import backend.songs.Arrangement;
+import backend.songs.ArrangementEntry;
 import backend.songs.Note;
 import backend.songs.Song;
 import backend.songs.TimeSignature;
+import backend.sound.OfflineRenderer;
 import backend.sound.SoundPlayer;
 import gui.clipboard.StaffClipboard;
 import gui.clipboard.StaffRubberBand;
@@ -34,6 +36,7 @@ import gui.components.staff.StaffDisplayManager;
 import gui.components.staff.StaffMouseEventHandler;
 import gui.events.KeyboardHandlerMaker;
 import gui.loaders.ImageIndex;
+import gui.loaders.SpriteAtlas;
 import javafx.application.Platform;
 import javafx.beans.InvalidationListener;
 import javafx.beans.binding.Bindings;
@@ -49,7 +52,6 @@ import javafx.scene.control.Slider;
 import javafx.scene.control.TextField;
 import javafx.scene.control.ToggleGroup;
 import javafx.scene.control.Tooltip;
-import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.input.KeyEvent;
 import javafx.scene.layout.AnchorPane;
@@ -161,7 +163,7 @@ public class SMPFXController {
     private Parent arrangerView;
     
     @FXML
-    private ListView<Song> arrangementList;
+    private ListView<ArrangementEntry> arrangementList;
 
     /** This is the text that displays the current tempo of the song. */
     @FXML
@@ -196,7 +198,7 @@ public class SMPFXController {
     
     private ModifySongManager commandManager;
     
-    private Map<ImageIndex, Image> imagesHolder;
+    private SpriteAtlas imagesHolder;
     private SoundPlayer soundPlayer;
     
     /** Handles the options menu */
@@ -320,19 +322,19 @@ public class SMPFXController {
             if (songIndex == -1)
             	return;
             
-            List<Song> seq = staff.getArrangement().getSequences();
             Window owner = arrangementList.getScene().getWindow();
             
             if (!confirmOperation(owner, "Load anyway?", true, false))
             	return;
             
-            staff.populateStaff(seq.get(songIndex));
-            seq.set(songIndex, staff.getSequence());
+            // Decodes the song if it isn't in memory; the arrangement keeps
+            // it while it is on the staff, and after if it is edited
+            staff.populateStaff(staff.getArrangement().getSong(songIndex));
         });
         
         arrangementList.setCellFactory(list -> new ListCell<>() {
         	@Override
-        	public void updateItem(Song song, boolean empty) {
+        	public void updateItem(ArrangementEntry song, boolean empty) {
         		super.updateItem(song, empty);
         		
         		setGraphic(null);
@@ -351,7 +353,7 @@ public class SMPFXController {
         
         selectedInst.imageProperty().bind(Bindings.createObjectBinding(() -> {
             InstrumentIndex i = StateMachine.getSelectedInstrument();
-            return imagesHolder.get(ImageIndex.valueOf(i.toString()));
+            return imagesHolder.getSharp(ImageIndex.valueOf(i.toString()));
         }, StateMachine.selectedInstrumentProperty()));
         
         // Set up clipboard.
@@ -467,7 +469,9 @@ public class SMPFXController {
             @SuppressWarnings("java:S3358")
             int i = (inst.ordinal() == 15) ? 16 : (inst.ordinal() == 16) ? 15 : inst.ordinal();
             
-            staff.getSequence().getNoteExtensions()[i] = !ex;
+            boolean[] ext = staff.getSequence().getNoteExtensions().clone();
+            ext[i] = !ex;
+            staff.getSequence().setNoteExtensions(ext);
             
         } else if (StateMachine.isCtrlPressed()) {
             int flt = StateMachine.getFilteredNotes();
@@ -503,8 +507,8 @@ public class SMPFXController {
         n.getChildren().clear();
         
         for (InstrumentIndex inst : InstrumentIndex.values()) {
-            SMPInstrumentButton b = new SMPInstrumentButton(inst.name(), imagesHolder.get(inst.smImageIndex()), imagesHolder.get(inst.smaImageIndex()));
-            b.setImageFiltered(imagesHolder.get(ImageIndex.FILTER));
+            SMPInstrumentButton b = new SMPInstrumentButton(inst.name(), imagesHolder.getSharp(inst.smImageIndex()), imagesHolder.getSharp(inst.smaImageIndex()));
+            b.setImageFiltered(imagesHolder.getSharp(ImageIndex.FILTER));
             b.setFitHeight(28);
             b.setFitWidth(26);
             b.setFocusTraversable(false);
@@ -645,7 +649,7 @@ public class SMPFXController {
     @FXML
     public void addSongtoArrangement(ActionEvent e) {
         if (staff.addSongToArrangement()) {
-            arrangementList.getItems().add(staff.getSequence());
+            arrangementList.getItems().add(staff.getArrangement().getEntries().getLast());
             arrangementList.scrollTo(arrangementList.getItems().size() - 1);
         }
     }
@@ -670,12 +674,12 @@ public class SMPFXController {
     }
     
     private void moveSongInArrangement(ActionEvent e, int diff) {
-        ObservableList<Song> l = arrangementList.getItems();
+        ObservableList<ArrangementEntry> l = arrangementList.getItems();
         int i = arrangementList.getSelectionModel().getSelectedIndex();
         int moveTo = MathUtils.clamp(i + diff, 0, l.size());
         
         if (staff.moveSongInArrangement(i, moveTo)) {
-            Song s = l.remove(i);
+            ArrangementEntry s = l.remove(i);
             l.add(moveTo, s);
             arrangementList.getSelectionModel().select(moveTo);
             arrangementList.scrollTo(moveTo);
@@ -756,12 +760,6 @@ public class SMPFXController {
                 return;
             FileOutputStream fOut = new FileOutputStream(outputFile);
             Arrangement out = staff.getArrangement();
-            
-            for (int i = 0; i < out.getSequences().size(); i++) {
-            	String name = arrangementList.getItems().get(i).getTitle();
-            	out.getSequences().get(i).setTitle(name);
-            }
-            
             saveArrTxt(fOut, out);
             fOut.close();
             StateMachine.setCurrentDirectory(new File(outputFile.getParent()));
@@ -773,7 +771,7 @@ public class SMPFXController {
 
     public void saveArrTxt(FileOutputStream fOut, Arrangement out) {
         PrintStream pr = new PrintStream(fOut);
-        for (Song seq : out.getSequences()) {
+        for (ArrangementEntry seq : out.getEntries()) {
             pr.println(seq.getTitle());
         }
         pr.close();
@@ -819,15 +817,15 @@ public class SMPFXController {
                 Utilities.longFromBool(seq.getNoteExtensions()), t, seq.getSoundset());
         
         for (int i = 0; i < seq.getLength(); i++) {
-            if (seq.getLine(i).getNotes().isEmpty()) {
+            if (seq.peekLine(i).getNotes().isEmpty()) {
                 continue;
             }
             pr.print("" + (i / t.top() + 1) + ":" + (i % t.top()) + ",");
-            List<Note> line = seq.getLine(i).getNotes();
+            List<Note> line = seq.peekLine(i).getNotes();
             for (int j = 0; j < line.size(); j++) {
                 pr.print(noteToString(line.get(j)) + ",");
             }
-            pr.printf("VOL: %d\r\n", seq.getLine(i).getVolume());
+            pr.printf("VOL: %d\r\n", seq.peekLine(i).getVolume());
         }
         pr.close();
 
@@ -836,9 +834,9 @@ public class SMPFXController {
         Task<Void> soundsetsTaskSave = new Task<Void>() {
             @Override
             public Void call() {
-                List<Song> seqs = staff.getArrangement().getSequences();
+                List<ArrangementEntry> seqs = staff.getArrangement().getEntries();
                 String currSeqName = getNameTextField().getText();
-                for (Song seq : seqs) 
+                for (ArrangementEntry seq : seqs) 
                     if (seq.getTitle().equals(currSeqName)) {
                         soundPlayer.storeInCache();
                         break;
@@ -849,6 +847,70 @@ public class SMPFXController {
         
         new Thread(soundsetsTaskSave).start();
     }
+
+    /**
+     * Renders the song or the arrangement to a WAV file, in the background.
+     * The songs are copied first, so that they can be edited meanwhile.
+     *
+     * @param owner
+     *            The window of the dialogs.
+     */
+    public void export(Window owner) {
+        Platform.runLater(() -> exportWav(owner));
+    }
+
+    private void exportWav(Window owner) {
+        String chosenSongName = getNameTextField().getText();
+        if (!Utilities.legalFileName(chosenSongName)) {
+            Dialog.showDialog(null, "Illegal file name!\nPlease avoid those characters:\n /, \\, <, >, :, |, *, \", ?, ^", owner);
+            return;
+        }
+        
+        FileChooser f = new FileChooser();
+        f.setInitialDirectory(StateMachine.getCurrentDirectory());
+        f.setInitialFileName(chosenSongName + ".wav");
+        f.getExtensionFilters().addAll(
+                new ExtensionFilter("WAV file", "*.wav"),
+                new ExtensionFilter("All files", "*"));
+        File outputFile = f.showSaveDialog(owner);
+        if (outputFile == null)
+            return;
+        StateMachine.setCurrentDirectory(new File(outputFile.getParent()));
+        
+        boolean arrangement = StateMachine.getMode() == SMPMode.ARRANGEMENT;
+        Song current = new Song(staff.getSequence());
+        current.setTempo(StateMachine.getTempo());
+        Arrangement arr = staff.getArrangement();
+        List<ArrangementEntry> entries = List.copyOf(arr.getEntries());
+        
+        Task<Void> exportTask = new Task<Void>() {
+            @Override
+            public Void call() throws Exception {
+                List<Song> songs = new ArrayList<>();
+                if (arrangement) {
+                    // Decoding may take a while, copying has to be done
+                    // where the songs are edited
+                    for (ArrangementEntry entry : entries) {
+                        Song song = arr.getSong(entry);
+                        songs.add(Utilities.onFxThread(() -> new Song(song)));
+                    }
+                } else {
+                    songs.add(current);
+                }
+                new OfflineRenderer().render(songs, outputFile);
+                return null;
+            }
+        };
+        exportTask.setOnFailed(event -> {
+            exportTask.getException().printStackTrace();
+            Dialog.showDialog("Error!", "Could not export to " + outputFile + ":\n"
+                    + exportTask.getException().getMessage(), owner);
+        });
+        
+        Thread t = new Thread(exportTask, "SMP export");
+        t.setDaemon(true);
+        t.start();
+    }
     
     private static String noteToString(Note note) {
         String instName = note.getInstrument().toString();
@@ -969,9 +1031,7 @@ public class SMPFXController {
         	staff.populateStaffArrangement(loaded, owner);
             
             arrangementList.getItems().clear();
-            for (Song seq : loaded.getSequences()) {
-            	arrangementList.getItems().add(seq);
-            }
+            arrangementList.getItems().addAll(loaded.getEntries());
             
         	StateMachine.setSongModified(false);
         	StateMachine.setArrModified(false);
@@ -1032,7 +1092,7 @@ public class SMPFXController {
         return volumeBars;
     }
 
-    public void setImagesHolder(Map<ImageIndex, Image> imagesHolder) {
+    public void setImagesHolder(SpriteAtlas imagesHolder) {
         this.imagesHolder = imagesHolder;
     }
 
@@ -7,6 +7,8 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
+import backend.sound.VoiceStealingPolicy;
+
 /**
  * A loadable settings file that determines whatever is supposed
  * to display eventually on the screen.
@@ -31,8 +33,8 @@ public class Settings {
      * 2^06 - Print placements of notes
      * 2^05 - Print arranger actions (add, delete, move) 
      * 2^04 - Print staff value every time it changes.
-     * 2^03 -
-     * 2^02 -
+     * 2^03 - Print playback timing statistics
+     * 2^02 - Print voice usage after playback
      * 2^01 - Print sound output of instrument line
      * 2^00 - Print all output of loaders
      * 0    - No further verbose debug output
@@ -114,6 +116,46 @@ public class Settings {
      */
     public static boolean numsVisible = true;
 
+    /**
+     * How many milliseconds ahead of time the notes of a line are handed to
+     * the synthesizer during playback, timestamped with the moment they must
+     * sound. 0 plays the notes when their line is due instead.
+     */
+    public static int playbackLookAheadMillis = 40;
+
+    /**
+     * The most notes playing at once; past that, a note is stopped before
+     * another starts. 0 allows as many notes as the synthesizers giving the
+     * instruments their channels have voices.
+     */
+    public static int maxNotesPlaying = 0;
+
+    /**
+     * Which note is stopped when more than {@link #maxNotesPlaying} notes
+     * would play.
+     */
+    public static VoiceStealingPolicy voiceStealing = VoiceStealingPolicy.OLDEST_SUSTAINED;
+
+    /**
+     * How many megabytes of soundbank samples are kept in memory for quick
+     * soundset changes. The least recently used soundbanks are dropped
+     * first; the one in use is always kept.
+     */
+    public static int soundbankCacheMegabytes = 128;
+
+    /**
+     * How many songs ahead of the one playing in an arrangement soundsets are
+     * read in the background.
+     */
+    public static int soundsetPrefetchDepth = 2;
+
+    /**
+     * How many megabytes of decoded songs an arrangement keeps in memory. The
+     * least recently used songs that weren't changed are dropped first, and
+     * decoded again from their file when needed.
+     */
+    public static int arrangementCacheMegabytes = 32;
+
     /**
      * Sets whether we want to see debug mode or not.
      * @param b Debug level.
@@ -2,18 +2,32 @@ package gui;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiChannel;
 import javax.sound.midi.MidiUnavailableException;
 
 import backend.songs.Arrangement;
+import backend.songs.ArrangementEntry;
 import backend.songs.Song;
 import backend.songs.TimeSignature;
+import backend.sound.AudioDispatcher;
+import backend.sound.PlaybackClock;
+import backend.sound.PlaybackProgram;
 import backend.sound.SoundPlayer;
+import backend.sound.SoundsetPrefetcher;
+import backend.sound.ThreadAllocations;
+import backend.sound.VoiceMonitor;
 import gui.components.staff.StaffDisplayManager;
 import javafx.application.Platform;
 import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.ReadOnlyObjectProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.concurrent.Service;
 import javafx.concurrent.Task;
@@ -60,6 +74,89 @@ public class Staff {
      */
     private AnimationService animationService;
 
+    /** The thread that sends the lines played by the animation to the synthesizer. */
+    private final AudioDispatcher dispatcher;
+
+    /** Reads the soundsets of the coming songs of an arrangement. */
+    private final SoundsetPrefetcher prefetcher;
+
+    /** Compiles the next song of an arrangement while the current one plays. */
+    private final ExecutorService songPreparer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "SMP song preparation");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Marks the absence of a pending play bar update. */
+    private static final long NO_UPDATE = -1;
+
+    /**
+     * A copy of a song for the playback thread, and the song it was copied
+     * from. The copy isn't changed by the edits of the song, see
+     * {@link Song#Song(Song)}.
+     */
+    private static class PlaybackCopy {
+        final Song source;
+        final Song song;
+
+        PlaybackCopy(Song source) {
+            this.source = source;
+            this.song = new Song(source);
+        }
+    }
+
+    /**
+     * The latest copy of the song on the staff. While playing, a new copy is
+     * published after each edit, and the playback thread takes it at the
+     * next line.
+     */
+    private final AtomicReference<PlaybackCopy> playbackCopy = new AtomicReference<>();
+
+    /**
+     * The songs of an arrangement being played, as they were when it
+     * started. The songs in memory are copied then; the others are decoded
+     * by the thread compiling them, as playback nears them, and copied on
+     * the JavaFX thread, where they may be edited meanwhile.
+     */
+    private static class ArrangementCopy {
+        final Arrangement arrangement;
+        final List<ArrangementEntry> entries;
+        final List<String> soundsets;
+        final PlaybackCopy[] copies;
+
+        ArrangementCopy(Arrangement arrangement) {
+            this.arrangement = arrangement;
+            this.entries = List.copyOf(arrangement.getEntries());
+            this.soundsets = entries.stream().map(ArrangementEntry::getSoundset).toList();
+            this.copies = new PlaybackCopy[entries.size()];
+            for (int i = 0; i < copies.length; i++) {
+                if (entries.get(i).isLoaded())
+                    copies[i] = new PlaybackCopy(arrangement.getSong(entries.get(i)));
+            }
+        }
+
+        /**
+         * @param i
+         *            The index of a song.
+         * @return Its copy, decoding the song first if needed.
+         * @throws InterruptedException
+         *             If interrupted while waiting for the copy.
+         */
+        PlaybackCopy get(int i) throws InterruptedException {
+            if (copies[i] == null) {
+                Song song = arrangement.getSong(entries.get(i));
+                copies[i] = Utilities.onFxThread(() -> new PlaybackCopy(song));
+            }
+            return copies[i];
+        }
+    }
+
+    /** The arrangement being played. */
+    private ArrangementCopy arrangementCopy;
+
+    /** Whether a copy of the edited song is about to be published. */
+    private boolean publishPending = false;
+
     /**
      * Creates a new Staff object.
      *
@@ -74,6 +171,9 @@ public class Staff {
         displayManager = display;
         animationService = new AnimationService();
         this.soundPlayer = soundPlayer;
+        dispatcher = new AudioDispatcher(soundPlayer);
+        prefetcher = new SoundsetPrefetcher(soundPlayer, Settings.soundsetPrefetchDepth);
+        getSequence().setOnChange(this::sequenceChanged);
     }
     
     public SoundPlayer getSoundPlayer() {
@@ -210,6 +310,7 @@ public class Staff {
     /** Begins animation of the Staff. (Starts a song) */
     public synchronized void startSong() {
         songPlaying = true;
+        publishSequence();
         animationService.restart();
     }
 
@@ -217,9 +318,32 @@ public class Staff {
     public synchronized void startArrangement() {
         resetLocation();
         arrPlaying = true;
+        arrangementCopy = new ArrangementCopy(getArrangement());
+        publishSequence();
         animationService.restart();
     }
 
+    /**
+     * Publishes a copy of the song on the staff for the playback thread.
+     * Called on the JavaFX thread.
+     */
+    private synchronized void publishSequence() {
+        publishPending = false;
+        playbackCopy.set(new PlaybackCopy(getSequence()));
+    }
+
+    /**
+     * Called on the JavaFX thread when a line of the song on the staff
+     * changes. While playing, a copy is published once the current edit,
+     * which may change many lines, is done.
+     */
+    private void sequenceChanged() {
+        if ((songPlaying || arrPlaying) && !publishPending) {
+            publishPending = true;
+            Platform.runLater(this::publishSequence);
+        }
+    }
+
     /** Stops the song that is currently playing. */
     public void stopSong() {
         Platform.runLater(() -> {
@@ -258,6 +382,11 @@ public class Staff {
         return theSequence.getValue();
     }
 
+    /** @return The song on the staff, as a property. */
+    public ReadOnlyObjectProperty<Song> sequenceProperty() {
+        return theSequence;
+    }
+
     /**
      * This loads a staff sequence.
      *
@@ -265,7 +394,12 @@ public class Staff {
      *            This is the other sequence.
      */
     public synchronized void setSequence(Song other) {
+        getSequence().setOnChange(null);
+        other.setOnChange(this::sequenceChanged);
         theSequence.setValue(other);
+        getArrangement().keep(other);
+        if (songPlaying || arrPlaying)
+            publishSequence();
     }
 
     /**
@@ -280,7 +414,9 @@ public class Staff {
      *            The arrangement file to set.
      */
     public void setArrangement(Arrangement tA) {
+        getArrangement().keep(null);
         theArrangement.setValue(tA);
+        tA.keep(getSequence());
     }
 
     /**
@@ -322,33 +458,26 @@ public class Staff {
      *            The loaded arrangement.
      */
     public void populateStaffArrangement(Arrangement loaded, Window owner) {
+        loaded.setOnDecodeError(entry -> Platform.runLater(() -> Dialog.showDialog("Error!",
+                "Could not read song " + entry.getFile() + ", it is left empty:\n" + entry.getError().getMessage(),
+                owner)));
     	Song first = loaded.getSequences().getFirst();
         populateStaff(first);
         
         setArrangement(loaded);
         StateMachine.setCurrentArrangementName(loaded.getTitle());
         
-        Task<Void> soundsetsTaskUtilities = new Task<Void>() {
-            @Override
-            public Void call() {
-                getSoundPlayer().clearCache();
-                for(Song s : loaded.getSequences()) {
-                    try {
-                        getSoundPlayer().loadToCache(s.getSoundset());
-                    } catch (InvalidMidiDataException | IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-                return null;
-            }
-        };
-        new Thread(soundsetsTaskUtilities).start();
+        prefetcher.cancel();
+        getSoundPlayer().clearCache();
         
         try {
             getSoundPlayer().loadFromAppData(first.getSoundset());
         } catch (InvalidMidiDataException | IOException | MidiUnavailableException e) {
             e.printStackTrace();
         }
+        
+        // The following songs' soundsets are read as playback nears them
+        prefetcher.ahead(loaded.getEntries().stream().map(ArrangementEntry::getSoundset).toList(), 0);
     }
     
     public boolean addSongToArrangement() {
@@ -364,7 +493,7 @@ public class Staff {
     public boolean deleteSongFromArrangement(int i) {
         if (i >= 0 && i < getArrangement().getSequences().size()) {
             StateMachine.setArrModified(true);
-            getArrangement().getSequences().remove(i);
+            getArrangement().removeEntry(i);
             return true;
             
         } else {
@@ -375,8 +504,7 @@ public class Staff {
     public boolean moveSongInArrangement(int from, int to) {
         if (from >= 0 && from < getArrangement().getSequences().size()) {
             StateMachine.setArrModified(true);
-            Song ss = getArrangement().getSequences().remove(from);
-            getArrangement().getSequences().add(to, ss);
+            getArrangement().moveEntry(from, to);
             return true;
             
         } else {
@@ -400,6 +528,7 @@ public class Staff {
     }
     
     public void stop() {
+        dispatcher.end();
         stopSounds();
         stopSong();
         StateMachine.setPlaybackActive(false);
@@ -411,8 +540,39 @@ public class Staff {
      */
     class AnimationService extends Service<Staff> {
 
-        /** Number of lines queued up to play. */
-        protected volatile int queue = 0;
+        /**
+         * The page location and play bar index waiting to be shown on the
+         * JavaFX thread, packed in a long, or <code>NO_UPDATE</code>.
+         */
+        private final AtomicLong pendingPlayBar = new AtomicLong(NO_UPDATE);
+
+        /** Shows the latest posted play bar. Runs on the JavaFX thread. */
+        private final Runnable showPlayBar = () -> {
+            long update = pendingPlayBar.getAndSet(NO_UPDATE);
+            if (update == NO_UPDATE)
+                return;
+            
+            int loc = (int) (update >>> 32);
+            if (StateMachine.getMeasureLineNum() != loc)
+                setLocation(loc);
+            displayManager.updatePlayBars((int) update);
+        };
+
+        /**
+         * Posts a play bar position to the JavaFX thread. If the previous one
+         * has not been shown yet, it is replaced rather than queued, so a busy
+         * UI never lags behind the sound.
+         *
+         * @param location
+         *            The first line to display on the staff.
+         * @param index
+         *            The play bar to highlight, relative to the location.
+         */
+        protected void postPlayBar(int location, int index) {
+            long update = ((long) location << 32) | index;
+            if (pendingPlayBar.getAndSet(update) == NO_UPDATE)
+                Platform.runLater(showPlayBar);
+        }
 
         @Override
         protected Task<Staff> createTask() {
@@ -431,11 +591,20 @@ public class Staff {
          */
         class AnimationTask extends Task<Staff> {
 
-            /** Milliseconds to delay between updating the play bars. */
-            protected long delayMillis;
+            /** Paces the lines against absolute deadlines. */
+            protected final PlaybackClock clock = new PlaybackClock();
+
+            /** The compiled song being played. */
+            protected PlaybackProgram program;
+
+            /** The copy of the song being played. */
+            protected PlaybackCopy playing;
 
-            /** Nanoseconds to delay in addition to the milliseconds delay. */
-            protected int delayNanos;
+            /** How long before they are due lines are handed to the synthesizer. */
+            protected final long lookAhead = Settings.playbackLookAheadMillis * 1_000_000L;
+
+            /** The first line of the page being played. */
+            protected int location = 0;
 
             /**
              * This is the current index of the measure line that we are on on
@@ -444,197 +613,254 @@ public class Staff {
             protected int index = 0;
 
             /**
-             * Whether we need to advance the staff ahead by a few lines or not.
+             * Counts what the playback and dispatch threads allocate, which
+             * should be nothing once the song has looped.
              */
-            protected boolean advance = false;
+            protected final ThreadAllocations allocations = new ThreadAllocations();
 
             /**
-             * @param tempo
-             *            The tempo we want to set this staff to run at, in BPM. Beats
-             *            per minute * 60 = beats per second <br>
-             *            Beats per second ^ -1 = seconds per beat <br>
-             *            Seconds per beat * 1000 = Milliseconds per beat <br>
-             *            (int) Milliseconds per beat = Milliseconds <br>
-             *            Milliseconds per beat - milliseconds = remainder <br>
-             *            (int) (Remainder * 1e6) = Nanoseconds <br>
-             *
+             * Stops sampling the voices, and prints the timing statistics of
+             * the clock, the allocations of playback and the voice usage if
+             * asked to.
              */
-            protected void computeDelay(double tempo) {
-                double mill = (60.0 / tempo) * 1000;
-                delayMillis = (int) mill;
-                double nano = (mill - delayMillis) * Math.pow(10, 6);
-                delayNanos = (int) nano;
+            protected void reportStatistics() {
+                VoiceMonitor voices = soundPlayer.getVoiceMonitor();
+                voices.stop();
+                if ((Settings.debug & 0b1000) != 0) {
+                    System.out.println("Playback timing: " + clock);
+                    System.out.println("Playback allocations: " + allocations);
+                }
+                if ((Settings.debug & 0b100) != 0)
+                    System.out.println("Voice usage: " + voices + "; notes stolen: "
+                            + soundPlayer.getStolenCount());
             }
 
             @Override
             protected Staff call() throws Exception {
-                int counter = StateMachine.getMeasureLineNum();
-                boolean zero = false;
-                int endLine = getSequence().getLength();
+                location = StateMachine.getMeasureLineNum();
+                index = 0;
+                playing = playbackCopy.get();
+                int endLine = playing.song.getLength();
 
-                computeDelay(getSequence().getTempo());
-                
                 StateMachine.setMaxLine(Math.max(endLine + Values.NOTELINES_IN_THE_WINDOW, Values.DEFAULT_LINES_PER_SONG));
 
-                queue = 0;
+                program = new PlaybackProgram(playing.song);
+                soundPlayer.getVoiceMonitor().start();
+                dispatcher.begin();
+                allocations.start(Thread.currentThread().threadId(), dispatcher.getThreadId());
+                clock.setLookAhead(lookAhead);
+                clock.start(playing.song.getTempo());
                 
                 while (songPlaying) {
-                    displayManager.updatePlayBars(index);
-                    
-                    if (zero) {
-                        resetLocation();
-                        while (queue > 0);
-                        zero = false;
-                    }
-                    
-                    queue++;
                     playNextLine();
-                    counter++;
                     
-                    if (counter >= endLine) {
+                    if (location + index >= program.getSong().getLength()) {
                         if (StateMachine.isLoopPressed()) {
-                            counter = 0;
+                            location = 0;
                             index = 0;
-                            advance = false;
-                            zero = true;
+                            allocations.mark();
                         } else {
                             songPlaying = false;
                         }
                     }
                     
-                    try {
-                        Thread.sleep(delayMillis, delayNanos);
-                    } catch (InterruptedException e) {
-                        // Do nothing
-                    }
+                    clock.awaitNextLine();
                 }
                 
+                reportStatistics();
                 StateMachine.setPlaybackActive(false);
                 return Staff.this;
             }
 
             /**
-             * Plays the next line of notes in the queue. For
-             * ease-of-programming purposes, we'll not care about efficiency and
-             * just play things as they are.
+             * Plays the current line, shows it on the staff and moves on to
+             * the next one, turning the page when needed. With a look-ahead,
+             * the line is scheduled on the synthesizer first and shown when
+             * it is actually due.
              */
             protected void playNextLine() {
-                int currentLoc = StateMachine.getMeasureLineNum();
-                
-                if (advance) {
-                    int loc = currentLoc + Values.NOTELINES_IN_THE_WINDOW;
-                    setLocation(loc);
+                takeEdits();
+                if (lookAhead > 0) {
+                    dispatcher.submit(program.line(location + index), clock.currentDeadline());
+                    clock.awaitCurrentDeadline();
+                } else {
+                    dispatcher.submit(program.line(location + index), -1);
                 }
+                postPlayBar(location, index);
                 
-                runUI(currentLoc, index);
-                
-                advance = index >= Values.NOTELINES_IN_THE_WINDOW - 1;
-                index = advance ? 0 : (index + 1);
+                index++;
+                if (index >= Values.NOTELINES_IN_THE_WINDOW) {
+                    location += Values.NOTELINES_IN_THE_WINDOW;
+                    index = 0;
+                }
             }
 
             /**
-             * Bumps the highlight of the notes to the next play bar.
-             *
-             * @param playBars
-             *            The list of the measure highlights.
-             * @param index
-             *            The current index of the measure that we're on.
-             */
-            private void runUI(final int currentLoc, final int index) {
-                // In principle it's not necessary to send this job to the FXAT,
-                // but for some reason the program is more stable that way
-                // Leaving things as they are until someone can figure it out --rozlyn
-                Platform.runLater(() -> {
-                    try {
-                        playSoundLine(index);
-                    } finally {
-                        queue--;
-                    }
-                });
-            }            
-
-            /**
-             * Plays a sound line at the index specified.
-             * @param index Position of the line to play relative to the current position in the sequence
+             * Switches to the latest copy of the song being played if it was
+             * edited, so that the edits are heard from this line on. Lines
+             * that weren't edited aren't compiled again.
              */
-            private void playSoundLine(int index) {
-                int currentLine = StateMachine.getMeasureLineNum();
-                soundPlayer.playSoundLine(getSequence().getLine(currentLine + index));
+            protected void takeEdits() {
+                PlaybackCopy latest = playbackCopy.get();
+                if (latest != playing && latest.source == playing.source) {
+                    playing = latest;
+                    program.setSong(latest.song);
+                }
             }
 
         }
 
         /**
          * This class runs an arrangement instead of just a song.
+         * <p>
+         * The arrangement is one timeline: the first line of a song is due
+         * one line after the last line of the previous song, at the previous
+         * song's tempo. The next song is compiled in the background while the
+         * current one plays and its soundset is prefetched, so that all that
+         * is left to do at the boundary is to switch to them, once the last
+         * line has sounded and before the next one is due.
          */
         class ArrangementTask extends AnimationTask {
 
             @Override
             protected Staff call() throws Exception {
-                StateMachine.setArrangementSongIndex(0);
-                List<Song> seq = getArrangement().getSequences();
-                int endLine;
-
-                queue = 0;
+                ArrangementCopy seq = arrangementCopy;
+                int count = seq.copies.length;
+
+                soundPlayer.getVoiceMonitor().start();
+                dispatcher.begin();
+                allocations.start(Thread.currentThread().threadId(), dispatcher.getThreadId());
+                clock.setLookAhead(lookAhead);
+                Future<PlaybackProgram> next = count == 0 ? null : prepare(seq, 0);
                 
-                for (int i = 0; i < seq.size(); i++) {
-                    setSequence(getArrangement().getSequences().get(i));
-                    setSoundset(getSequence().getSoundset());
-                    computeDelay(getSequence().getTempo());
-                    setTimeSignature(getSequence().getTimeSignature());
-                    endLine = getSequence().getLength();
-                    
-                    StateMachine.setArrangementSongIndex(i);
-                    StateMachine.setNoteExtensions(
-                            getSequence().getNoteExtensions());
-                    StateMachine.setTempo(getSequence().getTempo());
-                    StateMachine.setMaxLine(Math.max(endLine + Values.NOTELINES_IN_THE_WINDOW, Values.DEFAULT_LINES_PER_SONG));
+                for (int i = 0; i < count && arrPlaying; i++) {
+                    program = awaitProgram(next, seq, i);
+                    playing = seq.get(i);
+                    switchTo(i, playing);
+                    if (i + 1 < count)
+                        next = prepare(seq, i + 1);
+                    prefetcher.ahead(seq.soundsets, i);
                     
+                    location = 0;
                     index = 0;
-                    advance = false;
                     songPlaying = true;
 
-                    resetLocation();
-                    
-                    int counter = 0;
+                    // The first song starts the timeline; the others carry on
+                    // from the deadline following the previous song's last line
+                    if (i == 0)
+                        clock.start(playing.song.getTempo());
+                    else {
+                        clock.continueWith(playing.song.getTempo());
+                        clock.awaitNextLine();
+                    }
                     
                     while (songPlaying && arrPlaying) {
-                        displayManager.updatePlayBars(index);
-
-                        queue++;
                         playNextLine();
                         
-                        counter++;
-                        if (counter >= endLine) {
+                        if (location + index >= program.getSong().getLength()) {
                             songPlaying = false;
-                        }
-                        
-                        try {
-                            Thread.sleep(delayMillis, delayNanos);
-                        } catch (InterruptedException e) {
-                            // Do nothing
+                            // Let the last line of the arrangement sound
+                            if (i == count - 1)
+                                clock.awaitNextLine();
+                        } else {
+                            clock.awaitNextLine();
                         }
                     }
-                    
-                    if (!arrPlaying)
-                        break;
-
-                    /* Force emptying of queue before changing songs. */
-                    while (queue > 0);
                 }
                 
+                reportStatistics();
                 StateMachine.setPlaybackActive(false);
                 return Staff.this;
             }
+
+            /**
+             * Compiles a song in the background, decoding it first if it
+             * isn't in memory.
+             *
+             * @param seq
+             *            The arrangement.
+             * @param i
+             *            The index of the song.
+             * @return Its program, with the song's own note extensions.
+             */
+            private Future<PlaybackProgram> prepare(ArrangementCopy seq, int i) {
+                return songPreparer.submit(() -> compile(seq, i));
+            }
+
+            private PlaybackProgram compile(ArrangementCopy seq, int i) throws InterruptedException {
+                Song song = seq.get(i).song;
+                return new PlaybackProgram(song, PlaybackProgram.sustainMask(song.getNoteExtensions()));
+            }
+
+            /**
+             * Gets a program prepared in the background, compiling it here if
+             * that failed.
+             */
+            private PlaybackProgram awaitProgram(Future<PlaybackProgram> prepared, ArrangementCopy seq, int i)
+                    throws InterruptedException {
+                try {
+                    return prepared.get();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                    return compile(seq, i);
+                }
+            }
+
+            /**
+             * Makes a song the one playing. The soundset is switched here,
+             * once the last line of the previous song is due and was handed
+             * to the synthesizer, so that it isn't played with the new one;
+             * the staff is updated on the JavaFX thread, before the song's
+             * first play bar, and shows the song of the arrangement itself
+             * so that its edits are published and played.
+             *
+             * @param i
+             *            The index of the song in the arrangement.
+             * @param copy
+             *            The copy of the song.
+             */
+            private void switchTo(int i, PlaybackCopy copy) {
+                Song song = copy.song;
+                if (i > 0) {
+                    clock.awaitCurrentDeadline();
+                    dispatcher.drain();
+                }
+                setSoundset(song.getSoundset());
+                int endLine = song.getLength();
+                
+                Platform.runLater(() -> {
+                    setSequence(copy.source);
+                    StateMachine.setNoteExtensions(song.getNoteExtensions());
+                    setTimeSignature(song.getTimeSignature());
+                    StateMachine.setArrangementSongIndex(i);
+                    StateMachine.setTempo(song.getTempo());
+                    StateMachine.setMaxLine(Math.max(endLine + Values.NOTELINES_IN_THE_WINDOW, Values.DEFAULT_LINES_PER_SONG));
+                    resetLocation();
+                });
+            }
+
+            @Override
+            protected void reportStatistics() {
+                super.reportStatistics();
+                if ((Settings.debug & 0b1000) != 0)
+                    System.out.println("Soundset prefetch: " + prefetcher
+                            + "; soundbank cache: " + soundPlayer.getBankCache()
+                            + "; arrangement: " + getArrangement());
+            }
             
             /**
-             * Sets the soundset.
+             * Sets the soundset. Waits if it is still being read.
              *
              * @param soundset
              *            The soundset.
              * @since v1.1.2
              */
             private void setSoundset(final String soundset) {
+                long waited = prefetcher.ensureReady(soundset);
+                if (waited > 0 && (Settings.debug & 0b1000) != 0)
+                    System.out.printf("Song started %.1f ms late, waiting for soundset %s%n",
+                            waited / 1e6, soundset);
+                
                 if (!soundPlayer.loadFromCache(soundset)) {
                     try {
                         soundPlayer.loadFromAppData(soundset);
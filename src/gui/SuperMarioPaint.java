@@ -6,16 +6,21 @@ import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
 
+import javax.sound.midi.Soundbank;
+
+import backend.sound.SMPSynthesizer;
 import backend.sound.SoundPlayer;
 import gui.loaders.ImageIndex;
 import gui.loaders.ImageLoader;
-import gui.loaders.Loader;
 import gui.loaders.SMPCursorType;
 import gui.loaders.SoundfontLoader;
+import gui.loaders.SpriteAtlas;
+import gui.loaders.StartupPipeline;
+import gui.loaders.ZipSprites;
 import gui.resources.FetchStrategy;
 import gui.resources.SMPResourceUtil;
 import javafx.application.Application;
@@ -30,6 +35,7 @@ import javafx.scene.Scene;
 import javafx.scene.image.Image;
 import javafx.scene.input.MouseButton;
 import javafx.scene.input.MouseEvent;
+import javafx.stage.Screen;
 import javafx.stage.Stage;
 
 /**
@@ -64,24 +70,23 @@ public class SuperMarioPaint extends Application  {
     /**
      * Loads all the sprites that will be used in Super Mario Paint.
      */
-    private Loader<Map<ImageIndex, Image>> imgLoader;
-    
-    private RunnableFuture<Map<ImageIndex, Image>> imagesHolderFuture;
+    private ImageLoader imgLoader;
     
     private Map<SMPCursorType, ImageCursor> cursorImages = new EnumMap<>(SMPCursorType.class);
 
     /**
      * Loads the soundfonts that will be used in Super Mario Paint.
      */
-    private Loader<SoundPlayer> sfLoader;
-    
-    private RunnableFuture<SoundPlayer> soundPlayerFuture;
+    private SoundfontLoader sfLoader;
 
-    /** Image Loader thread. */
-    private Thread imgLd;
+    /** The sprites, once loaded. */
+    private SpriteAtlas spriteAtlas;
 
-    /** Soundfont loader thread. */
-    private Thread sfLd;
+    /** Runs the loading tasks, each once the ones it needs are done. */
+    private StartupPipeline pipeline;
+
+    /** The last progress sent to the preloader, in percent. */
+    private int progressSent = -1;
 
     /** This is the main application stage. */
     private Stage primaryStage;
@@ -114,46 +119,89 @@ public class SuperMarioPaint extends Application  {
      * taken from http://docs.oracle.com/javafx/2/deployment/preloaders.htm
      */
     private void longStart() throws Exception {
-        sfLd.start();
-        imgLd.start();
+        imgLoader.setProgressListener(d -> loadProgress());
+        sfLoader.setProgressListener(d -> loadProgress());
         
-        do {
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            
-            double imgStatus = imgLoader.getLoadStatus();
-            double sfStatus = sfLoader.getLoadStatus();
-            double ld = (imgStatus + sfStatus) / 2.0;
-            notifyPreloader(new ProgressNotification(ld));
-            
-        } while (imgLd.isAlive() || sfLd.isAlive());
+        CompletableFuture<SpriteAtlas> sprites = pipeline.chain("sprites", imgLoader::load);
+        CompletableFuture<Soundbank> soundfont = pipeline.task("soundfont", sfLoader::loadSoundbank);
+        CompletableFuture<SMPSynthesizer> synth = pipeline.task("synthesizer", sfLoader::openSynthesizer);
+        CompletableFuture<SoundPlayer> instruments = pipeline.task("instruments",
+                () -> sfLoader.initialize(synth.join(), soundfont.join()), synth, soundfont);
+        
+        // We *have* to copy the FXML onto the user file system because it expects a sprites/ folder
+        // But also, we may update it regularly as we develop, so we want to always use our internal version
+        CompletableFuture<URL> fxml = pipeline.task("fxml copy",
+                () -> SMPResourceUtil.get(Values.FXML, FetchStrategy.COPY_INTERNAL, Values.SMP_FOLDER));
         
-        Map<ImageIndex, Image> imagesHolder = imagesHolderFuture.get();
-        SoundPlayer soundPlayer = soundPlayerFuture.get();
+        CompletableFuture<Void> cursors = pipeline.task("cursors", () -> {
+            SpriteAtlas imagesHolder = sprites.join();
+            cursorImages.put(SMPCursorType.HAND_POINTING, new ImageCursor(imagesHolder.get(ImageIndex.CURSOR_0)));
+            cursorImages.put(SMPCursorType.HAND_OPEN, new ImageCursor(imagesHolder.get(ImageIndex.CURSOR_1)));
+            cursorImages.put(SMPCursorType.HAND_CLOSED, new ImageCursor(imagesHolder.get(ImageIndex.CURSOR_2)));
+            cursorImages.put(SMPCursorType.ERASER, new ImageCursor(imagesHolder.get(ImageIndex.CURSOR_3)));
+            return null;
+        }, sprites);
         
-        cursorImages.put(SMPCursorType.HAND_POINTING, new ImageCursor(imagesHolder.get(ImageIndex.CURSOR_0)));
-        cursorImages.put(SMPCursorType.HAND_OPEN, new ImageCursor(imagesHolder.get(ImageIndex.CURSOR_1)));
-        cursorImages.put(SMPCursorType.HAND_CLOSED, new ImageCursor(imagesHolder.get(ImageIndex.CURSOR_2)));
-        cursorImages.put(SMPCursorType.ERASER, new ImageCursor(imagesHolder.get(ImageIndex.CURSOR_3)));
+        // Sprites drawn with the screen's pixels, when it scales the window
+        CompletableFuture<Void> sharp = pipeline.chain("hidpi sprites", () -> {
+            ZipSprites z = sprites.join().setOutputScale(Screen.getPrimary().getOutputScaleX());
+            if (z == null)
+                return CompletableFuture.completedFuture(null);
+            return z.prefetch(startupSprites(), pipeline.getExecutor());
+        }, sprites);
         
-        FXMLLoader loader = new FXMLLoader();
-        controller.setImagesHolder(imagesHolder);
-        controller.setSoundPlayer(soundPlayer);
-        loader.setController(controller);
+        CompletableFuture<Parent> ui = pipeline.task("fxml load", () -> {
+            FXMLLoader loader = new FXMLLoader();
+            controller.setImagesHolder(sprites.join());
+            controller.setSoundPlayer(instruments.join());
+            loader.setController(controller);
+            loader.setLocation(fxml.join());
+            return (Parent) loader.load();
+        }, sprites, sharp, instruments, fxml);
         
-        // We *have* to copy the FXML onto the user file system because it expects a sprites/ folder
-        // But also, we may update it regularly as we develop, so we want to always use our internal version
-        FetchStrategy fxmlFetchStrategy = FetchStrategy.COPY_INTERNAL;
-        URL fxml = SMPResourceUtil.get(Values.FXML, fxmlFetchStrategy, Values.SMP_FOLDER);
-        loader.setLocation(fxml);
+        try {
+            CompletableFuture.allOf(ui, cursors).get();
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+        } finally {
+            pipeline.shutdown();
+            if ((Settings.debug & 0b01) != 0)
+                System.out.println(pipeline.report());
+        }
         
-        root = (Parent) loader.load();
+        root = ui.get();
+        spriteAtlas = sprites.get();
         notifyPreloader(new ProgressNotification(0.75));
     }
     
+    /** @return The sprites shown as soon as the window opens. */
+    private static List<ImageIndex> startupSprites() {
+        List<ImageIndex> l = new ArrayList<>();
+        for (InstrumentIndex i : InstrumentIndex.values()) {
+            l.add(i.imageIndex());
+            l.add(i.smImageIndex());
+            l.add(i.smaImageIndex());
+        }
+        l.add(ImageIndex.FILTER);
+        l.add(ImageIndex.STAFF_LINE);
+        l.add(ImageIndex.STAFF_MLINE);
+        l.add(ImageIndex.STAFF_SLINE);
+        return l;
+    }
+    
+    /**
+     * Tells the preloader how far the loaders got, each time one of them gets
+     * further. The loaders take the first 70% of the progress bar.
+     */
+    private synchronized void loadProgress() {
+        double ld = (imgLoader.getLoadStatus() + sfLoader.getLoadStatus()) / 2.0;
+        int percent = (int) (70 * ld);
+        if (percent == progressSent)
+            return;
+        progressSent = percent;
+        notifyPreloader(new ProgressNotification(percent / 100.0));
+    }
+    
     private void doStart() {
         try {
             primaryStage.setTitle("Super Mario Paint " + Settings.VERSION);
@@ -183,6 +231,10 @@ public class SuperMarioPaint extends Application  {
             primaryStage.getIcons().add(headerIcon);
             primaryStage.show();
             
+            // The window may be moved to a screen with another scale
+            primaryStage.outputScaleXProperty().addListener(
+                    (ov, t, t1) -> spriteAtlas.setOutputScale(t1.doubleValue()));
+            
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(1);
@@ -195,23 +247,19 @@ public class SuperMarioPaint extends Application  {
     }
 
     /**
-     * Starts three <code>Thread</code>s. One of them is currently a dummy
-     * splash screen, the second an <code>ImageLoader</code>, and the third one
-     * a <code>SoundfontLoader</code>.
+     * Makes the loaders and the pipeline that runs them. One of them is an
+     * <code>ImageLoader</code>, whose sprites are decoded on the pipeline's
+     * threads, and the other a <code>SoundfontLoader</code>.
      *
      * @see ImageLoader
      * @see SoundfontLoader
-     * @see SplashScreen
+     * @see StartupPipeline
      */
     @Override
     public void init() {
-        imgLoader = new ImageLoader();
-        imagesHolderFuture = new FutureTask<>(imgLoader);
-        imgLd = new Thread(imagesHolderFuture);
-        
+        pipeline = new StartupPipeline();
+        imgLoader = new ImageLoader(pipeline.getExecutor());
         sfLoader = new SoundfontLoader();
-        soundPlayerFuture = new FutureTask<>(sfLoader);
-        sfLd = new Thread(soundPlayerFuture);
     }
     
     /**
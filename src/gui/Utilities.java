@@ -3,7 +3,11 @@ package gui;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
 
+import javafx.application.Platform;
 import javafx.event.Event;
 import javafx.scene.Node;
 import javafx.scene.control.ToggleButton;
@@ -101,4 +105,34 @@ public class Utilities {
     	}
     }
 
+    /**
+     * Gets something on the JavaFX thread and waits for it, for a thread
+     * that has to read what only the JavaFX thread may touch, like the songs
+     * being edited. Gets it right away on the JavaFX thread.
+     *
+     * @param getter
+     *            What to run on the JavaFX thread.
+     * @return What it returned.
+     * @throws InterruptedException
+     *             If interrupted while waiting.
+     */
+    public static <T> T onFxThread(Supplier<T> getter) throws InterruptedException {
+        if (Platform.isFxApplicationThread())
+            return getter.get();
+        
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Platform.runLater(() -> {
+            try {
+                result.complete(getter.get());
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
 }
@@ -0,0 +1,204 @@
+package gui.clipboard;
+
+import java.util.Arrays;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+
+import backend.songs.NoteLine;
+import backend.songs.PackedNote;
+
+/**
+ * The notes selected with the clipboard on the song of the staff, kept apart
+ * from the song so that selecting doesn't change it.
+ * <p>
+ * The selected notes of a line are a sorted array of packed notes (see
+ * {@link PackedNote}), 4 bytes a note. Notes are told apart by value, like
+ * {@link NoteLine} does, rather than by their place in the line, which
+ * changes when notes before them are removed. A line may hold several
+ * identical notes, which nothing tells apart; the array then has the note
+ * as many times as copies of it are selected. Clearing the selection drops
+ * the arrays, and hiding or showing the highlight of the selected notes is a
+ * flag: neither goes through the notes.
+ */
+public class SelectionModel {
+
+    /** The selected notes of each line with some, sorted. */
+    private final TreeMap<Integer, int[]> lines = new TreeMap<>();
+
+    /** The number of selected notes. */
+    private int size = 0;
+
+    /** Whether the selected notes are shown highlighted. */
+    private boolean highlighted = true;
+
+    /**
+     * Selects a note; nothing happens if it is selected already.
+     *
+     * @param line
+     *            The line of the note
+     * @param packed
+     *            The note, packed
+     */
+    public void select(int line, int packed) {
+        int[] notes = lines.get(line);
+        if (notes == null) {
+            lines.put(line, new int[] { packed });
+            size++;
+            return;
+        }
+        int i = Arrays.binarySearch(notes, packed);
+        if (i >= 0)
+            return;
+        i = -i - 1;
+        int[] grown = new int[notes.length + 1];
+        System.arraycopy(notes, 0, grown, 0, i);
+        grown[i] = packed;
+        System.arraycopy(notes, i, grown, i + 1, notes.length - i);
+        lines.put(line, grown);
+        size++;
+    }
+
+    /**
+     * Selects some notes of a line at once, replacing what was selected on
+     * the line.
+     *
+     * @param line
+     *            The line of the notes
+     * @param packed
+     *            The notes, packed, in any order; a note given several times
+     *            selects as many identical notes of the line
+     * @param count
+     *            How many of the array are notes
+     */
+    public void selectLine(int line, int[] packed, int count) {
+        int[] notes = Arrays.copyOf(packed, count);
+        Arrays.sort(notes);
+        int[] old = lines.remove(line);
+        if (old != null)
+            size -= old.length;
+        if (count > 0) {
+            lines.put(line, notes);
+            size += count;
+        }
+    }
+
+    /**
+     * Selects some notes of a line at once, keeping what was selected on the
+     * line. A note given several times selects as many identical notes of
+     * the line; those already selected count towards them.
+     *
+     * @param line
+     *            The line of the notes
+     * @param packed
+     *            The notes, packed, in any order
+     * @param count
+     *            How many of the array are notes
+     */
+    public void addToLine(int line, int[] packed, int count) {
+        int[] old = lines.get(line);
+        if (old == null) {
+            selectLine(line, packed, count);
+            return;
+        }
+        int[] notes = Arrays.copyOf(packed, count);
+        Arrays.sort(notes);
+        int[] merged = new int[old.length + count];
+        int i = 0, j = 0, n = 0;
+        while (i < old.length || j < count) {
+            if (j == count || (i < old.length && old[i] < notes[j])) {
+                merged[n++] = old[i++];
+            } else if (i == old.length || notes[j] < old[i]) {
+                merged[n++] = notes[j++];
+            } else {
+                // the same copy of the note
+                merged[n++] = old[i++];
+                j++;
+            }
+        }
+        lines.put(line, n == merged.length ? merged : Arrays.copyOf(merged, n));
+        size += n - old.length;
+    }
+
+    /**
+     * @param line
+     *            A line
+     * @param packed
+     *            A note, packed
+     * @return Whether the note is selected on the line
+     */
+    public boolean isSelected(int line, int packed) {
+        int[] notes = lines.get(line);
+        return notes != null && Arrays.binarySearch(notes, packed) >= 0;
+    }
+
+    /**
+     * @param line
+     *            A line
+     * @param packed
+     *            A note, packed
+     * @return Whether the note is selected on the line and shown highlighted
+     */
+    public boolean isHighlighted(int line, int packed) {
+        return highlighted && isSelected(line, packed);
+    }
+
+    /**
+     * @param line
+     *            A line
+     * @return Whether the line has selected notes
+     */
+    public boolean hasLine(int line) {
+        return lines.containsKey(line);
+    }
+
+    /** @return The lines with selected notes, in order. */
+    public NavigableSet<Integer> getLines() {
+        return lines.navigableKeySet();
+    }
+
+    /**
+     * @param line
+     *            A line
+     * @return Its selected notes, packed and sorted, which mustn't be changed;
+     *         a note is there once for each selected copy of it
+     */
+    public int[] getNotes(int line) {
+        int[] notes = lines.get(line);
+        return notes != null ? notes : new int[0];
+    }
+
+    /** @return The first line with selected notes, or -1 if there is none. */
+    public int firstLine() {
+        return lines.isEmpty() ? -1 : lines.firstKey();
+    }
+
+    /** @return The number of selected notes. */
+    public int size() {
+        return size;
+    }
+
+    /** @return Whether no note is selected. */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Deselects all the notes. */
+    public void clear() {
+        lines.clear();
+        size = 0;
+    }
+
+    /**
+     * @param highlighted
+     *            Whether the selected notes are shown highlighted; they stay
+     *            selected either way
+     */
+    public void setHighlighted(boolean highlighted) {
+        this.highlighted = highlighted;
+    }
+
+    /** @return Whether the selected notes are shown highlighted. */
+    public boolean isHighlighted() {
+        return highlighted;
+    }
+}
@@ -40,8 +40,8 @@ public class StaffClipboard {
     /** The functions class for copy, cut, paste, etc. */
     private StaffClipboardAPI theAPI;
     
-    /** The list that keeps track of all the selections' bounds made by the user */
-    private Map<Integer, NoteLine> selection;
+    /** The notes selected by the user, apart from the song */
+    private SelectionModel selection;
     
     /** The list that will keep track of copied notes (and volumes) */
     private Map<Integer, NoteLine> copiedData;
@@ -61,11 +61,15 @@ public class StaffClipboard {
         theStaff = st;
         controller = ct;
 
-        selection = new HashMap<>();
+        selection = new SelectionModel();
         copiedData = new HashMap<>();
         
         //TODO: merge staffclipboard and staffclipboardapi together
         theAPI = new StaffClipboardAPI(this, theStaff, ct.getModifySongManager());
+        
+        // the selection is of the notes of the song on the staff
+        theStaff.getDisplayManager().setSelection(selection);
+        theStaff.sequenceProperty().addListener(obs -> theAPI.clearSelection());
 
         redrawUI(ct);
         
@@ -126,7 +130,7 @@ public class StaffClipboard {
         basePane.layout();
     }
     
-    public Map<Integer, NoteLine> getSelection() {
+    public SelectionModel getSelection() {
         return selection;
     }
     
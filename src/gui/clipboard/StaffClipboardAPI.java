@@ -1,6 +1,6 @@
 package gui.clipboard;
 
-import java.util.List;
+import java.util.Arrays;
 import java.util.Map;
 
 import backend.editing.ModifySongManager;
@@ -10,6 +10,8 @@ import backend.editing.commands.RemoveNoteCommand;
 import backend.editing.commands.RemoveVolumeCommand;
 import backend.songs.Note;
 import backend.songs.NoteLine;
+import backend.songs.PackedNote;
+import backend.songs.Song;
 import gui.Staff;
 import gui.StateMachine;
 import gui.Values;
@@ -67,19 +69,19 @@ public class StaffClipboardAPI {
     public void copy() {
         /* if there's something new selected, make way for new data
            else just use old data */
-        if(!theStaffClipboard.getSelection().isEmpty() && (selectNotesFlag || selectVolumesFlag))
+        SelectionModel selection = theStaffClipboard.getSelection();
+        if(!selection.isEmpty() && (selectNotesFlag || selectVolumesFlag))
             clearCopiedData();
 
-        for (Map.Entry<Integer, NoteLine> noteLine : theStaffClipboard.getSelection().entrySet()) {
-            int line = noteLine.getKey();
-            List<Note> ntList = noteLine.getValue().getNotes();
+        Song seq = theStaff.getSequence();
+        for (int line : selection.getLines()) {
             if (selectNotesFlag)
-                for(Note note : ntList) 
+                for(int note : selection.getNotes(line)) 
                     //relative index
-                    copyNote(line - selectionLineBegin, note);
+                    copyNote(line - selectionLineBegin, PackedNote.unpack(note));
             
             if (selectVolumesFlag)
-                copyVolume(line - selectionLineBegin, noteLine.getValue().getVolume());
+                copyVolume(line - selectionLineBegin, seq.peekLine(line).getVolume());
         }
         
         if (!selectVolumesFlag)
@@ -99,23 +101,24 @@ public class StaffClipboardAPI {
      */
     public void delete() {
 
-        for (Map.Entry<Integer, NoteLine> noteLine : theStaffClipboard.getSelection().entrySet()) {
-            int line = noteLine.getKey();
-            List<Note> ntList = noteLine.getValue().getNotes();
+        SelectionModel selection = theStaffClipboard.getSelection();
+        for (int line : selection.getLines()) {
+            Song seq = theStaff.getSequence();
+            NoteLine lineDest = seq.getLine(line);
             
-            NoteLine lineDest = theStaff.getSequence().getLine(line);
-            
-            for(Note note : ntList){
+            // a note is selected once for each of its copies to remove
+            for(int packed : selection.getNotes(line)){
+                Note note = PackedNote.unpack(packed);
                 lineDest.getNotes().remove(note);
                 StateMachine.setSongModified(true);
-                commandManager.execute(new RemoveNoteCommand(lineDest, note));
+                commandManager.execute(new RemoveNoteCommand(seq, line, note));
 
                 if (lineDest.getNotes().isEmpty() && 0 <= line - StateMachine.getMeasureLineNum()
                         && line - StateMachine.getMeasureLineNum() < Values.NOTELINES_IN_THE_WINDOW) {
                     StaffVolumeEventHandler sveh = theStaff.getDisplayManager()
                             .getVolHandler(line - StateMachine.getMeasureLineNum());
                     sveh.setVolumeVisible(false);
-                    commandManager.execute(new RemoveVolumeCommand(lineDest, lineDest.getVolume()));
+                    commandManager.execute(new RemoveVolumeCommand(seq, line, lineDest.getVolume()));
                 }
             }
             // idk why but redraw needs to be called every line or else weird
@@ -139,7 +142,8 @@ public class StaffClipboardAPI {
         for (Map.Entry<Integer, NoteLine> lineCopy : copiedData.entrySet()) {
             int line = lineMoveTo + lineCopy.getKey();
             
-            NoteLine lineDest = theStaff.getSequence().getLine(line);
+            Song seq = theStaff.getSequence();
+            NoteLine lineDest = seq.getLine(line);
             NoteLine lineSrc = lineCopy.getValue();
             for(Note note : lineSrc.getNotes()) {
                 
@@ -155,21 +159,21 @@ public class StaffClipboardAPI {
                         sveh.updateVolume();
                     }
 
-                    commandManager.execute(new AddVolumeCommand(lineDest, Values.DEFAULT_VELOCITY));
+                    commandManager.execute(new AddVolumeCommand(seq, line, Values.DEFAULT_VELOCITY));
                 }
 
                 if (!lineDest.getNotes().contains(theStaffNote)) {
                     lineDest.getNotes().add(theStaffNote);
                     StateMachine.setSongModified(true);
-                    commandManager.execute(new AddNoteCommand(lineDest, theStaffNote));
+                    commandManager.execute(new AddNoteCommand(seq, line, theStaffNote));
                 }
             }
             
             // paste volume
             if(!ignoreVolumesFlag) {
-                commandManager.execute(new RemoveVolumeCommand(lineDest, lineDest.getVolume()));
+                commandManager.execute(new RemoveVolumeCommand(seq, line, lineDest.getVolume()));
                 lineDest.setVolume(lineSrc.getVolume());
-                commandManager.execute(new AddVolumeCommand(lineDest, lineDest.getVolume()));
+                commandManager.execute(new AddVolumeCommand(seq, line, lineDest.getVolume()));
                 
                 if (line - StateMachine.getMeasureLineNum() < Values.NOTELINES_IN_THE_WINDOW) {
                     StaffVolumeEventHandler sveh = theStaff.getDisplayManager()
@@ -189,7 +193,7 @@ public class StaffClipboardAPI {
 
     /**
      * get all notes in the line and position bounds that are filtered and put
-     * them into the selection map
+     * them into the selection, a line at a time
      * 
      * @param lineBegin
      * @param positionBegin
@@ -199,20 +203,32 @@ public class StaffClipboardAPI {
      *            (>= positionBegin, i.e. positionEnd could be higher notes)
      */
     public void select(int lineBegin, int positionBegin, int lineEnd, int positionEnd) {
-        for (int line = lineBegin; line <= lineEnd; line++) {
-            NoteLine lineSrc = theStaff.getSequence().getLine(line);
+        Song seq = theStaff.getSequence();
+        SelectionModel selection = theStaffClipboard.getSelection();
+        int filter = StateMachine.getFilteredNotes();
+        int[] found = new int[Values.MAX_STACKABLE_NOTES];
+        // only the lines with notes of the filtered instruments
+        for (int line = seq.nextLineWith(filter, Math.max(lineBegin, 0)); line >= 0 && line <= lineEnd;
+                line = seq.nextLineWith(filter, line + 1)) {
+            NoteLine lineSrc = seq.peekLine(line);
 
-            List<Note> ntList = lineSrc.getNotes();
-            for (Note note : ntList) {
-                if (positionBegin <= note.getVerticalPosition() && note.getVerticalPosition() <= positionEnd
-                        && StateMachine.getFilteredNote(note.getInstrument().ordinal())) {
-                    // store the copied note at the relative line
-                    selectNote(line, note);
-                    // store the staffnoteline's volume at the relative line
-                    selectVolume(line, lineSrc.getVolume());
-                    updateSelectionLineBegin(line);
+            int count = 0;
+            for (int k = 0; k < lineSrc.size(); k++) {
+                int note = lineSrc.getPacked(k);
+                int position = PackedNote.getVerticalPosition(note);
+                if (positionBegin <= position && position <= positionEnd
+                        && (filter & 1 << PackedNote.instrumentOrdinal(note)) != 0) {
+                    if (count == found.length)
+                        found = Arrays.copyOf(found, count * 2);
+                    found[count++] = note;
                 }
             }
+            if (count > 0) {
+                // keep what an earlier band selected on the line
+                selection.addToLine(line, found, count);
+                selectVolume(line);
+                updateSelectionLineBegin(line);
+            }
         }
         
         theStaff.redraw(); // display visual effect
@@ -224,23 +240,25 @@ public class StaffClipboardAPI {
     }
 
     /**
-     * Unhighlight all notes and volumes and clear the selection map.
+     * Unhighlight all notes and volumes and clear the selection.
      */
     public void clearSelection() {
-        //unhighlight notes
-        Map<Integer, NoteLine> selection = theStaffClipboard.getSelection();
-        for(NoteLine line : selection.values()) 
-            for(Note note : line.getNotes())
-                highlightNote(note, false);
+        SelectionModel selection = theStaffClipboard.getSelection();
+        boolean shown = !selection.isEmpty() && selection.isHighlighted();
 
         //unhighlight volumes
         theStaffClipboard.getHighlightedVolumes().clear();
         theStaffClipboard.getHighlightedVolumesRedrawer().changed(null, 0, StateMachine.getMeasureLineNum());
 
         selection.clear();
+        selection.setHighlighted(true);
         selectionLineBegin = Integer.MAX_VALUE;
         selectNotesFlag = true;
         selectVolumesFlag = true;
+        
+        //unhighlight notes
+        if (shown)
+            theStaff.redraw();
     }
     
     /**
@@ -281,7 +299,8 @@ public class StaffClipboardAPI {
     }
     
     /**
-     * Select note. Add existing note into selection. Highlight note.
+     * Select note. Add existing note into selection, highlighted at the
+     * next redraw.
      * 
      * @param line
      *            where the note occurs
@@ -289,13 +308,7 @@ public class StaffClipboardAPI {
      *            that will be placed into selection
      */
     public void selectNote(int line, Note note) {
-        Map<Integer, NoteLine> selection = theStaffClipboard.getSelection();
-        selection.computeIfAbsent(line, l -> new NoteLine()).getNotes().add(note);
-        highlightNote(note, true);
-    }
-    
-    public void highlightNote(Note note, boolean highlight) {
-        note.setSelected(highlight);
+        theStaffClipboard.getSelection().select(line, PackedNote.pack(note));
     }
     
     public void copyVolume(int line, int volume) {
@@ -303,9 +316,14 @@ public class StaffClipboardAPI {
         copiedData.computeIfAbsent(line, l -> new NoteLine()).setVolume(volume);
     }
     
-    public void selectVolume(int line, int volume) {
-        Map<Integer, NoteLine> selection = theStaffClipboard.getSelection();        
-        selection.computeIfAbsent(line, l -> new NoteLine()).setVolume(volume);
+    /**
+     * Select the volume of a line. The volume copied is the one the line has
+     * when copying.
+     * 
+     * @param line
+     *            where the volume is
+     */
+    public void selectVolume(int line) {
         highlightVolume(line, true);
     }
 
@@ -323,24 +341,15 @@ public class StaffClipboardAPI {
     
     public void selectNotesToggle(boolean selectNotes) {
         selectNotesFlag = selectNotes;
-        if(selectNotesFlag) {
-            //highlight notes
-            for(NoteLine line : theStaffClipboard.getSelection().values()) 
-                for(Note note : line.getNotes())
-                    highlightNote(note, true);
-        } else {
-            //unhighlight notes
-            for(NoteLine line : theStaffClipboard.getSelection().values()) 
-                for(Note note : line.getNotes())
-                    highlightNote(note, false);
-        }
+        //highlight or unhighlight notes; only the lines shown are redrawn
+        theStaffClipboard.getSelection().setHighlighted(selectNotesFlag);
         theStaff.redraw();
     }
     
     public void selectVolumesToggle(boolean selectVolumes) {
         selectVolumesFlag = selectVolumes;
         if(selectVolumesFlag) {
-            for(Integer line : theStaffClipboard.getSelection().keySet())
+            for(int line : theStaffClipboard.getSelection().getLines())
                 highlightVolume(line, true);
         } else {
             //unhighlight volumes
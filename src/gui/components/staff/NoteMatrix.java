@@ -9,9 +9,10 @@ import backend.songs.MuteModifier;
 import backend.songs.Note;
 import backend.songs.NoteLine;
 import backend.songs.Song;
+import gui.clipboard.SelectionModel;
 import gui.components.staff.StaffDisplayManager.StaffNoteCoordinate;
 import gui.loaders.ImageIndex;
-import javafx.scene.image.Image;
+import gui.loaders.SpriteAtlas;
 import javafx.scene.image.ImageView;
 
 /**
@@ -40,7 +41,7 @@ class NoteMatrix {
     private final List<ImageView> accSilMatrix;
     
     /** Pointer to the image loader object. */
-    private final transient Map<ImageIndex, Image> imagesHolder;
+    private final transient SpriteAtlas imagesHolder;
     
     /**
      * A silhouette note to display where the cursor is.
@@ -49,7 +50,7 @@ class NoteMatrix {
     private Note currentSilhouette;
     private int currentSilhouetteColumn;
 
-    public NoteMatrix(Map<ImageIndex, Image> imagesHolder, StaffDisplayManager disp) {
+    public NoteMatrix(SpriteAtlas imagesHolder, StaffDisplayManager disp) {
         this.imagesHolder = imagesHolder;
         this.disp = disp;
         
@@ -106,8 +107,11 @@ class NoteMatrix {
 
     /**
      * Repopulates the note display on the staff.
+     * 
+     * @param selection
+     *            The notes to show highlighted, or <b>null</b> for none
      */
-    public void populateNoteDisplay(Song seq, int currentPosition) {
+    public void populateNoteDisplay(Song seq, int currentPosition, SelectionModel selection) {
         // No order is assumed in StaffNoteLine so we keep track of how many
         // stacked notes we already treated for each row
         int[] stackedAmounts = new int[disp.height];
@@ -119,18 +123,21 @@ class NoteMatrix {
                 accStackedAmounts[row] = 0;
             }
             
-            NoteLine stl = seq.getLine(currentPosition + col);
+            NoteLine stl = seq.peekLine(currentPosition + col);
             List<Note> st = stl.getNotes();
             
-            for (Note s : st) {
+            for (int k = 0; k < st.size(); k++) {
+                Note s = st.get(k);
                 int row = s.getVerticalPosition();
                 
                 int d = stackedAmounts[row];
                 if (d < disp.depth) {
                     stackedAmounts[row] = d + 1;
                     ImageView iv = matrix.get(disp.new StaffNoteCoordinate(col, row, d).lin());
-                    iv.setImage(imagesHolder.get(noteImageIndex(s)));
-                    iv.setEffect(s.isSelected() ? StaffDisplayManager.highlightBlend : null);
+                    imagesHolder.applyTo(iv, noteImageIndex(s));
+                    boolean highlighted = selection != null
+                            && selection.isHighlighted(currentPosition + col, stl.getPacked(k));
+                    iv.setEffect(highlighted ? StaffDisplayManager.highlightBlend : null);
                     iv.setVisible(true);
                 }
                 
@@ -138,7 +145,7 @@ class NoteMatrix {
                 if (d < disp.depth) {
                     accStackedAmounts[row] = d + 1;
                     ImageView iv = accMatrix.get(disp.new StaffNoteCoordinate(col, row, d).lin());
-                    iv.setImage(imagesHolder.get(accImageIndex(s)));
+                    imagesHolder.applyTo(iv, accImageIndex(s));
                     iv.setVisible(true);
                 }
             }
@@ -182,12 +189,12 @@ class NoteMatrix {
         currentSilhouette = silhouette;
         
         ImageView iv = silMatrix.get(disp.new StaffNoteCoordinate(col, row, -1).lin());
-        iv.setImage(imagesHolder.get(noteImageIndex(silhouette)));
+        imagesHolder.applyTo(iv, noteImageIndex(silhouette));
         iv.setVisible(true);
         
         if (silhouette.getAccidental() != Accidental.NATURAL) {
             ImageView acciv = accSilMatrix.get(disp.new StaffNoteCoordinate(col, row, -1).lin());
-            acciv.setImage(imagesHolder.get(accImageIndex(silhouette)));
+            imagesHolder.applyTo(acciv, accImageIndex(silhouette));
             acciv.setVisible(true);
         }
     }
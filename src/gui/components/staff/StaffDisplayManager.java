@@ -13,8 +13,10 @@ import backend.songs.Song;
 import gui.Settings;
 import gui.Staff;
 import gui.Values;
+import gui.clipboard.SelectionModel;
 import gui.clipboard.StaffClipboard;
 import gui.loaders.ImageIndex;
+import gui.loaders.SpriteAtlas;
 import javafx.event.Event;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
@@ -22,7 +24,6 @@ import javafx.scene.Node;
 import javafx.scene.effect.Blend;
 import javafx.scene.effect.BlendMode;
 import javafx.scene.effect.ColorInput;
-import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Pane;
@@ -67,7 +68,7 @@ public class StaffDisplayManager {
      */
     private ArrayList<Text> measureNums;
 
-    private Map<ImageIndex, Image> imagesHolder;
+    private SpriteAtlas imagesHolder;
 
     /** The ledger lines at the high C of the staff. */
     private ArrayList<Node> highC;
@@ -90,10 +91,13 @@ public class StaffDisplayManager {
     private Node[] playbars;
     private int activePlaybar;
 
+    /** The notes selected with the clipboard, or <b>null</b>. */
+    private SelectionModel selection;
+
     /**
      * Constructor that also sets up the staff ledger lines.
      */
-    public StaffDisplayManager(Pane staffFrame, Map<ImageIndex, Image> imagesHolder, HBox staffVolumeBars, ModifySongManager commandManager, int width, int height, int depth) {
+    public StaffDisplayManager(Pane staffFrame, SpriteAtlas imagesHolder, HBox staffVolumeBars, ModifySongManager commandManager, int width, int height, int depth) {
         this.staffVolumeBars = staffVolumeBars;
         this.staffFrame = staffFrame;
 
@@ -178,7 +182,6 @@ public class StaffDisplayManager {
             stack.getChildren().add(iv);
             
             StaffVolumeEventHandler handler = new StaffVolumeEventHandler(stack, imagesHolder, commandManager);
-            handler.setStaffNoteLine(new NoteLine());
             stack.addEventHandler(Event.ANY, handler);
             
             staffVolumeBars.getChildren().add(stack);
@@ -189,9 +192,7 @@ public class StaffDisplayManager {
     public void updateVolumeBars(Song seq, int currLine) {
         for (int i = 0; i < width; i++) {
             StaffVolumeEventHandler sveh = volumeBarHandlers.get(i);
-            NoteLine stl = seq.getLine(currLine + i);
-            
-            sveh.setStaffNoteLine(stl);
+            sveh.setStaffNoteLine(seq, currLine + i);
             sveh.updateVolume();
         }
     }
@@ -318,7 +319,15 @@ public class StaffDisplayManager {
     
     public void updateNoteDisplay(Song seq, int currLine) {
         matrix.clearNoteDisplay();
-        matrix.populateNoteDisplay(seq, currLine);
+        matrix.populateNoteDisplay(seq, currLine, selection);
+    }
+
+    /**
+     * @param selection
+     *            The notes to show highlighted, or <b>null</b> for none
+     */
+    public void setSelection(SelectionModel selection) {
+        this.selection = selection;
     }
 
     /**
@@ -403,21 +412,21 @@ public class StaffDisplayManager {
             int k = Arrays.binarySearch(cumulativeSubLengths, relativeIndex);
             
             if (k == 0) {
-                currImage.setImage(imagesHolder.get(ImageIndex.STAFF_MLINE));
+                imagesHolder.applyTo(currImage, ImageIndex.STAFF_MLINE);
                 String txt = String.valueOf(currentBarIndex + 1);
                 double fontSize = Font.getDefault().getSize();
                 currText.setText(txt);
                 currText.setFont(new Font(fontSize));
                 
             } else if (k > 0) {
-                currImage.setImage(imagesHolder.get(ImageIndex.STAFF_SLINE));
+                imagesHolder.applyTo(currImage, ImageIndex.STAFF_SLINE);
                 String txt = String.valueOf(currentBarIndex + 1) + "." + (k + 1);
                 double fontSize = Font.getDefault().getSize() * .75;
                 currText.setText(txt);
                 currText.setFont(new Font(fontSize));
                 
             } else {
-                currImage.setImage(imagesHolder.get(ImageIndex.STAFF_LINE));
+                imagesHolder.applyTo(currImage, ImageIndex.STAFF_LINE);
                 currText.setText("");
             }
         }
@@ -471,7 +480,7 @@ public class StaffDisplayManager {
     
     public void updateStaffLedgerLines(Song seq, int currLine) {
         for (int i = 0; i < width; i++) {
-            NoteLine stl = seq.getLine(currLine + i);
+            NoteLine stl = seq.peekLine(currLine + i);
 
             int high = 0;
             int low = height;
@@ -12,6 +12,7 @@ import backend.songs.Accidental;
 import backend.songs.MuteModifier;
 import backend.songs.Note;
 import backend.songs.NoteLine;
+import backend.songs.Song;
 import gui.InstrumentIndex;
 import gui.Settings;
 import gui.Staff;
@@ -167,7 +168,7 @@ public class StaffMouseEventHandler implements EventHandler<MouseEvent> {
         if (StateMachine.getButtonsPressed().contains(KeyCode.E)) {
             removeNote();
         } else {        
-            NoteLine s = theStaff.getSequence().getLine(
+            NoteLine s = theStaff.getSequence().peekLine(
                 StateMachine.getMeasureLineNum() + lineTmp);
             placeNote(theInd, s.getVolume());
         }
@@ -200,17 +201,18 @@ public class StaffMouseEventHandler implements EventHandler<MouseEvent> {
         
         theStaff.getDisplayManager().resetSilhouette();
 
-        NoteLine temp = theStaff.getSequence().getLine(
-                line + StateMachine.getMeasureLineNum());
+        Song seq = theStaff.getSequence();
+        int index = line + StateMachine.getMeasureLineNum();
+        NoteLine temp = seq.getLine(index);
 
         if (temp.getNotes().isEmpty()) {
             temp.setVolume(Values.DEFAULT_VELOCITY);
-            commandManager.execute(new AddVolumeCommand(temp, Values.DEFAULT_VELOCITY));
+            commandManager.execute(new AddVolumeCommand(seq, index, Values.DEFAULT_VELOCITY));
         }
 
         if (!temp.getNotes().contains(theStaffNote)) {
             temp.getNotes().add(theStaffNote);
-            commandManager.execute(new AddNoteCommand(temp, theStaffNote));
+            commandManager.execute(new AddNoteCommand(seq, index, theStaffNote));
         }
         StaffVolumeEventHandler sveh = theStaff.getDisplayManager().getVolHandler(
                 line);
@@ -239,8 +241,11 @@ public class StaffMouseEventHandler implements EventHandler<MouseEvent> {
     private void removeNote() {
         theStaff.getDisplayManager().resetSilhouette();
 
-        NoteLine temp = theStaff.getSequence().getLine(
-                line + StateMachine.getMeasureLineNum());
+        Song seq = theStaff.getSequence();
+        int index = line + StateMachine.getMeasureLineNum();
+        NoteLine temp = seq.peekLine(index);
+        if (temp != NoteLine.EMPTY)
+            temp = seq.getLine(index);
 
         if (!temp.getNotes().isEmpty()) {
             List<Note> nt = temp.getNotes();
@@ -248,7 +253,7 @@ public class StaffMouseEventHandler implements EventHandler<MouseEvent> {
                 Note s = nt.get(i);
                 if (s.getVerticalPosition() == position) {
                     Note removedNote = nt.remove(i);
-                    commandManager.execute(new RemoveNoteCommand(temp, removedNote));
+                    commandManager.execute(new RemoveNoteCommand(seq, index, removedNote));
                     break;
                 }
             }
@@ -258,7 +263,7 @@ public class StaffMouseEventHandler implements EventHandler<MouseEvent> {
             StaffVolumeEventHandler sveh = theStaff.getDisplayManager()
                     .getVolHandler(line);
             sveh.setVolumeVisible(false);
-            commandManager.execute(new RemoveVolumeCommand(temp, temp.getVolume()));
+            commandManager.execute(new RemoveVolumeCommand(seq, index, temp.getVolume()));
             temp.setVolume(Values.DEFAULT_VELOCITY);
         }
         theStaff.redraw();
@@ -1,16 +1,15 @@
 package gui.components.staff;
 
-import java.util.Map;
-
 import backend.editing.ModifySongManager;
 import backend.editing.commands.AddVolumeCommand;
 import backend.editing.commands.RemoveVolumeCommand;
 import backend.songs.NoteLine;
+import backend.songs.Song;
 import gui.Values;
 import gui.loaders.ImageIndex;
+import gui.loaders.SpriteAtlas;
 import javafx.event.Event;
 import javafx.event.EventHandler;
-import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.StackPane;
@@ -33,8 +32,11 @@ public class StaffVolumeEventHandler implements EventHandler<Event> {
     /** The ImageView object that is this volume bar. */
     private ImageView theVolBar;
 
-    /** The StaffNoteLine that this event handler is associated with. */
-    private NoteLine theLine;
+    /** The song whose line this event handler is associated with. */
+    private Song theSequence;
+
+    /** The index of the line in the song. */
+    private int theLineIndex;
     
     /** The text representing the volume bar the mouse is currently hovering over. */
     private static Text volText;
@@ -50,7 +52,7 @@ public class StaffVolumeEventHandler implements EventHandler<Event> {
     private ModifySongManager commandManager;
     
     /** Makes a new StaffVolumeEventHandler. */
-    public StaffVolumeEventHandler(StackPane st, Map<ImageIndex, Image> imagesHolder, ModifySongManager cm) {
+    public StaffVolumeEventHandler(StackPane st, SpriteAtlas imagesHolder, ModifySongManager cm) {
         stp = st;
         theVolBar = (ImageView) st.getChildren().get(0);
         theVolBar.setImage(imagesHolder.get(ImageIndex.VOL_BAR));
@@ -90,10 +92,11 @@ public class StaffVolumeEventHandler implements EventHandler<Event> {
 
     /** Called whenever the mouse is pressed. */
     private void mousePressed(MouseEvent event) {
+        NoteLine theLine = getStaffNoteLine();
         if (!theLine.getNotes().isEmpty()) {
 
             if(event.getEventType() == MouseEvent.MOUSE_PRESSED)
-                commandManager.execute(new RemoveVolumeCommand(theLine, theLine.getVolume()));
+                commandManager.execute(new RemoveVolumeCommand(theSequence, theLineIndex, theLine.getVolume()));
 
             if(event.getY() < 0 || stp.getHeight() < event.getY())
                 return;
@@ -110,12 +113,15 @@ public class StaffVolumeEventHandler implements EventHandler<Event> {
     }
     
     private void mouseReleased() {
-        commandManager.execute(new AddVolumeCommand(theLine, theLine.getVolume()));//.addVolume(theLine, theLine.getVolume());
+        if (theSequence == null)
+            return;
+        commandManager.execute(new AddVolumeCommand(theSequence, theLineIndex, getStaffNoteLine().getVolume()));//.addVolume(theLine, theLine.getVolume());
         commandManager.record();
     }
     
     /** Called whenever the mouse enters the area. */
     private void mouseEntered() {
+        NoteLine theLine = getStaffNoteLine();
         if (!theLine.getNotes().isEmpty()) {
             if(volText == null){
                 volText = new Text("" + theLine.getVolume());
@@ -149,7 +155,7 @@ public class StaffVolumeEventHandler implements EventHandler<Event> {
      * @param y The y-location of the click.
      */
     private void setVolume(int y) {
-        theLine.setVolume(y);
+        theSequence.getLine(theLineIndex).setVolume(y);
     }
 
     /**
@@ -159,7 +165,7 @@ public class StaffVolumeEventHandler implements EventHandler<Event> {
      */
     private void setVolumePercent(double y) throws IllegalArgumentException {
         if (y >= 0 && y <= 1) {
-            theLine.setVolume((int) (y * Values.MAX_VELOCITY));
+            theSequence.getLine(theLineIndex).setVolume((int) (y * Values.MAX_VELOCITY));
         }
     }
 
@@ -185,25 +191,30 @@ public class StaffVolumeEventHandler implements EventHandler<Event> {
     }
 
     /**
-     * Sets the StaffNoteLine that this event handler is controlling.
-     * @param s The StaffNoteLine that this handler is controlling
+     * Sets the StaffNoteLine that this event handler is controlling. The
+     * line is taken from the song each time, as the song gives a new line
+     * object when it changes a line it shares with a copy.
+     * @param seq The song of the line
+     * @param index The index of the line that this handler is controlling
      * at the moment.
      */
-    public void setStaffNoteLine(NoteLine s) {
-        theLine = s;
+    public void setStaffNoteLine(Song seq, int index) {
+        theSequence = seq;
+        theLineIndex = index;
     }
 
     /**
      * @return The StaffNoteLine that this handler is currently controlling.
      */
     public NoteLine getStaffNoteLine() {
-        return theLine;
+        return (theSequence != null) ? theSequence.peekLine(theLineIndex) : NoteLine.EMPTY;
     }
 
     /**
      * Updates the volume display on this volume displayer.
      */
     public void updateVolume() {
+        NoteLine theLine = getStaffNoteLine();
         setVolumeDisplay(theLine.getVolume() * stp.getHeight() / Values.MAX_VELOCITY);
         if (theLine.getVolume() == 0 || theLine.getNotes().isEmpty()) {
             setVolumeVisible(false);
@@ -75,6 +75,12 @@ public class KeyboardHandlerMaker extends HandlerMaker<SMPFXController> {
             					() -> source.save(Utilities.getOwner(ke))));
                 break;
                 
+            case E:
+            	tryPerformFirstMatchingSubaction(ke,
+            			new Subaction<>(KeyEvent::isControlDown,
+            					() -> source.export(Utilities.getOwner(ke))));
+                break;
+                
             case M:
             	tryPerformFirstMatchingSubaction(ke,
             			new Subaction<>(d -> true,
@@ -1,8 +1,15 @@
 package gui.loaders;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
-import java.util.EnumMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import gui.Settings;
 import gui.Values;
@@ -13,11 +20,17 @@ import javafx.scene.image.Image;
 /**
  * A class that loads all the necessary images for the program to function when
  * the program first starts.
+ * <p>
+ * Most sprites come from the atlas made by the {@link SpritePacker} at build
+ * time, which is one image to decode. The sprites that aren't in it, or all
+ * of them if there is no atlas, are decoded one by one, several at a time,
+ * as are the sprites the user replaced in the sprites folder. {@link #load}
+ * doesn't wait for them, so that it can run on the executor decoding them.
  * 
  * @author RehdBlob
  * @since 2012.08.14
  */
-public class ImageLoader extends LoaderBase<Map<ImageIndex, Image>> {
+public class ImageLoader extends LoaderBase<SpriteAtlas> {
 
     /**
      * The extension of the image files that we are to be loading. An advantage of
@@ -25,39 +38,136 @@ public class ImageLoader extends LoaderBase<Map<ImageIndex, Image>> {
      */
     private String extension = ".png";
 
+    /** Decodes the sprites, several at a time if it has several threads. */
+    private final Executor executor;
+
+    /**
+     * Makes a loader that decodes the sprites one after the other on the
+     * calling thread.
+     */
+    public ImageLoader() {
+        this(Runnable::run);
+    }
+
+    /**
+     * @param executor
+     *            Decodes the sprites, several at a time if it has several
+     *            threads.
+     */
+    public ImageLoader(Executor executor) {
+        this.executor = executor;
+    }
+
     /**
      * Loads all of the image files that will be used in drawing
      * the main window and all of the buttons of Super Mario Paint.
      * A splash screen runs while this is happening.
      */
     @Override
-    public Map<ImageIndex, Image> call() {
-        Map<ImageIndex, Image> spritesFX = new EnumMap<>(ImageIndex.class);
-        ImageIndex [] ind = ImageIndex.values();
+    public SpriteAtlas call() {
+        return load().join();
+    }
+
+    /**
+     * Reads the atlas and starts decoding the sprites that aren't in it on
+     * the executor, without waiting for them.
+     *
+     * @return The sprites, once they are all decoded
+     */
+    public CompletableFuture<SpriteAtlas> load() {
+        SpriteAtlas atlas = readAtlas();
+        setLoadStatus(0.5);
         
-        for (ImageIndex i : ind) {
+        List<ImageIndex> ind = new ArrayList<>();
+        Set<ImageIndex> replaced = EnumSet.noneOf(ImageIndex.class);
+        for (ImageIndex i : ImageIndex.values()) {
             if (i == ImageIndex.NONE || i == ImageIndex.BLANK)
                 continue;
             
-            setLoadStatus((i.ordinal() + 1.0) / ind.length);
-            
+            // The FXML reads its sprites from the copies, so they are made
+            // even for the sprites of the atlas. A copy the user replaced
+            // wins over the atlas.
             String path = i.toString() + extension;
-            URL url = SMPResourceUtil.get(path, FetchStrategy.FROM_COPY, Values.SPRITES_FOLDER);
-            Image temp2 = new Image(url.toString());
-            spritesFX.put(i, temp2);
-            
-            if ((Settings.debug & 0b01) != 0)
-                System.out.println(
-                        "Loaded Image: " + i.toString() + extension);
-            try {
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            SMPResourceUtil.get(path, FetchStrategy.FROM_COPY, Values.SPRITES_FOLDER);
+            if (!atlas.inAtlas(i)) {
+                ind.add(i);
+            } else if (isReplaced(atlas, i, path)) {
+                ind.add(i);
+                replaced.add(i);
             }
         }
         
-        setLoadStatus(1);
-        return spritesFX;
+        double step = 0.5 / Math.max(1, ind.size());
+        List<CompletableFuture<Image>> decoded = new ArrayList<>(ind.size());
+        for (ImageIndex i : ind) {
+            decoded.add(CompletableFuture.supplyAsync(() -> {
+                String path = i.toString() + extension;
+                URL url = SMPResourceUtil.get(path, FetchStrategy.FROM_COPY, Values.SPRITES_FOLDER);
+                Image temp2 = new Image(url.toString());
+                
+                if ((Settings.debug & 0b01) != 0)
+                    System.out.println(
+                            "Loaded Image: " + i.toString() + extension);
+                addLoadStatus(step);
+                return temp2;
+            }, executor));
+        }
+        
+        return CompletableFuture.allOf(decoded.toArray(new CompletableFuture[0])).thenApply(v -> {
+            for (int k = 0; k < ind.size(); k++) {
+                ImageIndex i = ind.get(k);
+                if (replaced.contains(i))
+                    atlas.putReplaced(i, decoded.get(k).join());
+                else
+                    atlas.put(i, decoded.get(k).join());
+            }
+            
+            setLoadStatus(1);
+            return atlas;
+        });
+    }
+
+    /**
+     * @return The sprite atlas packaged with the program, or an empty one if
+     *         there is none or it can't be read.
+     */
+    private SpriteAtlas readAtlas() {
+        try {
+            // Not a copy, which would be left over from an older version
+            URL sheet = SMPResourceUtil.get(SpritePacker.ATLAS, FetchStrategy.INTERNAL, Values.SPRITES_FOLDER);
+            URL index = SMPResourceUtil.get(SpritePacker.INDEX, FetchStrategy.INTERNAL, Values.SPRITES_FOLDER);
+            try (InputStream in = index.openStream()) {
+                SpriteAtlas atlas = SpriteAtlas.read(new Image(sheet.toString()), in);
+                if ((Settings.debug & 0b01) != 0)
+                    System.out.println("Loaded sprite atlas: " + atlas.atlasSize() + " sprites");
+                return atlas;
+            }
+        } catch (IOException | NullPointerException e) {
+            // No atlas, as when running without the build; every sprite is
+            // loaded on its own
+            if ((Settings.debug & 0b01) != 0)
+                System.out.println("No sprite atlas: " + e.getMessage());
+            return new SpriteAtlas(null);
+        }
+    }
+
+    /**
+     * @param atlas
+     *            The atlas
+     * @param i
+     *            A sprite of the atlas
+     * @param path
+     *            The file name of the sprite
+     * @return Whether the user's copy of the sprite differs from the sprite
+     *         packaged with the program, which the atlas was made from.
+     */
+    private static boolean isReplaced(SpriteAtlas atlas, ImageIndex i, String path) {
+        File copy = new File(Values.SPRITES_FOLDER, path);
+        try {
+            return copy.isFile() && !atlas.isPackedFrom(i, copy);
+        } catch (IOException e) {
+            return false;
+        }
     }
 
 }
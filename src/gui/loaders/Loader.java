@@ -1,6 +1,7 @@
 package gui.loaders;
 
 import java.util.concurrent.Callable;
+import java.util.function.DoubleConsumer;
 
 /**
  * A Thread loader that loads some component of
@@ -17,4 +18,11 @@ public interface Loader<V> extends Callable<V> {
      */
     public double getLoadStatus();
 
+    /**
+     * Sets who is told of the load status each time it changes, instead of
+     * polling it. It may be called from any of the loading threads.
+     * @param listener Takes the new load status, or <b>null</b>
+     */
+    public void setProgressListener(DoubleConsumer listener);
+
 }
@@ -1,16 +1,36 @@
 package gui.loaders;
 
+import java.util.function.DoubleConsumer;
+
 public abstract class LoaderBase<V> implements Loader<V> {
     
-    protected double loadStatus = 0.0;
+    protected volatile double loadStatus = 0.0;
+
+    private volatile DoubleConsumer progressListener;
 
     @Override
     public double getLoadStatus() {
         return loadStatus;
     }
 
+    @Override
+    public void setProgressListener(DoubleConsumer listener) {
+        progressListener = listener;
+    }
+
     protected void setLoadStatus(double d) {
         loadStatus = d;
+        DoubleConsumer l = progressListener;
+        if (l != null)
+            l.accept(d);
+    }
+
+    /**
+     * Adds to the load status, for work done in parallel.
+     * @param d The part of the loading just done
+     */
+    protected synchronized void addLoadStatus(double d) {
+        setLoadStatus(Math.min(1, loadStatus + d));
     }
 
 }
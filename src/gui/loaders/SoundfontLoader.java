@@ -28,61 +28,72 @@ import gui.resources.SMPResourceUtil;
  */
 public class SoundfontLoader extends LoaderBase<SoundPlayer> {
 
+    /**
+     * Reads the default soundfont. This doesn't need the synthesizer, so
+     * it may run while {@link #openSynthesizer()} does.
+     * @return The default soundbank
+     */
+    public Soundbank loadSoundbank() throws InvalidMidiDataException, IOException {
+        URL defaultSoundfontFile = SMPResourceUtil.get(Values.DEFAULT_SOUNDFONT, FetchStrategy.FROM_COPY, Values.SOUNDFONTS_FOLDER);
+        Soundbank bank = MidiSystem.getSoundbank(defaultSoundfontFile);
+        addLoadStatus(0.4);
+        return bank;
+    }
+
+    /**
+     * Opens the synthesizers, enough of them for every instrument to have
+     * its channel, and empties them of their default instruments.
+     * @return The synthesizer
+     */
+    public SMPSynthesizer openSynthesizer() throws MidiUnavailableException {
+        SMPSynthesizer theSynthesizer = new SMPSynthesizer();
+        theSynthesizer.open();
+        theSynthesizer.ensureCapacity(Values.NUM_INSTRUMENTS);
+        for (Instrument i : theSynthesizer.getLoadedInstruments())
+            theSynthesizer.unloadInstrument(i);
+        addLoadStatus(0.3);
+        return theSynthesizer;
+    }
+
+    /**
+     * Loads the soundbank into the synthesizer and gives each instrument
+     * its program.
+     * @param theSynthesizer The synthesizer from {@link #openSynthesizer()}
+     * @param bank The soundbank from {@link #loadSoundbank()}
+     * @return The sound player
+     */
+    public SoundPlayer initialize(SMPSynthesizer theSynthesizer, Soundbank bank) {
+        theSynthesizer.loadAllInstruments(bank);
+
+        if ((Settings.debug & 0b01) != 0){
+            System.out.println("Loaded Instruments: ");
+            for (Instrument j : theSynthesizer.getLoadedInstruments())
+                System.out.println(j.getName());
+        }
+
+        int ordinal = 0;
+        MidiChannel[] chan = theSynthesizer.getChannels();
+        for (InstrumentIndex i : InstrumentIndex.values()) {
+            chan[ordinal].programChange(ordinal);
+            chan[ordinal].controlChange(Values.REVERB, 0);
+            ordinal++;
+            System.out.println("Initialized Instrument: "
+                    + i.toString());
+        }
+        if ((Settings.debug & 0b01) != 0)
+            System.out.println(
+                    "Synth Latency: " + theSynthesizer.getLatency());
+        setLoadStatus(1);
+        
+        return new SoundPlayer(theSynthesizer, bank, chan);
+    }
+
     @Override
     public SoundPlayer call() {
         SoundPlayer soundPlayer = null;
-        SMPSynthesizer theSynthesizer;
-        Soundbank bank;
-        MidiChannel[] chan;
         
         try {
-            URL defaultSoundfontFile = SMPResourceUtil.get(Values.DEFAULT_SOUNDFONT, FetchStrategy.FROM_COPY, Values.SOUNDFONTS_FOLDER);
-            bank = MidiSystem.getSoundbank(defaultSoundfontFile);
-            theSynthesizer = new SMPSynthesizer();
-            theSynthesizer.open();
-            setLoadStatus(0.1);
-            theSynthesizer.ensureCapacity(45);
-            for (Instrument i : theSynthesizer.getLoadedInstruments()) {
-                theSynthesizer.unloadInstrument(i);
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-            setLoadStatus(0.2);
-            theSynthesizer.loadAllInstruments(bank);
-            setLoadStatus(0.3);
-
-            if ((Settings.debug & 0b01) != 0){
-                System.out.println("Loaded Instruments: ");
-                for (Instrument j : theSynthesizer.getLoadedInstruments())
-                    System.out.println(j.getName());
-            }
-
-            int ordinal = 0;
-            chan = theSynthesizer.getChannels();
-            for (InstrumentIndex i : InstrumentIndex.values()) {
-                setLoadStatus(0.3 + 0.7
-                        * ordinal / InstrumentIndex.values().length);
-                chan[ordinal].programChange(ordinal);
-                chan[ordinal].controlChange(Values.REVERB, 0);
-                ordinal++;
-                System.out.println("Initialized Instrument: "
-                        + i.toString());
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-            if ((Settings.debug & 0b01) != 0)
-                System.out.println(
-                        "Synth Latency: " + theSynthesizer.getLatency());
-            setLoadStatus(1);
-            
-            soundPlayer = new SoundPlayer(theSynthesizer, bank, chan);
-            
+            soundPlayer = initialize(openSynthesizer(), loadSoundbank());
         } catch (MidiUnavailableException | InvalidMidiDataException | IOException | NullPointerException e) {
             // Can't recover.
             e.printStackTrace();
@@ -0,0 +1,288 @@
+package gui.loaders;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import javafx.geometry.Rectangle2D;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.WritableImage;
+
+/**
+ * The sprites of Super Mario Paint, most of them rectangles of one atlas
+ * image made by the {@link SpritePacker}.
+ * <p>
+ * Image views should show a sprite with {@link #applyTo}, which points them
+ * at the atlas and the sprite's rectangle, so that they all share one image.
+ * For what needs an image of its own, like a cursor, {@link #get} copies the
+ * sprite out of the atlas the first time it is asked for; sprites that are
+ * rarely shown, like the silhouettes, then never take memory of their own.
+ * Sprites that aren't in the atlas are images of their own.
+ * <p>
+ * On a screen that scales the window, the sprites of the matching archive
+ * ({@link ZipSprites}) are shown instead where the view has a fit size, so
+ * that they are drawn with all the screen's pixels rather than stretched.
+ */
+public class SpriteAtlas {
+
+    /** The atlas image, or <b>null</b> if there is none. */
+    private final Image sheet;
+
+    /** The rectangle of each sprite in the atlas. */
+    private final Map<ImageIndex, Rectangle2D> viewports = new EnumMap<>(ImageIndex.class);
+
+    /**
+     * The size and the CRC-32 of the file each sprite of the atlas was packed
+     * from.
+     */
+    private final Map<ImageIndex, long[]> packedFrom = new EnumMap<>(ImageIndex.class);
+
+    /** The sprites that are images of their own, given or copied. */
+    private final Map<ImageIndex, Image> images = new EnumMap<>(ImageIndex.class);
+
+    /** The sprites the user replaced, which have no sharper version. */
+    private final Set<ImageIndex> replaced = EnumSet.noneOf(ImageIndex.class);
+
+    /** The sprites of each scale above 1 asked for, or <b>null</b> if it has no archive. */
+    private final Map<Integer, ZipSprites> scaled = new HashMap<>();
+
+    /** The sprites of the screen's scale, or <b>null</b> to use these ones. */
+    private volatile ZipSprites sharp;
+
+    /**
+     * @param sheet
+     *            The atlas image, or <b>null</b> if there is none.
+     */
+    public SpriteAtlas(Image sheet) {
+        this.sheet = sheet;
+    }
+
+    /**
+     * Reads the index written by the {@link SpritePacker}.
+     *
+     * @param sheet
+     *            The atlas image
+     * @param index
+     *            The index of the atlas
+     * @return The atlas with the sprites of the index
+     * @throws IOException
+     *             If the index can't be read, or names a sprite that doesn't
+     *             exist
+     */
+    public static SpriteAtlas read(Image sheet, InputStream index) throws IOException {
+        SpriteAtlas atlas = new SpriteAtlas(sheet);
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(index, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isBlank())
+                    continue;
+                String[] f = line.trim().split("\\s+");
+                try {
+                    ImageIndex i = ImageIndex.valueOf(f[0]);
+                    atlas.viewports.put(i, new Rectangle2D(Integer.parseInt(f[1]),
+                            Integer.parseInt(f[2]), Integer.parseInt(f[3]), Integer.parseInt(f[4])));
+                    atlas.packedFrom.put(i, new long[] { Long.parseLong(f[5]), Long.parseLong(f[6], 16) });
+                } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                    throw new IOException("Bad sprite atlas entry: " + line, e);
+                }
+            }
+        }
+        return atlas;
+    }
+
+    /**
+     * Adds a sprite that is an image of its own, replacing the atlas's if
+     * it had it.
+     *
+     * @param i
+     *            The sprite
+     * @param image
+     *            Its image
+     */
+    public synchronized void put(ImageIndex i, Image image) {
+        viewports.remove(i);
+        images.put(i, image);
+    }
+
+    /**
+     * Adds a sprite the user replaced. It is shown as it is, rather than
+     * with the sprites of the screen's scale, which are the packaged ones.
+     *
+     * @param i
+     *            The sprite
+     * @param image
+     *            Its image
+     */
+    public synchronized void putReplaced(ImageIndex i, Image image) {
+        put(i, image);
+        replaced.add(i);
+    }
+
+    /**
+     * @param i
+     *            A sprite
+     * @return Whether the sprite is in the atlas or an image of its own
+     */
+    public synchronized boolean contains(ImageIndex i) {
+        return viewports.containsKey(i) || images.containsKey(i);
+    }
+
+    /**
+     * @param i
+     *            A sprite
+     * @return Whether the sprite is a rectangle of the atlas
+     */
+    public synchronized boolean inAtlas(ImageIndex i) {
+        return viewports.containsKey(i);
+    }
+
+    /**
+     * Tells whether a file is the one a sprite of the atlas was packed from.
+     * The sizes are compared first; the file is only read if they match, to
+     * compare its checksum with the index's.
+     *
+     * @param i
+     *            A sprite
+     * @param file
+     *            A file of the sprite
+     * @return Whether the file is the one the sprite was packed from;
+     *         <b>false</b> if the sprite isn't in the atlas
+     * @throws IOException
+     *             If the file can't be read
+     */
+    public boolean isPackedFrom(ImageIndex i, File file) throws IOException {
+        long[] packed;
+        synchronized (this) {
+            packed = packedFrom.get(i);
+        }
+        if (packed == null || file.length() != packed[0])
+            return false;
+        CRC32 crc = new CRC32();
+        crc.update(Files.readAllBytes(file.toPath()));
+        return crc.getValue() == packed[1];
+    }
+
+    /**
+     * @param i
+     *            A sprite
+     * @return Whether the user replaced it
+     */
+    public synchronized boolean isReplaced(ImageIndex i) {
+        return replaced.contains(i);
+    }
+
+    /**
+     * Gives a sprite as an image of its own, copying it out of the atlas
+     * the first time.
+     *
+     * @param i
+     *            A sprite
+     * @return Its image, or <b>null</b> if there is no such sprite
+     */
+    public synchronized Image get(ImageIndex i) {
+        Image img = images.get(i);
+        if (img == null) {
+            Rectangle2D r = viewports.get(i);
+            if (r == null)
+                return null;
+            img = new WritableImage(sheet.getPixelReader(), (int) r.getMinX(), (int) r.getMinY(),
+                    (int) r.getWidth(), (int) r.getHeight());
+            images.put(i, img);
+        }
+        return img;
+    }
+
+    /**
+     * Shows a sprite in an image view: the atlas and the sprite's rectangle
+     * if it is in the atlas, or else its own image.
+     *
+     * @param iv
+     *            The image view
+     * @param i
+     *            A sprite
+     */
+    public void applyTo(ImageView iv, ImageIndex i) {
+        ZipSprites z = sharp;
+        if (z != null && iv.getFitWidth() > 0 && iv.getFitHeight() > 0 && !isReplaced(i)) {
+            Image img = z.get(i);
+            if (img != null) {
+                iv.setImage(img);
+                iv.setViewport(null);
+                return;
+            }
+        }
+        
+        Rectangle2D r;
+        synchronized (this) {
+            r = viewports.get(i);
+        }
+        if (r != null) {
+            iv.setImage(sheet);
+            iv.setViewport(r);
+        } else {
+            iv.setImage(get(i));
+            iv.setViewport(null);
+        }
+    }
+
+    /**
+     * Gives a sprite at the screen's scale, for a view with a fit size.
+     *
+     * @param i
+     *            A sprite
+     * @return Its image at the screen's scale if there is one, or else as
+     *         {@link #get} gives it
+     */
+    public Image getSharp(ImageIndex i) {
+        ZipSprites z = sharp;
+        Image img = (z != null && !isReplaced(i)) ? z.get(i) : null;
+        return (img != null) ? img : get(i);
+    }
+
+    /**
+     * Picks the sprites for the output scale of a screen: the 2x sprites
+     * from 1.5 on, and the 4x ones from 3 on. Each archive is opened once.
+     * The views already showing sprites change at their next update.
+     *
+     * @param outputScale
+     *            The output scale of the screen
+     * @return The sprites picked, or <b>null</b> for the 1x ones
+     */
+    public synchronized ZipSprites setOutputScale(double outputScale) {
+        int scale = outputScale >= 3 ? 4 : outputScale >= 1.5 ? 2 : 1;
+        if (scale == 1) {
+            sharp = null;
+        } else {
+            if (!scaled.containsKey(scale))
+                scaled.put(scale, ZipSprites.forScale(scale));
+            sharp = scaled.get(scale);
+        }
+        return sharp;
+    }
+
+    /** @return The sprites of the screen's scale, or <b>null</b> for the 1x ones. */
+    public ZipSprites getSharpSprites() {
+        return sharp;
+    }
+
+    /** @return The number of sprites in the atlas. */
+    public synchronized int atlasSize() {
+        return viewports.size();
+    }
+
+    /** @return The number of sprites held as images of their own. */
+    public synchronized int imageCount() {
+        return images.size();
+    }
+}
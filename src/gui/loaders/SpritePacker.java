@@ -0,0 +1,171 @@
+package gui.loaders;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Packs the small sprites into one atlas image, with an index of where each
+ * sprite is in it. The build runs this on the sprites of the resources; the
+ * {@link ImageLoader} then decodes one image instead of hundreds.
+ * <p>
+ * The index has one line per sprite: its {@link ImageIndex} name, then the
+ * x, y, width and height of its rectangle in the atlas, then the size and the
+ * CRC-32, in hexadecimal, of the file it was packed from. The loader tells
+ * with them the sprites the user replaced without reading the packaged ones. Sprites larger than
+ * {@link #MAX_SPRITE} on a side, like the staff backgrounds, are left out and
+ * loaded on their own.
+ * <p>
+ * This only uses <code>java.desktop</code>, so that it runs during the build
+ * without JavaFX.
+ */
+public final class SpritePacker {
+
+    /** The name of the atlas image. */
+    public static final String ATLAS = "sprites_atlas.png";
+
+    /** The name of the atlas index. */
+    public static final String INDEX = "sprites_atlas.txt";
+
+    /** The width of the atlas. */
+    public static final int WIDTH = 1024;
+
+    /** The largest side of a sprite packed in the atlas. */
+    public static final int MAX_SPRITE = 256;
+
+    /**
+     * Transparent pixels around each sprite, so that a scaled sprite doesn't
+     * pick up the edges of its neighbours.
+     */
+    private static final int PADDING = 1;
+
+    private SpritePacker() {
+    }
+
+    /**
+     * @param args
+     *            The folder with the sprites, and the folder to write the
+     *            atlas and its index in.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2)
+            throw new IllegalArgumentException("Usage: SpritePacker <sprites folder> <output folder>");
+        pack(new File(args[0]), new File(args[1]));
+    }
+
+    /** A sprite to pack and where it goes. */
+    private static class Sprite {
+        final ImageIndex index;
+        final BufferedImage image;
+        final long fileSize;
+        final long crc;
+        int x, y;
+
+        Sprite(ImageIndex index, BufferedImage image, byte[] file) {
+            this.index = index;
+            this.image = image;
+            this.fileSize = file.length;
+            CRC32 c = new CRC32();
+            c.update(file);
+            this.crc = c.getValue();
+        }
+    }
+
+    /**
+     * Packs the sprites of a folder.
+     *
+     * @param spritesDir
+     *            The folder with the sprites, named after their
+     *            {@link ImageIndex}.
+     * @param outDir
+     *            The folder to write the atlas and its index in.
+     * @return The number of sprites packed
+     */
+    public static int pack(File spritesDir, File outDir) throws IOException {
+        List<Sprite> sprites = new ArrayList<>();
+        for (ImageIndex i : ImageIndex.values()) {
+            File f = new File(spritesDir, i + ".png");
+            if (!f.isFile())
+                continue;
+            byte[] file = Files.readAllBytes(f.toPath());
+            BufferedImage img = toArgb(ImageIO.read(new ByteArrayInputStream(file)));
+            if (img != null && img.getWidth() <= MAX_SPRITE && img.getHeight() <= MAX_SPRITE)
+                sprites.add(new Sprite(i, img, file));
+        }
+
+        // Shelves, tallest sprites first
+        List<Sprite> byHeight = new ArrayList<>(sprites);
+        byHeight.sort(Comparator.comparingInt((Sprite s) -> s.image.getHeight()).reversed());
+        int x = 0, y = 0, shelf = 0;
+        for (Sprite s : byHeight) {
+            int w = s.image.getWidth() + 2 * PADDING;
+            if (x + w > WIDTH) {
+                x = 0;
+                y += shelf;
+                shelf = 0;
+            }
+            s.x = x + PADDING;
+            s.y = y + PADDING;
+            x += w;
+            shelf = Math.max(shelf, s.image.getHeight() + 2 * PADDING);
+        }
+
+        BufferedImage atlas = new BufferedImage(WIDTH, Math.max(1, y + shelf), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = atlas.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        for (Sprite s : sprites)
+            g.drawImage(s.image, s.x, s.y, null);
+        g.dispose();
+
+        if (!outDir.isDirectory() && !outDir.mkdirs())
+            throw new IOException("Cannot create " + outDir);
+        ImageIO.write(atlas, "png", new File(outDir, ATLAS));
+        try (PrintWriter out = new PrintWriter(new File(outDir, INDEX), "UTF-8")) {
+            for (Sprite s : sprites)
+                out.println(s.index + " " + s.x + " " + s.y + " " + s.image.getWidth() + " " + s.image.getHeight()
+                        + " " + s.fileSize + " " + Long.toHexString(s.crc));
+        }
+        return sprites.size();
+    }
+
+    /**
+     * Converts grayscale sprites to colour by their sample values. Java2D
+     * would convert them as linear gray, which makes them lighter than
+     * JavaFX draws them.
+     *
+     * @param img
+     *            A sprite, or <b>null</b>
+     * @return The sprite, converted if it was grayscale
+     */
+    private static BufferedImage toArgb(BufferedImage img) {
+        if (img == null || img.getColorModel().getColorSpace().getType() != ColorSpace.TYPE_GRAY)
+            return img;
+
+        WritableRaster r = img.getRaster();
+        boolean alpha = r.getNumBands() > 1;
+        int grayMax = (1 << img.getColorModel().getComponentSize(0)) - 1;
+        int alphaMax = alpha ? (1 << img.getColorModel().getComponentSize(1)) - 1 : 1;
+        BufferedImage argb = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < img.getHeight(); y++) {
+            for (int x = 0; x < img.getWidth(); x++) {
+                int v = r.getSample(x, y, 0) * 255 / grayMax;
+                int a = alpha ? r.getSample(x, y, 1) * 255 / alphaMax : 255;
+                argb.setRGB(x, y, a << 24 | v << 16 | v << 8 | v);
+            }
+        }
+        return argb;
+    }
+}
@@ -0,0 +1,144 @@
+package gui.loaders;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the work of starting Super Mario Paint as tasks on a pool of threads.
+ * <p>
+ * Each task names the tasks it needs; it starts as soon as they are done,
+ * without holding a thread while it waits. A task that starts more work on
+ * the pool is added with {@link #chain}, so that it doesn't wait for it. Startup then takes as long as the
+ * slowest chain of tasks rather than the sum of them. When each task started
+ * and how long it ran is recorded for {@link #report()}.
+ */
+public class StartupPipeline {
+
+    /** When a task started and finished, in nanoseconds. */
+    private static class Phase {
+        final String name;
+        volatile long start;
+        volatile long end;
+
+        Phase(String name) {
+            this.name = name;
+        }
+    }
+
+    /** The threads running the tasks; the sprites are decoded on them too. */
+    private final ExecutorService executor;
+
+    /** The tasks in the order they were added. */
+    private final List<Phase> phases = new ArrayList<>();
+
+    /** When the pipeline was made. */
+    private final long origin = System.nanoTime();
+
+    public StartupPipeline() {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "SMP startup " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** @return The threads running the tasks. */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Adds a task, which runs once the tasks it needs are done. If one of
+     * them fails, so does this one, without running.
+     *
+     * @param name
+     *            The name of the task in the report
+     * @param work
+     *            The work of the task
+     * @param needs
+     *            The tasks that must be done first
+     * @return The result of the task, once done
+     */
+    public <T> CompletableFuture<T> task(String name, Callable<T> work, CompletableFuture<?>... needs) {
+        Phase p = new Phase(name);
+        synchronized (phases) {
+            phases.add(p);
+        }
+        return CompletableFuture.allOf(needs).thenApplyAsync(v -> {
+            p.start = System.nanoTime();
+            try {
+                return work.call();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            } finally {
+                p.end = System.nanoTime();
+            }
+        }, executor);
+    }
+
+    /**
+     * Adds a task whose work starts more work, on these threads or
+     * elsewhere, rather than doing it. The task is done when that work is,
+     * without holding a thread while it waits, so a task never waits on the
+     * pool it runs on.
+     *
+     * @param name
+     *            The name of the task in the report
+     * @param work
+     *            Starts the work of the task and gives its result, once done
+     * @param needs
+     *            The tasks that must be done first
+     * @return The result of the task, once done
+     */
+    public <T> CompletableFuture<T> chain(String name, Callable<CompletableFuture<T>> work,
+            CompletableFuture<?>... needs) {
+        Phase p = new Phase(name);
+        synchronized (phases) {
+            phases.add(p);
+        }
+        return CompletableFuture.allOf(needs).thenComposeAsync(v -> {
+            p.start = System.nanoTime();
+            try {
+                return work.call().whenComplete((t, e) -> p.end = System.nanoTime());
+            } catch (Exception e) {
+                p.end = System.nanoTime();
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /** Stops the threads once the tasks added are done. */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * @return When each task started and how long it ran, in milliseconds
+     *         since the pipeline was made, and how long startup took.
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder("Startup:");
+        long last = origin;
+        synchronized (phases) {
+            for (Phase p : phases) {
+                if (p.end == 0) {
+                    sb.append(String.format("%n  %-12s not run", p.name));
+                    continue;
+                }
+                sb.append(String.format("%n  %-12s at %7.1f ms, ran %7.1f ms", p.name,
+                        (p.start - origin) / 1e6, (p.end - p.start) / 1e6));
+                last = Math.max(last, p.end);
+            }
+        }
+        sb.append(String.format("%n  total        %7.1f ms", (last - origin) / 1e6));
+        return sb.toString();
+    }
+}
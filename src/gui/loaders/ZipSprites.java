@@ -0,0 +1,312 @@
+package gui.loaders;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import gui.Settings;
+import gui.Values;
+import gui.resources.FetchStrategy;
+import gui.resources.SMPResourceUtil;
+import javafx.scene.image.Image;
+
+/**
+ * The sprites of one scale, drawn with more pixels for screens that scale
+ * the window, read from one of the sprite archives.
+ * <p>
+ * The archive is memory-mapped, or read in memory when it is inside the
+ * program's image, and only its directory is read when opened; a sprite is
+ * inflated and decoded the first time it is asked for, or ahead of time by
+ * {@link #prefetch}, and kept. Every offset and size read from the archive
+ * is checked against its length, so a broken archive gives an
+ * <code>IOException</code>; ZIP64 archives aren't supported.
+ */
+public class ZipSprites {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    /** What ZIP64 archives put in the fields they extend. */
+    private static final long ZIP64_MARKER = 0xffffffffL;
+
+    /** A sprite file bigger than this is taken for a broken archive. */
+    private static final int MAX_SPRITE_BYTES = 16 * 1024 * 1024;
+
+    /** Where a sprite is in the archive. */
+    private static class Entry {
+        final int method;
+        final int localOffset;
+        final int compressedSize;
+        final int size;
+
+        Entry(int method, int localOffset, int compressedSize, int size) {
+            this.method = method;
+            this.localOffset = localOffset;
+            this.compressedSize = compressedSize;
+            this.size = size;
+        }
+    }
+
+    /** How many times bigger than the 1x sprites these are. */
+    private final int scale;
+
+    /** The archive, mapped in memory. */
+    private final ByteBuffer zip;
+
+    /** The sprites the archive has. */
+    private final Map<ImageIndex, Entry> entries = new EnumMap<>(ImageIndex.class);
+
+    /** The sprites decoded so far. */
+    private final Map<ImageIndex, Image> images = new ConcurrentHashMap<>();
+
+    /**
+     * Maps an archive and reads its directory. Files that aren't named after
+     * an {@link ImageIndex} are ignored, whatever folder they are in.
+     *
+     * @param file
+     *            The sprite archive
+     * @param scale
+     *            How many times bigger than the 1x sprites its sprites are
+     * @throws IOException
+     *             If the archive can't be read
+     */
+    public ZipSprites(File file, int scale) throws IOException {
+        if (scale < 1)
+            throw new IllegalArgumentException("Invalid sprite scale " + scale);
+        this.scale = scale;
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            zip = map.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        readDirectory();
+    }
+
+    /**
+     * Reads the directory of an archive in memory. Files that aren't named
+     * after an {@link ImageIndex} are ignored, whatever folder they are in.
+     *
+     * @param archive
+     *            The sprite archive
+     * @param scale
+     *            How many times bigger than the 1x sprites its sprites are
+     * @throws IOException
+     *             If the archive can't be read
+     */
+    public ZipSprites(ByteBuffer archive, int scale) throws IOException {
+        if (scale < 1)
+            throw new IllegalArgumentException("Invalid sprite scale " + scale);
+        this.scale = scale;
+        zip = archive.slice().order(ByteOrder.LITTLE_ENDIAN);
+        readDirectory();
+    }
+
+    /**
+     * Opens the archive of a scale packaged with the program. A copy in the
+     * sprites folder isn't used: it would be left over from an older
+     * version, and the sprites the user replaced aren't taken from the
+     * archives anyway, see {@link SpriteAtlas#putReplaced}.
+     *
+     * @param scale
+     *            How many times bigger than the 1x sprites, 2 or 4
+     * @return The sprites, or <b>null</b> if there is no archive for the
+     *         scale or it can't be read
+     */
+    public static ZipSprites forScale(int scale) {
+        try {
+            URL url = SMPResourceUtil.get(scale + "x sprites.zip", FetchStrategy.INTERNAL, Values.SPRITES_FOLDER);
+            if ("file".equals(url.getProtocol()))
+                return new ZipSprites(new File(url.toURI()), scale);
+            // Inside a jar or the runtime image, where it can't be mapped
+            try (InputStream in = url.openStream()) {
+                return new ZipSprites(ByteBuffer.wrap(in.readAllBytes()), scale);
+            }
+        } catch (IOException | URISyntaxException | IllegalArgumentException | NullPointerException e) {
+            if ((Settings.debug & 0b01) != 0)
+                System.out.println("No " + scale + "x sprites: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void readDirectory() throws IOException {
+        int eocd = -1;
+        for (int p = zip.limit() - 22; p >= Math.max(0, zip.limit() - 22 - 0xffff); p--) {
+            if (zip.getInt(p) == EOCD_SIGNATURE) {
+                eocd = p;
+                break;
+            }
+        }
+        if (eocd < 0)
+            throw new IOException("Not a zip archive");
+
+        int count = Short.toUnsignedInt(zip.getShort(eocd + 10));
+        long offset = Integer.toUnsignedLong(zip.getInt(eocd + 16));
+        if (count == 0xffff || offset == ZIP64_MARKER)
+            throw new IOException("ZIP64 archives aren't supported");
+        checkRange(offset, 0, "zip directory");
+        int p = (int) offset;
+        for (int k = 0; k < count; k++) {
+            checkRange(p, 46, "zip directory entry");
+            if (zip.getInt(p) != CENTRAL_SIGNATURE)
+                throw new IOException("Bad zip directory entry at " + p);
+            int method = Short.toUnsignedInt(zip.getShort(p + 10));
+            long compressedSize = Integer.toUnsignedLong(zip.getInt(p + 20));
+            long size = Integer.toUnsignedLong(zip.getInt(p + 24));
+            int nameLength = Short.toUnsignedInt(zip.getShort(p + 28));
+            int extraLength = Short.toUnsignedInt(zip.getShort(p + 30));
+            int commentLength = Short.toUnsignedInt(zip.getShort(p + 32));
+            long localOffset = Integer.toUnsignedLong(zip.getInt(p + 42));
+            checkRange(p + 46, nameLength + extraLength + commentLength, "zip directory entry");
+            if (compressedSize == ZIP64_MARKER || size == ZIP64_MARKER || localOffset == ZIP64_MARKER)
+                throw new IOException("ZIP64 archives aren't supported");
+
+            byte[] nameBytes = new byte[nameLength];
+            zip.get(p + 46, nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+            name = name.substring(name.lastIndexOf('/') + 1);
+            if (name.endsWith(".png") && (method == STORED || method == DEFLATED)) {
+                try {
+                    ImageIndex i = ImageIndex.valueOf(name.substring(0, name.length() - 4));
+                    checkRange(localOffset, 30 + compressedSize, "zip entry " + name);
+                    if (size > MAX_SPRITE_BYTES)
+                        throw new IOException("Zip entry " + name + " too big: " + size + " bytes");
+                    entries.put(i, new Entry(method, (int) localOffset, (int) compressedSize, (int) size));
+                } catch (IllegalArgumentException e) {
+                    // Not a sprite we use
+                }
+            }
+            p += 46 + nameLength + extraLength + commentLength;
+        }
+    }
+
+    /**
+     * Checks that bytes read from the archive are inside it.
+     *
+     * @throws IOException
+     *             If they aren't
+     */
+    private void checkRange(long offset, long length, String what) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > zip.limit())
+            throw new IOException("Bad zip archive: " + what + " past its end");
+    }
+
+    /** @return How many times bigger than the 1x sprites these are. */
+    public int getScale() {
+        return scale;
+    }
+
+    /**
+     * @param i
+     *            A sprite
+     * @return Whether the archive has it
+     */
+    public boolean contains(ImageIndex i) {
+        return entries.containsKey(i);
+    }
+
+    /** @return The number of sprites the archive has. */
+    public int size() {
+        return entries.size();
+    }
+
+    /** @return The number of sprites decoded so far. */
+    public int decoded() {
+        return images.size();
+    }
+
+    /**
+     * Gives a sprite, decoding it now if it wasn't.
+     *
+     * @param i
+     *            A sprite
+     * @return Its image, or <b>null</b> if the archive doesn't have it or it
+     *         can't be read
+     */
+    public Image get(ImageIndex i) {
+        Image img = images.get(i);
+        if (img != null || !entries.containsKey(i))
+            return img;
+        try {
+            img = new Image(new ByteArrayInputStream(read(i)));
+        } catch (IOException | DataFormatException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+        Image other = images.putIfAbsent(i, img);
+        return other != null ? other : img;
+    }
+
+    /**
+     * Decodes sprites ahead of time, several at a time if the executor has
+     * several threads.
+     *
+     * @param sprites
+     *            The sprites
+     * @param executor
+     *            Where to decode them
+     * @return Done once they are all decoded
+     */
+    public CompletableFuture<Void> prefetch(Collection<ImageIndex> sprites, Executor executor) {
+        return CompletableFuture.allOf(sprites.stream()
+                .filter(i -> entries.containsKey(i) && !images.containsKey(i))
+                .map(i -> CompletableFuture.runAsync(() -> get(i), executor))
+                .toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * @param i
+     *            A sprite the archive has
+     * @return The bytes of its file
+     */
+    byte[] read(ImageIndex i) throws IOException, DataFormatException {
+        Entry e = entries.get(i);
+        int p = e.localOffset;
+        if (zip.getInt(p) != LOCAL_SIGNATURE)
+            throw new IOException("Bad zip entry for " + i);
+        long data = p + 30L + Short.toUnsignedInt(zip.getShort(p + 26)) + Short.toUnsignedInt(zip.getShort(p + 28));
+        checkRange(data, e.compressedSize, "zip entry for " + i);
+        if (e.method == STORED && e.compressedSize != e.size)
+            throw new IOException("Bad zip entry for " + i);
+        ByteBuffer compressed = zip.slice((int) data, e.compressedSize);
+
+        byte[] out = new byte[e.size];
+        if (e.method == STORED) {
+            compressed.get(out);
+            return out;
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            int n = 0;
+            while (n < out.length && !inflater.finished()) {
+                int r = inflater.inflate(out, n, out.length - n);
+                if (r == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new DataFormatException("Truncated zip entry for " + i);
+                n += r;
+            }
+            return out;
+        } finally {
+            inflater.end();
+        }
+    }
+}
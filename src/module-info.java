@@ -1,6 +1,7 @@
 module smp {
 
     requires transitive java.desktop;
+    requires jdk.management;
     
     requires transitive javafx.base;
     requires transitive javafx.controls;
@@ -0,0 +1,94 @@
+package utilities;
+
+import java.util.function.Supplier;
+
+/**
+ * A bounded single-producer/single-consumer queue whose slots are allocated
+ * once and reused.
+ * <p>
+ * The producer {@link #claim() claims} the next free slot, fills it in place
+ * and {@link #publish() publishes} it. The consumer {@link #peek() peeks} at
+ * the oldest published slot, reads it and {@link #release() releases} it.
+ * No locks are taken and nothing is allocated after construction.
+ * <p>
+ * Exactly one thread may act as producer and exactly one as consumer.
+ *
+ * @param <E> The type of the slots.
+ */
+public class SpscRingBuffer<E> {
+
+    private final Object[] slots;
+
+    private final int mask;
+
+    /** Sequence number of the next slot the consumer will read. */
+    private volatile long head = 0;
+
+    /** Sequence number of the next slot the producer will write. */
+    private volatile long tail = 0;
+
+    /**
+     * @param capacity
+     *            The number of slots; rounded up to a power of two.
+     * @param factory
+     *            Creates the slots.
+     */
+    public SpscRingBuffer(int capacity, Supplier<E> factory) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        slots = new Object[size];
+        for (int i = 0; i < size; i++)
+            slots[i] = factory.get();
+        mask = size - 1;
+    }
+
+    /**
+     * Producer side.
+     *
+     * @return The next slot to fill, or <b>null</b> if the buffer is full.
+     *         Nothing is visible to the consumer until {@link #publish()}.
+     */
+    @SuppressWarnings("unchecked")
+    public E claim() {
+        long t = tail;
+        if (t - head > mask)
+            return null;
+        return (E) slots[(int) t & mask];
+    }
+
+    /** Producer side. Hands the slot returned by {@link #claim()} to the consumer. */
+    public void publish() {
+        tail = tail + 1;
+    }
+
+    /**
+     * Consumer side.
+     *
+     * @return The oldest published slot, or <b>null</b> if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        long h = head;
+        if (h == tail)
+            return null;
+        return (E) slots[(int) h & mask];
+    }
+
+    /** Consumer side. Gives the slot returned by {@link #peek()} back to the producer. */
+    public void release() {
+        head = head + 1;
+    }
+
+    /** @return Whether no slot is currently published. */
+    public boolean isEmpty() {
+        return head == tail;
+    }
+
+    /** @return The number of slots. */
+    public int capacity() {
+        return slots.length;
+    }
+}
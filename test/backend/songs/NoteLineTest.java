@@ -0,0 +1,87 @@
+package backend.songs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import backend.sound.ThreadAllocations;
+import gui.InstrumentIndex;
+
+/**
+ * Checks removing notes by value from a line crowded enough to keep a bitmap
+ * of its notes.
+ */
+class NoteLineTest {
+
+    /** More notes than a line holds before it keeps a bitmap. */
+    private static final int NOTES = 24;
+
+    private static Note note(int k) {
+        InstrumentIndex[] instruments = InstrumentIndex.values();
+        return new Note(instruments[k % instruments.length], k % 20, Accidental.NATURAL);
+    }
+
+    private static NoteLine crowdedLine() {
+        NoteLine line = new NoteLine();
+        for (int k = 0; k < NOTES; k++)
+            line.getNotes().add(note(k));
+        return line;
+    }
+
+    @Test
+    void removeByValue() {
+        NoteLine line = crowdedLine();
+        List<Note> notes = line.getNotes();
+
+        assertTrue(notes.remove(note(7)));
+        assertEquals(NOTES - 1, notes.size());
+        assertFalse(notes.contains(note(7)));
+        assertFalse(notes.remove(note(7)));
+        for (int k = 0; k < NOTES; k++) {
+            if (k != 7)
+                assertEquals(note(k), notes.get(k < 7 ? k : k - 1));
+        }
+    }
+
+    @Test
+    void removeOneOfDuplicates() {
+        NoteLine line = crowdedLine();
+        List<Note> notes = line.getNotes();
+        notes.add(note(3));
+
+        assertTrue(notes.remove(note(3)));
+        assertTrue(notes.contains(note(3)));
+        assertTrue(notes.remove(note(3)));
+        assertFalse(notes.contains(note(3)));
+        assertEquals(NOTES - 1, notes.size());
+    }
+
+    @Test
+    void removeByValueAllocatesNothing() {
+        NoteLine line = crowdedLine();
+        List<Note> notes = line.getNotes();
+        Note removed = note(11);
+        Note other = note(5);
+        ThreadAllocations allocations = new ThreadAllocations();
+        allocations.start(Thread.currentThread().threadId());
+        for (int k = 0; k < 10_000; k++) {
+            notes.remove(removed);
+            notes.add(removed);
+        }
+
+        allocations.mark();
+        for (int k = 0; k < 10_000; k++) {
+            notes.remove(removed);
+            notes.remove(other);
+            notes.add(other);
+            notes.add(removed);
+        }
+        long allocated = allocations.sinceMark();
+        assertTrue(allocated <= 0, "Removing notes by value allocated " + allocated + " bytes");
+        assertEquals(NOTES, notes.size());
+    }
+}
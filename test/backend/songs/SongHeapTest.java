@@ -0,0 +1,61 @@
+package backend.songs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.ref.Reference;
+
+import org.junit.jupiter.api.Test;
+
+import gui.InstrumentIndex;
+
+/**
+ * Checks that a song only takes memory for the chunks of lines it has notes
+ * on, however far its lines go.
+ */
+class SongHeapTest {
+
+    private static final int FAR_LINE = 1_000_000;
+
+    /** What the song may take: its chunk table and one chunk, with room to spare. */
+    private static final long MAX_RETAINED = 512 * 1024;
+
+    /** @return The bytes used on the heap once garbage is collected. */
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int k = 0; k < 10; k++) {
+            System.gc();
+            long now = rt.totalMemory() - rt.freeMemory();
+            if (now >= used)
+                break;
+            used = now;
+        }
+        return used;
+    }
+
+    private static Song farSong() {
+        Song song = new Song();
+        int notes = 0;
+        for (int n = 0; n <= FAR_LINE; n++)
+            notes += song.peekLine(n).size();
+        assertEquals(0, notes);
+        song.getLine(FAR_LINE).getNotes().add(new Note(InstrumentIndex.values()[0], 5, Accidental.NATURAL));
+        return song;
+    }
+
+    @Test
+    void farLineTakesLittleHeap() {
+        // Loads the classes first, so that they aren't counted
+        farSong();
+
+        long before = usedHeap();
+        Song song = farSong();
+        long retained = usedHeap() - before;
+
+        assertEquals(1, song.peekLine(FAR_LINE).size());
+        assertTrue(song.getLength() > FAR_LINE);
+        assertTrue(retained < MAX_RETAINED, "Song with line " + FAR_LINE + " takes " + retained + " bytes");
+        Reference.reachabilityFence(song);
+    }
+}
@@ -0,0 +1,146 @@
+package backend.sound;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import org.junit.jupiter.api.Test;
+
+import backend.songs.Accidental;
+import backend.songs.MuteModifier;
+import backend.songs.Note;
+import backend.songs.NoteLine;
+import backend.songs.Song;
+import gui.InstrumentIndex;
+
+/**
+ * Checks that playing a song allocates nothing once its lines have been
+ * compiled, see {@link ThreadAllocations}: neither while executing the
+ * lines, nor on the threads that play them through a {@link SoundPlayer}.
+ */
+class PlaybackAllocationTest {
+
+    /** The lines of the song played. */
+    private static final int LINES = 4000;
+
+    /** The notes on each line. */
+    private static final int NOTES_PER_LINE = 12;
+
+    /** The tempo the song is played at through the dispatcher, a line every millisecond. */
+    private static final double TEMPO = 60_000;
+
+    /** How long before they are due lines are handed to the dispatcher. */
+    private static final long LOOK_AHEAD = 200_000;
+
+    /** How many times at most the song is played to warm up the playback threads. */
+    private static final int MAX_WARM_UP_PASSES = 10;
+
+    /** Plays notes nowhere. */
+    private static final NoteOutput NOWHERE = new NoteOutput() {
+        @Override
+        public void noteOn(int channel, int pitch, int velocity) {
+        }
+
+        @Override
+        public void noteOff(int channel, int pitch) {
+        }
+    };
+
+    /**
+     * A song with many notes on every line, of every instrument, some of
+     * them muting others, at various volumes.
+     */
+    private static Song denseSong() {
+        InstrumentIndex[] instruments = InstrumentIndex.values();
+        Accidental[] accidentals = Accidental.values();
+        MuteModifier[] mutes = MuteModifier.values();
+        Song song = new Song();
+        for (int n = 0; n < LINES; n++) {
+            NoteLine line = song.getLine(n);
+            for (int k = 0; k < NOTES_PER_LINE; k++) {
+                int j = n * NOTES_PER_LINE + k;
+                line.getNotes().add(new Note(instruments[j % instruments.length], (j * 7) % 20,
+                        accidentals[j % accidentals.length], mutes[(j / 5) % mutes.length]));
+            }
+            line.setVolume(32 + n % 96);
+        }
+        return song;
+    }
+
+    private static void play(PlaybackProgram program, NoteTracker tracker) {
+        for (int n = 0; n < LINES; n++)
+            PlaybackProgram.execute(program.line(n), tracker);
+    }
+
+    @Test
+    void noAllocationOnceCompiled() {
+        PlaybackProgram program = new PlaybackProgram(denseSong(), 0);
+        NoteTracker tracker = new NoteTracker(NOWHERE);
+        ThreadAllocations allocations = new ThreadAllocations();
+        allocations.start(Thread.currentThread().threadId());
+        assumeTrue(allocations.sinceStart() >= 0, "Allocations can't be counted on this JVM");
+
+        // The first pass compiles the lines, the next ones let the JIT settle
+        for (int pass = 0; pass < 3; pass++)
+            play(program, tracker);
+
+        allocations.mark();
+        for (int pass = 0; pass < 5; pass++)
+            play(program, tracker);
+        assertEquals(0, allocations.sinceMark(), "Bytes allocated playing " + 5 * LINES + " lines");
+    }
+
+    /**
+     * Plays the song the way {@link gui.Staff} does: every line is released
+     * by the clock, handed to the dispatcher to be scheduled on the
+     * synthesizers ahead of time, and the player waits until it is due.
+     */
+    private static void play(PlaybackProgram program, AudioDispatcher dispatcher, PlaybackClock clock) {
+        for (int n = 0; n < LINES; n++) {
+            dispatcher.submit(program.line(n), clock.currentDeadline());
+            clock.awaitCurrentDeadline();
+            clock.awaitNextLine();
+        }
+        dispatcher.drain();
+    }
+
+    @Test
+    void noAllocationWhilePlaying() throws Exception {
+        StubSMPSynthesizer synthesizer = new StubSMPSynthesizer();
+        SoundPlayer player = new SoundPlayer(synthesizer, null, synthesizer.getChannels());
+        AudioDispatcher dispatcher = new AudioDispatcher(player);
+        PlaybackProgram program = new PlaybackProgram(denseSong(), 0);
+        PlaybackClock clock = new PlaybackClock();
+        clock.setLookAhead(LOOK_AHEAD);
+
+        dispatcher.begin();
+        try {
+            long[] threads = { Thread.currentThread().threadId(), dispatcher.getThreadId() };
+            ThreadAllocations allocations = new ThreadAllocations();
+            allocations.start(threads);
+            assumeTrue(allocations.sinceStart() >= 0, "Allocations can't be counted on this JVM");
+
+            // The first pass compiles the lines and opens the overflow
+            // channels. The JIT then resolves the constants of each class
+            // the first time it compiles one of its methods, on the thread
+            // that asked for it; play until a pass is clear of that.
+            clock.start(TEMPO);
+            int pass = 0;
+            do {
+                allocations.start(threads);
+                play(program, dispatcher, clock);
+            } while (allocations.sinceStart() != 0 && ++pass < MAX_WARM_UP_PASSES);
+
+            long messages = synthesizer.messages();
+            allocations.mark();
+            for (pass = 0; pass < 2; pass++)
+                play(program, dispatcher, clock);
+            long allocated = allocations.sinceMark();
+            assertTrue(synthesizer.messages() > messages, "Nothing was sent to the synthesizers");
+            assertEquals(0, allocated, "Bytes allocated playing " + 2 * LINES + " lines");
+        } finally {
+            dispatcher.end();
+            player.stopAllInstruments();
+        }
+    }
+}
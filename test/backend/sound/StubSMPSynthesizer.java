@@ -0,0 +1,32 @@
+package backend.sound;
+
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Synthesizer;
+
+/**
+ * The program's synthesizers, made of {@link StubSynthesizer}s: as many as
+ * the router can use, so that it never has to add one.
+ */
+class StubSMPSynthesizer extends SMPSynthesizer {
+
+    StubSMPSynthesizer() throws MidiUnavailableException {
+        theSynths.clear();
+        for (int k = 0; k < ChannelRouter.MAX_SYNTHS; k++)
+            theSynths.add(new StubSynthesizer());
+    }
+
+    @Override
+    public Synthesizer addSynthesizer() throws MidiUnavailableException {
+        Synthesizer s = new StubSynthesizer();
+        theSynths.add(s);
+        return s;
+    }
+
+    /** @return The number of messages sent to all the synthesizers. */
+    long messages() {
+        long n = 0;
+        for (Synthesizer s : getSynthesizers())
+            n += ((StubSynthesizer) s).messages();
+        return n;
+    }
+}
@@ -0,0 +1,304 @@
+package backend.sound;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.sound.midi.Instrument;
+import javax.sound.midi.MidiChannel;
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Patch;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Soundbank;
+import javax.sound.midi.Synthesizer;
+import javax.sound.midi.Transmitter;
+import javax.sound.midi.VoiceStatus;
+
+/**
+ * A synthesizer that plays nothing, for tests to run the playback code
+ * without an audio device. It counts the messages it is sent and keeps time
+ * with {@link System#nanoTime()}, so that lines can be scheduled on it.
+ */
+class StubSynthesizer implements Synthesizer {
+
+    /** The polyphony of a stub, the default of Java's synthesizer. */
+    static final int POLYPHONY = 64;
+
+    private final MidiChannel[] channels = new MidiChannel[16];
+
+    private final Receiver receiver = new Receiver() {
+        @Override
+        public void send(MidiMessage message, long timeStamp) {
+            messages++;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private volatile long messages;
+
+    StubSynthesizer() {
+        for (int k = 0; k < channels.length; k++)
+            channels[k] = new StubChannel();
+    }
+
+    /** @return The number of messages sent to this synthesizer's receiver. */
+    long messages() {
+        return messages;
+    }
+
+    @Override
+    public int getMaxPolyphony() {
+        return POLYPHONY;
+    }
+
+    @Override
+    public long getLatency() {
+        return 0;
+    }
+
+    @Override
+    public MidiChannel[] getChannels() {
+        return channels.clone();
+    }
+
+    @Override
+    public VoiceStatus[] getVoiceStatus() {
+        return new VoiceStatus[0];
+    }
+
+    @Override
+    public boolean isSoundbankSupported(Soundbank soundbank) {
+        return true;
+    }
+
+    @Override
+    public boolean loadInstrument(Instrument instrument) {
+        return true;
+    }
+
+    @Override
+    public void unloadInstrument(Instrument instrument) {
+    }
+
+    @Override
+    public boolean remapInstrument(Instrument from, Instrument to) {
+        return true;
+    }
+
+    @Override
+    public Soundbank getDefaultSoundbank() {
+        return null;
+    }
+
+    @Override
+    public Instrument[] getAvailableInstruments() {
+        return new Instrument[0];
+    }
+
+    @Override
+    public Instrument[] getLoadedInstruments() {
+        return new Instrument[0];
+    }
+
+    @Override
+    public boolean loadAllInstruments(Soundbank soundbank) {
+        return true;
+    }
+
+    @Override
+    public void unloadAllInstruments(Soundbank soundbank) {
+    }
+
+    @Override
+    public boolean loadInstruments(Soundbank soundbank, Patch[] patchList) {
+        return true;
+    }
+
+    @Override
+    public void unloadInstruments(Soundbank soundbank, Patch[] patchList) {
+    }
+
+    @Override
+    public MidiDevice.Info getDeviceInfo() {
+        return null;
+    }
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public long getMicrosecondPosition() {
+        return System.nanoTime() / 1000;
+    }
+
+    @Override
+    public int getMaxReceivers() {
+        return -1;
+    }
+
+    @Override
+    public int getMaxTransmitters() {
+        return 0;
+    }
+
+    @Override
+    public Receiver getReceiver() {
+        return receiver;
+    }
+
+    @Override
+    public List<Receiver> getReceivers() {
+        return Collections.singletonList(receiver);
+    }
+
+    @Override
+    public Transmitter getTransmitter() {
+        return null;
+    }
+
+    @Override
+    public List<Transmitter> getTransmitters() {
+        return Collections.emptyList();
+    }
+
+    /** A channel that plays nothing. */
+    private static class StubChannel implements MidiChannel {
+
+        private final int[] controllers = new int[128];
+
+        private int program;
+
+        private int pitchBend = 8192;
+
+        @Override
+        public void noteOn(int noteNumber, int velocity) {
+        }
+
+        @Override
+        public void noteOff(int noteNumber, int velocity) {
+        }
+
+        @Override
+        public void noteOff(int noteNumber) {
+        }
+
+        @Override
+        public void setPolyPressure(int noteNumber, int pressure) {
+        }
+
+        @Override
+        public int getPolyPressure(int noteNumber) {
+            return 0;
+        }
+
+        @Override
+        public void setChannelPressure(int pressure) {
+        }
+
+        @Override
+        public int getChannelPressure() {
+            return 0;
+        }
+
+        @Override
+        public void controlChange(int controller, int value) {
+            controllers[controller] = value;
+        }
+
+        @Override
+        public int getController(int controller) {
+            return controllers[controller];
+        }
+
+        @Override
+        public void programChange(int program) {
+            this.program = program;
+        }
+
+        @Override
+        public void programChange(int bank, int program) {
+            this.program = program;
+        }
+
+        @Override
+        public int getProgram() {
+            return program;
+        }
+
+        @Override
+        public void setPitchBend(int bend) {
+            pitchBend = bend;
+        }
+
+        @Override
+        public int getPitchBend() {
+            return pitchBend;
+        }
+
+        @Override
+        public void resetAllControllers() {
+        }
+
+        @Override
+        public void allNotesOff() {
+        }
+
+        @Override
+        public void allSoundOff() {
+        }
+
+        @Override
+        public boolean localControl(boolean on) {
+            return on;
+        }
+
+        @Override
+        public void setMono(boolean on) {
+        }
+
+        @Override
+        public boolean getMono() {
+            return false;
+        }
+
+        @Override
+        public void setOmni(boolean on) {
+        }
+
+        @Override
+        public boolean getOmni() {
+            return false;
+        }
+
+        @Override
+        public void setMute(boolean mute) {
+        }
+
+        @Override
+        public boolean getMute() {
+            return false;
+        }
+
+        @Override
+        public void setSolo(boolean soloState) {
+        }
+
+        @Override
+        public boolean getSolo() {
+            return false;
+        }
+    }
+}
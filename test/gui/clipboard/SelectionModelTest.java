@@ -0,0 +1,54 @@
+package gui.clipboard;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import backend.songs.Accidental;
+import backend.songs.MuteModifier;
+import backend.songs.PackedNote;
+import gui.InstrumentIndex;
+
+/**
+ * Checks that a line holding identical notes has each selected copy in the
+ * selection.
+ */
+class SelectionModelTest {
+
+    private static final int MARIO = PackedNote.pack(InstrumentIndex.MARIO, 5, Accidental.NATURAL,
+            MuteModifier.REGULAR);
+
+    private static final int STAR = PackedNote.pack(InstrumentIndex.STAR, 9, Accidental.SHARP,
+            MuteModifier.REGULAR);
+
+    @Test
+    void selectLineKeepsIdenticalNotes() {
+        SelectionModel selection = new SelectionModel();
+        selection.selectLine(3, new int[] { STAR, MARIO, MARIO }, 3);
+
+        assertArrayEquals(sorted(MARIO, MARIO, STAR), selection.getNotes(3));
+        assertEquals(3, selection.size());
+    }
+
+    @Test
+    void addToLineCountsCopiesSelectedBefore() {
+        SelectionModel selection = new SelectionModel();
+        selection.selectLine(3, new int[] { MARIO }, 1);
+
+        // A band over both copies selects the other one, not a third
+        selection.addToLine(3, new int[] { MARIO, MARIO }, 2);
+        assertArrayEquals(sorted(MARIO, MARIO), selection.getNotes(3));
+
+        selection.addToLine(3, new int[] { STAR, MARIO }, 2);
+        assertArrayEquals(sorted(MARIO, MARIO, STAR), selection.getNotes(3));
+        assertEquals(3, selection.size());
+    }
+
+    private static int[] sorted(int... notes) {
+        Arrays.sort(notes);
+        return notes;
+    }
+}